@@ -1,11 +1,27 @@
-import java.util.ArrayList;
-import java.util.List;
-
-public class AVLTree {
-
-    private Node root;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * AVL Tree of the spells of a single category, ordered by power level and then by name - so any number of spells
+ * may share a power level, and every (power level, name) pair is found in O(log n).
+ *
+ * A persistent tree never modifies a node once it is reachable from the root: an insert copies the O(log n) nodes of
+ * its path (the rotations of an insert only ever touch nodes of that path) and publishes the new root with a single
+ * volatile write. snapshot() then hands out a read-only tree over the current root in O(1), which stays the same
+ * point-in-time view while inserts keep flowing, and can be read by any number of threads without locks.
+ */
+public class AVLTree implements SpellIndex {
+
+    private static final int MAX_HEIGHT = 64; // an AVL tree of 2^31 nodes is less than 46 levels high
+
+    private volatile Node root; // volatile, so a persistent tree publishes each new version at once
     private int size;
     private String category;
+    private Node[] path; // the nodes visited by the current insert, reused so inserts don't allocate
+    private boolean persistent; // inserts copy their path instead of modifying nodes
+    private boolean readOnly; // a snapshot
 	
 	// private Node class for the AVL Tree nodes
     private class Node { 
@@ -13,12 +29,25 @@ public class AVLTree {
         private Node left;
         private Node right;
         private int height;
+        private int subtreeSize; // number of spells in the subtree rooted at this node
+        private long namePrefix; // first chars of the name, settles most name comparisons without reading the name
 
         private Node(Spell spell) {
             this.spell = spell;
+            this.namePrefix = namePrefix(spell.getName());
             this.right = null;
             this.left = null;
             this.height = 0;
+            this.subtreeSize = 1;
+        }
+
+        private Node(Node other) { // a copy, for path copying
+            this.spell = other.spell;
+            this.namePrefix = other.namePrefix;
+            this.right = other.right;
+            this.left = other.left;
+            this.height = other.height;
+            this.subtreeSize = other.subtreeSize;
         }
     }
 
@@ -33,6 +62,68 @@ public class AVLTree {
         this.root = new Node(spell);
         this.size = 1;
         this.category = this.root.spell.getCategory();
+        this.path = new Node[MAX_HEIGHT];
+    }
+
+    /**
+     * Constructor. Creates an empty AVL Tree for a category (used for bulk loading with addAll).
+     * 
+     * @param category the category that the AVL tree represents
+     */
+    public AVLTree(String category) {
+        this(category, false);
+    }
+
+    /**
+     * Constructor. Creates an empty AVL Tree for a category, persistent or not.
+     * 
+     * @param category the category that the AVL tree represents
+     * @param persistent true for a persistent tree - inserts copy their path, so snapshot() can be used
+     */
+    public AVLTree(String category, boolean persistent) {
+        this.root = null;
+        this.size = 0;
+        this.category = category;
+        this.path = new Node[MAX_HEIGHT];
+        this.persistent = persistent;
+    }
+
+    /**
+     * Private constructor of a snapshot - a read-only tree over a version of a persistent tree.
+     * 
+     * @param category the category that the AVL tree represents
+     * @param root the root of the version
+     */
+    private AVLTree(String category, Node root) {
+        this.root = root;
+        this.size = getSubtreeSize(root);
+        this.category = category;
+        this.persistent = true;
+        this.readOnly = true;
+    }
+
+    /**
+     * Returns a point-in-time view of a persistent tree, in O(1). The view shares the nodes of the tree, never changes
+     * and supports every query; it can be read from any thread without locks. Inserting into it is not supported.
+     * 
+     * @return returns a read-only snapshot of the tree
+     * 
+     * @throws IllegalStateException if the tree isn't persistent
+     */
+    public AVLTree snapshot() {
+        if (!this.persistent) {
+            throw new IllegalStateException("Only a persistent tree can be snapshotted");
+        }
+        return new AVLTree(this.category, this.root); // the root is read once, its size comes with it
+    }
+
+    /**
+     * Getter, returns whether the tree is persistent (inserts copy their path).
+     * 
+     * @return returns true if the tree is persistent
+     */
+    public boolean isPersistent() {
+        return this.persistent;
     }
 
     /**
@@ -64,7 +155,7 @@ public class AVLTree {
 
 
     /**
-     * Searches for a spell based on the name and the power level 
+     * Searches for a spell based on the name and the power level - O(log n), no matter how many spells share the power level
      * 
      * @param spellName the name of the spell to locate
      * @param powerLevel the power level of the spell to locate
@@ -82,7 +173,7 @@ public class AVLTree {
 
 
     /**
-     * Helper function. Recursively searches the tree for the specified spell with the same powerLevel, returns null if not found
+     * Helper function. Iteratively searches the tree for the specified spell, by (powerLevel, name), returns null if not found
      * 
      * @param node Node class instance
      * @param name the name of the spell to locate
@@ -91,79 +182,502 @@ public class AVLTree {
      * @return returns the node of the requested spell if exists, else returns null
      */
     private Node searchHelper(Node node, String name, int powerLevel) {
-        Node newNode;
-
-        if (node == null) { // No spell with the specified power level was found
-            return null;
-        }
-        
-        if ((node.spell.getPowerLevel() == powerLevel) && (node.spell.getName() == name)) { // found same power level and same name - found
-            newNode = node; // found
-        } else if (node.spell.getPowerLevel() > powerLevel) { // node has higher power level
-            newNode = searchHelper(node.left, name, powerLevel); // go left
-        } else if (node.spell.getPowerLevel() < powerLevel) { //  - node has lower power level 
-            newNode = searchHelper(node.right, name, powerLevel); // go right
-        } else { // same power level, different name
-            return null;
+        long prefix = namePrefix(name);
+
+        // bounded by MAX_HEIGHT - a valid tree is never that deep, so a reader racing a writer (an optimistic read
+        // of ConcurrentHashAVLSpellTable) can't loop over a half-done rotation
+        for (int depth = 0; (node != null) && (depth < MAX_HEIGHT); depth++) {
+            int cmp = compare(powerLevel, name, prefix, node);
+
+            if (cmp < 0) { // node is higher
+                node = node.left; // go left
+            } else if (cmp > 0) { // node is lower
+                node = node.right; // go right
+            } else { // same power level and same name - found
+                return node;
+            }
         }
-        return newNode;
+        return null; // No spell with the specified power level and name was found
     }
 
     /**
      * Inserts new spell to the AVLTree.
+     * Walks down iteratively, remembering the path, then walks the path back up updating heights and rebalancing.
+     * The walk back stops as soon as a subtree keeps its height (or was rotated), since nothing above it changes.
+     * A persistent tree copies the path first and rebalances the copies, then publishes the new root.
      * 
      * @param spell Spell class instance
+     * 
+     * @return returns true if the spell was inserted, false if a spell with the same power level and name already exists
+     * 
+     * @throws UnsupportedOperationException if the tree is a snapshot
+     */
+    public boolean insert(Spell spell) {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        Node[] path = this.path;
+        int depth = 0;
+        int powerLevel = spell.getPowerLevel();
+        String name = spell.getName();
+        long prefix = namePrefix(name);
+        int cmp = 0;
+        Node node = this.root;
+
+        // Similar to search, looking for an open slot
+        while (node != null) {
+            path[depth++] = node;
+            cmp = compare(powerLevel, name, prefix, node);
+            if (cmp < 0) {
+                node = node.left; // go left
+            } else if (cmp > 0) {
+                node = node.right; // go right
+            } else {
+                return false; // won't insert duplicates
+            }
+        }
+
+        // Empty space found, insert new node
+        Node newNode = new Node(spell);
+        if (depth == 0) {
+            this.size++;
+            this.root = newNode;
+            return true;
+        }
+        if (this.persistent) {
+            copyPath(path, depth);
+        }
+        for (int i = 0; i < depth; i++) { // every node on the path gains a spell in its subtree
+            path[i].subtreeSize++;
+        }
+        if (cmp < 0) {
+            path[depth - 1].left = newNode;
+        } else {
+            path[depth - 1].right = newNode;
+        }
+
+        Node newRoot = rebalanceAfterInsert(path, depth);
+        this.size++;
+        if (newRoot != this.root) {
+            this.root = newRoot;
+        }
+        return true;
+    }
+
+    /**
+     * Helper function. Replaces the nodes of a root to node path with copies, linked to each other the same way,
+     * so the nodes that the current version shares with the snapshots are never modified.
+     * 
+     * @param path the path from the root, replaced in place by the copies
+     * @param depth the length of the path
+     */
+    private void copyPath(Node[] path, int depth) {
+        for (int i = 0; i < depth; i++) {
+            Node copy = new Node(path[i]);
+            if (i > 0) { // path[i - 1] is already a copy, pointing to the original path[i]
+                if (path[i - 1].left == path[i]) {
+                    path[i - 1].left = copy;
+                } else {
+                    path[i - 1].right = copy;
+                }
+            }
+            path[i] = copy;
+        }
+    }
+
+    /**
+     * Helper function. Walks an insert's path back up, updating the heights and rebalancing.
+     * 
+     * @param path the path from the root to the parent of the new node
+     * @param depth the length of the path
+     * 
+     * @return returns the root of the tree after the rebalancing
      */
-    public void insert(Spell spell) {
-        this.root = insertHelper(this.root, spell);
+    private Node rebalanceAfterInsert(Node[] path, int depth) {
+        for (int i = depth - 1; i >= 0; i--) {
+            Node node = path[i];
+
+            int leftHeight = getNodeHeight(node.left);
+            int rightHeight = getNodeHeight(node.right);
+            int nodeBalance = rightHeight - leftHeight; // computed once per node
+            Node subtreeRoot;
+
+            // The four possible cases:
+            if (nodeBalance < -1) {
+                if (checkBalance(node.left) > 0) { // LR
+                    node.left = rotateLeft(node.left);
+                }
+                subtreeRoot = rotateRight(node); // LL
+            } else if (nodeBalance > 1) {
+                if (checkBalance(node.right) < 0) { // RL
+                    node.right = rotateRight(node.right);
+                }
+                subtreeRoot = rotateLeft(node); // RR
+            } else {
+                int newHeight = Math.max(leftHeight, rightHeight) + 1;
+                if (newHeight == node.height) { // height didn't change, the ancestors are still balanced
+                    return path[0];
+                }
+                node.height = newHeight;
+                continue;
+            }
+
+            // after an insert, a rotation brings the subtree back to its height from before the insert
+            if (i == 0) {
+                return subtreeRoot;
+            } else if (path[i - 1].left == node) {
+                path[i - 1].left = subtreeRoot;
+            } else {
+                path[i - 1].right = subtreeRoot;
+            }
+            return path[0];
+        }
+        return path[0];
     }
 
     /**
-     * Helper function. Used to recursively insert a spell to the AVL Tree rooted under node. 
-     * Keeps the AVL Tree's balance throughout the procedure.
+     * Removes a spell from the AVLTree, by its name and power level - O(log n).
+     * Walks down iteratively, remembering the path. A spell with two children is replaced by its successor, whose node
+     * is unlinked instead; then the path is walked back up, rebalancing. Unlike an insert, a rotation may shorten the
+     * subtree, so the walk only stops once a subtree keeps its height.
+     * A persistent tree copies the path first, and also the nodes a rotation pulls up from off the path.
      * 
-     * @param node Node class instance. The new spell will be rooted under this node.
-     * @param newSpell Spell class instance. The new spell to add to the tree.
+     * @param spellName the name of the spell to remove
+     * @param powerLevel the power level of the spell to remove
      * 
-     * @return returns a Node class instance used in the recursive operations.
+     * @return returns the removed spell, or null if there's no such spell
+     * 
+     * @throws UnsupportedOperationException if the tree is a snapshot
      */
-    private Node insertHelper(Node node, Spell newSpell) {
+    public Spell remove(String spellName, int powerLevel) {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
 
-        if (node == null) { // Empty space found, insert new node
-            this.size++;
-            return new Node(newSpell);
+        Node[] path = this.path;
+        int depth = 0;
+        long prefix = namePrefix(spellName);
+        Node node = this.root;
+
+        while (node != null) {
+            int cmp = compare(powerLevel, spellName, prefix, node);
+            if (cmp == 0) {
+                break;
+            }
+            path[depth++] = node;
+            node = cmp < 0 ? node.left : node.right;
+        }
+        if (node == null) {
+            return null; // No spell with the specified power level and name was found
         }
 
-        // Similar to search, looking for an open slot
-        if (node.spell.getPowerLevel() > newSpell.getPowerLevel()) {
-            node.left = insertHelper(node.left, newSpell); // go left
-        } else if (node.spell.getPowerLevel() < newSpell.getPowerLevel()) {
-            node.right = insertHelper(node.right, newSpell); // go right
+        Spell removed = node.spell;
+        int targetDepth = depth;
+        path[depth++] = node;
+        if ((node.left != null) && (node.right != null)) { // two children - continue to the successor, which takes its place
+            for (Node next = node.right; next != null; next = next.left) {
+                path[depth++] = next;
+            }
+        }
+        if (this.persistent) {
+            copyPath(path, depth);
+        }
+
+        Node unlinked = path[--depth]; // has at most one child
+        Node child = (unlinked.left != null) ? unlinked.left : unlinked.right;
+        if (depth > targetDepth) { // the successor's spell moves up into the target's node
+            path[targetDepth].spell = unlinked.spell;
+            path[targetDepth].namePrefix = unlinked.namePrefix;
+        }
+        if (depth == 0) {
+            this.size--;
+            this.root = child;
+            return removed;
+        }
+        if (path[depth - 1].left == unlinked) {
+            path[depth - 1].left = child;
         } else {
-            return node; // won't insert duplicates, as we assume there are none
+            path[depth - 1].right = child;
+        }
+        for (int i = 0; i < depth; i++) { // every node on the path loses a spell in its subtree
+            path[i].subtreeSize--;
         }
 
-        // Update node height
-        node.height = Math.max(getNodeHeight(node.left), getNodeHeight(node.right)) + 1;
+        Node newRoot = rebalanceAfterRemove(path, depth);
+        this.size--;
+        if (newRoot != this.root) {
+            this.root = newRoot;
+        }
+        return removed;
+    }
 
-        // Check for balance violation
-        int nodeBalance = checkBalance(node);
-
-        // The four possible cases:
-        if ((nodeBalance < -1) && (checkBalance(node.left) < 0)) { // LL
-            return rotateRight(node);
-        } else if ((nodeBalance > 1) && (checkBalance(node.right) > 0)) { // RR
-            return rotateLeft(node);
-        } else if ((nodeBalance < -1) && (checkBalance(node.left) > 0)) { // LR
-            node.left = rotateLeft(node.left);
-            return rotateRight(node);
-        } else if ((nodeBalance > 1) && (checkBalance(node.right) < 0)) { // RL - 
-            node.right = rotateRight(node.right);
-            return rotateLeft(node);
+    /**
+     * Helper function. Walks a remove's path back up, updating the heights and rebalancing.
+     * The taller child of an unbalanced node is off the path, so a persistent tree copies it (and its child, for a
+     * double rotation) before rotating.
+     * 
+     * @param path the path from the root to the parent of the unlinked node
+     * @param depth the length of the path
+     * 
+     * @return returns the root of the tree after the rebalancing
+     */
+    private Node rebalanceAfterRemove(Node[] path, int depth) {
+        for (int i = depth - 1; i >= 0; i--) {
+            Node node = path[i];
+
+            int leftHeight = getNodeHeight(node.left);
+            int rightHeight = getNodeHeight(node.right);
+            int nodeBalance = rightHeight - leftHeight;
+            Node subtreeRoot;
+
+            if (nodeBalance < -1) {
+                if (this.persistent) {
+                    node.left = new Node(node.left);
+                }
+                if (checkBalance(node.left) > 0) { // LR
+                    if (this.persistent) {
+                        node.left.right = new Node(node.left.right);
+                    }
+                    node.left = rotateLeft(node.left);
+                }
+                subtreeRoot = rotateRight(node); // LL
+            } else if (nodeBalance > 1) {
+                if (this.persistent) {
+                    node.right = new Node(node.right);
+                }
+                if (checkBalance(node.right) < 0) { // RL
+                    if (this.persistent) {
+                        node.right.left = new Node(node.right.left);
+                    }
+                    node.right = rotateRight(node.right);
+                }
+                subtreeRoot = rotateLeft(node); // RR
+            } else {
+                int newHeight = Math.max(leftHeight, rightHeight) + 1;
+                if (newHeight == node.height) { // height didn't change, the ancestors are still balanced
+                    return path[0];
+                }
+                node.height = newHeight;
+                continue;
+            }
+
+            // the rotated subtree may be shorter than before the remove, so the ancestors are checked as well
+            if (i == 0) {
+                return subtreeRoot;
+            } else if (path[i - 1].left == node) {
+                path[i - 1].left = subtreeRoot;
+            } else {
+                path[i - 1].right = subtreeRoot;
+            }
+        }
+        return path[0];
+    }
+
+    /**
+     * Inserts many spells at once. The spells are sorted, and then:
+     * - if the tree is empty, it is built directly from the sorted spells as a perfectly balanced tree - O(m log m) for the sort, O(m) for the build.
+     * - if the batch is small compared to the tree, the spells are inserted one by one - O(m log(n + m)).
+     * - otherwise the existing spells are read in order, merged with the batch and the tree is rebuilt - O(n + m) after the sort.
+     * Spells with the same power level and name as an existing spell (or as an earlier spell of the batch) are ignored.
+     * 
+     * @param spells the spells to insert, all of the tree's category
+     * 
+     * @return returns the number of spells that were inserted
+     * 
+     * @throws UnsupportedOperationException if the tree is a snapshot
+     */
+    public int addAll(Collection<Spell> spells) {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        Spell[] batch = spells.toArray(new Spell[0]);
+        int batchSize = sortBatch(batch);
+
+        if (batchSize == 0) {
+            return 0;
+        }
+
+        if (this.root == null) {
+            this.size = batchSize;
+            this.root = build(batch, 0, batchSize - 1); // fresh nodes, a persistent tree publishes them at once
+            return batchSize;
         }
+
+        if (insertsAreCheaper(this.size, batchSize)) {
+            return insertBatch(this, batch, batchSize);
+        }
+
+        Spell[] merged = new Spell[this.size + batchSize];
+        int count = mergeBatch(rangeIterator(Integer.MIN_VALUE, Integer.MAX_VALUE), batch, batchSize, merged);
+        int inserted = count - this.size;
+        this.size = count;
+        this.root = build(merged, 0, count - 1);
+        return inserted;
+    }
+
+    /**
+     * Helper function for the addAll of every SpellIndex. Sorts a batch by compareSpells and removes its adjacent
+     * duplicates (same power level and name), in place.
+     * 
+     * @param batch the spells to sort
+     * 
+     * @return returns the number of distinct spells left at the start of the array
+     */
+    static int sortBatch(Spell[] batch) {
+        Arrays.sort(batch, AVLTree::compareSpells);
+
+        int count = 0;
+        for (int i = 0; i < batch.length; i++) {
+            if ((count == 0) || (compareSpells(batch[count - 1], batch[i]) != 0)) {
+                batch[count++] = batch[i];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Helper function for the addAll of every SpellIndex. Tells whether inserting a batch one by one - O(m log(n + m)) -
+     * is cheaper than merging it with the index and rebuilding the index - O(n + m).
+     * 
+     * @param size the number of spells in the index (n)
+     * @param batchSize the number of spells in the batch (m)
+     * 
+     * @return returns true if the batch should be inserted one by one
+     */
+    static boolean insertsAreCheaper(int size, int batchSize) {
+        double insertCost = batchSize * (32 - Integer.numberOfLeadingZeros(size + batchSize)); // ~ m log(n + m)
+        return (size > 0) && (insertCost < size + batchSize);
+    }
+
+    /**
+     * Helper function for the addAll of every SpellIndex. Inserts the spells of a batch one by one.
+     * 
+     * @param index the index to insert into
+     * @param batch the spells to insert
+     * @param batchSize the number of spells at the start of the batch
+     * 
+     * @return returns the number of spells that were inserted
+     */
+    static int insertBatch(SpellIndex index, Spell[] batch, int batchSize) {
+        int inserted = 0;
+        for (int i = 0; i < batchSize; i++) {
+            if (index.insert(batch[i])) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Helper function for the addAll of every SpellIndex. Merges the spells of an index, in order, with a batch that
+     * sortBatch sorted - a spell of the batch that the index already has is dropped.
+     * 
+     * @param existing the spells of the index, in ascending order
+     * @param batch the sorted spells, without duplicates
+     * @param batchSize the number of spells at the start of the batch
+     * @param merged the array to merge into, at least as long as both together
+     * 
+     * @return returns the number of merged spells, at the start of merged
+     */
+    static int mergeBatch(Iterator<Spell> existing, Spell[] batch, int batchSize, Spell[] merged) {
+        Spell current = existing.hasNext() ? existing.next() : null;
+        int count = 0;
+        int i = 0;
+
+        while ((current != null) || (i < batchSize)) {
+            if ((current == null) || ((i < batchSize) && (compareSpells(batch[i], current) < 0))) {
+                merged[count++] = batch[i++];
+            } else {
+                if ((i < batchSize) && (compareSpells(batch[i], current) == 0)) { // already in the index
+                    i++;
+                }
+                merged[count++] = current;
+                current = existing.hasNext() ? existing.next() : null;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Helper function. Builds a perfectly balanced AVL Tree from sorted spells, in O(n) - the middle spell is the root,
+     * and each half is built the same way. The recursion is only O(log n) deep.
+     * 
+     * @param sorted the spells, sorted by compareSpells and without duplicates
+     * @param from the index of the first spell of the subtree
+     * @param to the index of the last spell of the subtree
+     * 
+     * @return returns the root of the built subtree, null if it's empty
+     */
+    private Node build(Spell[] sorted, int from, int to) {
+        if (from > to) {
+            return null;
+        }
+
+        int middle = (from + to) >>> 1;
+        Node node = new Node(sorted[middle]);
+        node.left = build(sorted, from, middle - 1);
+        node.right = build(sorted, middle + 1, to);
+        node.height = Math.max(getNodeHeight(node.left), getNodeHeight(node.right)) + 1;
+        node.subtreeSize = to - from + 1;
         return node;
     }
 
+    /**
+     * Compares two spells by the tree's order - power level first, then name.
+     * 
+     * @param a Spell class instance
+     * @param b Spell class instance
+     * 
+     * @return returns a negative number, 0 or a positive number if a is lower, equal or higher than b
+     */
+    static int compareSpells(Spell a, Spell b) {
+        if (a.getPowerLevel() != b.getPowerLevel()) {
+            return a.getPowerLevel() < b.getPowerLevel() ? -1 : 1;
+        }
+        return a.getName().compareTo(b.getName());
+    }
+
+    /**
+     * Helper function. Compares a (powerLevel, name) key with the key of a node - power level first, then name.
+     * The precomputed name prefixes settle the name comparison unless the names share their first chars.
+     * 
+     * @param powerLevel the power level of the key
+     * @param name the name of the key
+     * @param prefix the name prefix of the key, namePrefix(name)
+     * @param node Node class instance
+     * 
+     * @return returns a negative number, 0 or a positive number if the key is lower, equal or higher than the node's
+     */
+    private static int compare(int powerLevel, String name, long prefix, Node node) {
+        int nodePowerLevel = node.spell.getPowerLevel();
+
+        if (powerLevel != nodePowerLevel) {
+            return powerLevel < nodePowerLevel ? -1 : 1;
+        }
+        if (prefix != node.namePrefix) {
+            return Long.compareUnsigned(prefix, node.namePrefix);
+        }
+        return name.compareTo(node.spell.getName());
+    }
+
+    /**
+     * Helper function. Packs the first 4 chars of a name into a long (missing chars are 0), so that comparing two
+     * prefixes as unsigned longs agrees with String.compareTo whenever the prefixes differ.
+     * 
+     * @param name the name of a spell
+     * 
+     * @return returns the packed prefix of the name
+     */
+    static long namePrefix(String name) {
+        long prefix = 0;
+        for (int idx = 0; idx < 4; idx++) {
+            prefix = (prefix << 16) | (idx < name.length() ? name.charAt(idx) : 0);
+        }
+        return prefix;
+    }
+
     /**
      * Helper function used to determine the balance of a node. 
      * Calculate the height difference between the right child and the left child of the node, while preventing null pointer exception.
@@ -197,6 +711,71 @@ public class AVLTree {
         return node.height;
     }
 
+    /**
+     * Helper-getter function, gets the number of spells in the subtree of node and prevent null pointer exception
+     * 
+     * @param node Node calss instance
+     * 
+     * @return return the number of spells in the subtree rooted at node, 0 for null
+     */
+    private int getSubtreeSize(Node node) {
+        if (node == null) {
+            return 0;
+        }
+        return node.subtreeSize;
+    }
+
+    /**
+     * Returns the rank of a power level - the number of spells with a lower power level. O(log n).
+     * 
+     * @param powerLevel the power level to rank
+     * 
+     * @return Returns the number of spells whose power level is lower than powerLevel.
+     */
+    public int rank(int powerLevel) {
+        int result = 0;
+        Node node = this.root;
+
+        while (node != null) {
+            if (node.spell.getPowerLevel() < powerLevel) { // node and its left subtree are all lower
+                result += getSubtreeSize(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the spell with the given rank - the i-th lowest power level, counting from 0. O(log n).
+     * The k-th strongest spell (k = 1 for the strongest) is select(getSize() - k).
+     * 
+     * @param i the rank of the spell, in [0, getSize())
+     * 
+     * @return Returns the spell with exactly i spells below it, or null if i is out of range.
+     */
+    public Spell select(int i) {
+        Node node = this.root;
+
+        if (i < 0 || i >= this.size) {
+            return null;
+        }
+
+        while (node != null) {
+            int leftSize = getSubtreeSize(node.left);
+            if (i < leftSize) {
+                node = node.left;
+            } else if (i == leftSize) {
+                return node.spell;
+            } else {
+                i -= leftSize + 1; // skip node and its left subtree
+                node = node.right;
+            }
+        }
+        return null;
+    }
+
     /**
      * Helper function used to keep the AVL Tree balanced.
      * Left rotates on a given node k2.
@@ -214,6 +793,8 @@ public class AVLTree {
 
         k2.height = Math.max(getNodeHeight(k2.left), getNodeHeight(k2.right)) + 1;
         k1.height = Math.max(getNodeHeight(k1.left), getNodeHeight(k1.right)) + 1;
+        k2.subtreeSize = getSubtreeSize(k2.left) + getSubtreeSize(k2.right) + 1;
+        k1.subtreeSize = getSubtreeSize(k1.left) + getSubtreeSize(k1.right) + 1;
 
         // System.out.println("Rotated right!"); 
 
@@ -237,6 +818,8 @@ public class AVLTree {
 
         k2.height = Math.max(getNodeHeight(k2.left), getNodeHeight(k2.right)) + 1;
         k1.height = Math.max(getNodeHeight(k1.left), getNodeHeight(k1.right)) + 1;
+        k2.subtreeSize = getSubtreeSize(k2.left) + getSubtreeSize(k2.right) + 1;
+        k1.subtreeSize = getSubtreeSize(k1.left) + getSubtreeSize(k1.right) + 1;
 
         // System.out.println("Rotated left!"); 
 
@@ -244,82 +827,116 @@ public class AVLTree {
     }
 
     /**
-     * Returns list of top-k spells in the AVL Tree.
+     * Returns a lazy iterator over the spells of the AVL Tree, from the highest power level to the lowest
+     * (spells of the same power level in descending name order).
+     * A single reverse in-order traversal - the first spell costs O(log n), every following one O(1) amortized,
+     * so reading k spells costs O(log n + k). The tree must not be modified while iterating.
      * 
-     * @param k The number of top spells to return
-     * 
-     * @return Returns list of top-k spells in the AVL Tree.
+     * @return Returns an iterator over the spells in descending power level order.
      */
-    public List<Spell> getTopK(int k) {
-        List<Spell> result = new ArrayList<Spell>();
-        Node node = getTopOne(this.root);
-        Node tmp;
-    
-        for (int i = 0; i<k; i++){
-            if (node == null) {
-                return result;
-            }
-            
-            result.add(node.spell);
-            // System.out.println("Added: "+ node.spell.getPowerLevel()); // mute this
-            tmp = getPredecessor(this.root, node.spell.getPowerLevel(), null);
-            if (tmp == node) {
-                return result;
-            } else {
-                node = tmp;
-            }
-        }
-        return result;
+    public Iterator<Spell> descendingIterator() {
+        return new DescendingIterator();
     }
 
     /**
-     * Helper function. Recursively finds and returns the node with the max power level spell in the AVL Tree rooted under the given node.
+     * Returns a lazy iterator over the spells whose power level is in [lo, hi], from the lowest power level to the highest
+     * (spells of the same power level in ascending name order).
+     * The first spell costs O(log n) and every following one O(1) amortized, so m spells cost O(log n + m), and nothing
+     * is copied. The tree must not be modified while iterating.
      * 
-     * @param node Node class instance. The root of the AVL Tree/Subtree.
+     * @param lo the lowest power level to return (inclusive)
+     * @param hi the highest power level to return (inclusive)
      * 
-     * @return returns the node with the max power level spell in the AVL Tree rooted under the given node.
+     * @return Returns an iterator over the spells in the range in ascending power level order.
      */
-    private Node getTopOne(Node node) {
-        Node nextNode = node.right;
+    public Iterator<Spell> rangeIterator(int lo, int hi) {
+        return new RangeIterator(lo, hi);
+    }
 
-        if (nextNode == null) {
-            return node;
-        } else {
-            return getTopOne(nextNode);
+    /**
+     * Bounded in-order traversal with an explicit stack. The stack holds the nodes (with power level >= lo) whose
+     * spell and right subtree were not visited yet; the traversal ends at the first spell above hi.
+     */
+    private class RangeIterator implements Iterator<Spell> {
+        private Node[] stack;
+        private int top;
+        private int hi;
+
+        private RangeIterator(int lo, int hi) {
+            Node node = root; // read once, the stack is sized by this version's height
+            this.stack = new Node[getNodeHeight(node) + 1];
+            this.top = 0;
+            this.hi = hi;
+
+            // the path to the lowest spell >= lo, keeping only the nodes that are in the range's side
+            while (node != null) {
+                if (node.spell.getPowerLevel() >= lo) {
+                    this.stack[this.top++] = node;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
         }
 
+        @Override
+        public boolean hasNext() {
+            return (this.top > 0) && (this.stack[this.top - 1].spell.getPowerLevel() <= this.hi);
+        }
+
+        @Override
+        public Spell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node node = this.stack[--this.top];
+            for (Node next = node.right; next != null; next = next.left) { // the successors of node that are below it
+                this.stack[this.top++] = next;
+            }
+            return node.spell;
+        }
     }
 
     /**
-     * Helper function. Recursively finds and returns the predecessor of a given node.
-     * 
-     * @param node Node class instance. The root of the AVL Tree/Subtree.
-     * @param powerLevel power level of the node that we're looking for its predecessor 
-     * @param pred Node class instance. The predecessor node that was found up to the specific iteration. At the end it is the predecessor itself.
-     * 
-     * @return returns the predecessor (Node) of a given node (predecessor of the node with the given power level).
+     * Reverse in-order traversal with an explicit stack. The stack holds the nodes whose spell and left subtree
+     * were not visited yet - at most one root to leaf path, so the tree height bounds its size.
      */
-    private Node getPredecessor(Node node, int powerLevel, Node pred) { // powerLevel is needed in order to not lose the node that we're looking for its predecessor
-        
-        if (node == null) {
-            return pred;
+    private class DescendingIterator implements Iterator<Spell> {
+        private Node[] stack;
+        private int top;
+
+        private DescendingIterator() {
+            Node node = root; // read once, the stack is sized by this version's height
+            this.stack = new Node[getNodeHeight(node) + 1];
+            this.top = 0;
+            pushRightPath(node);
         }
-    
-        if (node.spell.getPowerLevel() == powerLevel) {
-            if (node.left != null) {
-                pred = getTopOne(node.left);
-            } 
-            return pred;
+
+        /**
+         * Pushes a node and its right descendants - the path to the max of its subtree.
+         * 
+         * @param node Node class instance. The root of the subtree.
+         */
+        private void pushRightPath(Node node) {
+            while (node != null) {
+                this.stack[this.top++] = node;
+                node = node.right;
+            }
         }
 
-        if (node.spell.getPowerLevel() > powerLevel) {
-            return getPredecessor(node.left, powerLevel, pred);
+        @Override
+        public boolean hasNext() {
+            return this.top > 0;
+        }
 
-        } else {
-            pred = node;
-            return getPredecessor(node.right, powerLevel, pred);
+        @Override
+        public Spell next() {
+            if (this.top == 0) {
+                throw new NoSuchElementException();
+            }
+            Node node = this.stack[--this.top];
+            pushRightPath(node.left); // the predecessors of node that are below it
+            return node.spell;
         }
     }
 }
-
-
@@ -0,0 +1,667 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * B+ tree of the spells of a single category, in the same order as AVLTree (power level, then name).
+ * The spells sit in leaves of up to LEAF_CAPACITY entries, with the power levels and name prefixes in primitive arrays
+ * next to them, so a search compares within one or two cache lines per level instead of chasing a pointer per spell,
+ * and the tree is only a few levels high. The leaves are linked both ways, so a top-k or range scan walks along them
+ * without going back up the tree. Inner nodes keep the number of spells under each child for rank and select.
+ * A remove never merges nodes - a leaf is only unlinked once it's empty - which keeps removes cheap; the tree is
+ * compacted again by addAll's rebuild. It does refresh the separators that were the removed spell, so inner nodes
+ * never keep a removed spell from being collected.
+ */
+public class BPlusTree implements SpellIndex {
+
+    static final int LEAF_CAPACITY = 64;
+    static final int INNER_CAPACITY = 64;
+
+    private Node root;
+    private Leaf first; // the lowest leaf
+    private Leaf last; // the highest leaf
+    private int size;
+    private int levels; // 1 while the root is a leaf
+    private String category;
+
+    // state of the current insert or remove, set on the way down and read on the way back up
+    private boolean inserted;
+    private Spell removed;
+
+    /**
+     * A node - a leaf or an inner node.
+     */
+    private abstract static class Node {
+        int count; // entries of a leaf, children of an inner node
+    }
+
+    /**
+     * A leaf - up to LEAF_CAPACITY spells in ascending order, with their power levels and name prefixes.
+     */
+    private static final class Leaf extends Node {
+        final int[] power = new int[LEAF_CAPACITY];
+        final long[] prefix = new long[LEAF_CAPACITY];
+        final Spell[] spells = new Spell[LEAF_CAPACITY];
+        Leaf prev;
+        Leaf next;
+    }
+
+    /**
+     * An inner node - up to INNER_CAPACITY children. keys[i] (i > 0) separates children i - 1 and i: every spell of
+     * child i - 1 is below it, every spell of child i is at least it. keys[0] is unused.
+     */
+    private static final class Inner extends Node {
+        final int[] power = new int[INNER_CAPACITY];
+        final long[] prefix = new long[INNER_CAPACITY];
+        final Spell[] keys = new Spell[INNER_CAPACITY];
+        final Node[] children = new Node[INNER_CAPACITY];
+        final int[] sizes = new int[INNER_CAPACITY]; // number of spells under each child
+    }
+
+    /**
+     * Constructor. Creates an empty tree for a category.
+     *
+     * @param category the category that the tree represents
+     */
+    public BPlusTree(String category) {
+        this.category = category;
+        clear();
+    }
+
+    @Override
+    public String getCategory() {
+        return this.category;
+    }
+
+    @Override
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Getter, returns the height of the tree - the number of inner levels above the leaves.
+     *
+     * @return returns the height of the tree, 0 while it's a single leaf
+     */
+    public int getTreeHeight() {
+        return this.levels - 1;
+    }
+
+    @Override
+    public Spell search(String spellName, int powerLevel) {
+        long namePrefix = AVLTree.namePrefix(spellName);
+        Node node = this.root;
+
+        while (node instanceof Inner) {
+            Inner inner = (Inner)node;
+            node = inner.children[childIndex(inner, powerLevel, spellName, namePrefix)];
+        }
+        Leaf leaf = (Leaf)node;
+        int position = leafSearch(leaf, powerLevel, spellName, namePrefix);
+        return position >= 0 ? leaf.spells[position] : null;
+    }
+
+    @Override
+    public boolean insert(Spell spell) {
+        this.inserted = false;
+        Node split = insert(this.root, spell, spell.getPowerLevel(), spell.getName(), AVLTree.namePrefix(spell.getName()));
+
+        if (split != null) { // the root was split - a new root above both halves
+            Inner newRoot = new Inner();
+            newRoot.children[0] = this.root;
+            newRoot.sizes[0] = sizeOf(this.root);
+            setChild(newRoot, 1, split, sizeOf(split));
+            setKey(newRoot, 1, lowest(split));
+            newRoot.count = 2;
+            this.root = newRoot;
+            this.levels++;
+        }
+        if (this.inserted) {
+            this.size++;
+        }
+        return this.inserted;
+    }
+
+    @Override
+    public Spell remove(String spellName, int powerLevel) {
+        this.removed = null;
+        remove(this.root, powerLevel, spellName, AVLTree.namePrefix(spellName));
+
+        if (this.removed == null) {
+            return null;
+        }
+        this.size--;
+        if (this.size == 0) {
+            clear();
+        }
+        while ((this.root instanceof Inner) && (this.root.count == 1)) { // drop a root with a single child
+            this.root = ((Inner)this.root).children[0];
+            this.levels--;
+        }
+        return this.removed;
+    }
+
+    /**
+     * Inserts many spells at once: into an empty tree, or when the batch is large compared to the tree, the spells are
+     * sorted, merged with the tree's and the tree is rebuilt bottom up from full leaves in O(n + m); a small batch is
+     * inserted one by one.
+     */
+    @Override
+    public int addAll(Collection<Spell> spells) {
+        Spell[] batch = spells.toArray(new Spell[0]);
+        int batchSize = AVLTree.sortBatch(batch);
+
+        if (batchSize == 0) {
+            return 0;
+        }
+
+        if (AVLTree.insertsAreCheaper(this.size, batchSize)) {
+            return AVLTree.insertBatch(this, batch, batchSize);
+        }
+
+        Spell[] merged = new Spell[this.size + batchSize];
+        int count = AVLTree.mergeBatch(rangeIterator(Integer.MIN_VALUE, Integer.MAX_VALUE), batch, batchSize, merged);
+        int added = count - this.size;
+        build(merged, count);
+        return added;
+    }
+
+    @Override
+    public List<Spell> getTopK(int k) {
+        List<Spell> result = new ArrayList<Spell>(Math.max(0, Math.min(k, this.size)));
+
+        for (Leaf leaf = this.last; (leaf != null) && (result.size() < k); leaf = leaf.prev) {
+            for (int i = leaf.count - 1; (i >= 0) && (result.size() < k); i--) {
+                result.add(leaf.spells[i]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Spell> descendingIterator() {
+        return new Iterator<Spell>() {
+            private Leaf leaf = last;
+            private int position = last.count - 1;
+
+            @Override
+            public boolean hasNext() {
+                return this.position >= 0;
+            }
+
+            @Override
+            public Spell next() {
+                if (this.position < 0) {
+                    throw new NoSuchElementException();
+                }
+                Spell spell = this.leaf.spells[this.position--];
+                if ((this.position < 0) && (this.leaf.prev != null)) {
+                    this.leaf = this.leaf.prev;
+                    this.position = this.leaf.count - 1;
+                }
+                return spell;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Spell> rangeIterator(int lo, int hi) {
+        Node node = this.root;
+
+        while (node instanceof Inner) { // down to the leaf that holds the first spell >= lo (or the leaf before it)
+            Inner inner = (Inner)node;
+            node = inner.children[lowerChildIndex(inner, lo)];
+        }
+        Leaf start = (Leaf)node;
+        int startPosition = lowerLeafPosition(start, lo);
+
+        return new Iterator<Spell>() {
+            private Leaf leaf = start;
+            private int position = startPosition;
+
+            {
+                skipEmpty();
+            }
+
+            private void skipEmpty() {
+                while ((this.leaf != null) && (this.position == this.leaf.count)) {
+                    this.leaf = this.leaf.next;
+                    this.position = 0;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return (this.leaf != null) && (this.leaf.power[this.position] <= hi);
+            }
+
+            @Override
+            public Spell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Spell spell = this.leaf.spells[this.position++];
+                skipEmpty();
+                return spell;
+            }
+        };
+    }
+
+    @Override
+    public int rank(int powerLevel) {
+        int result = 0;
+        Node node = this.root;
+
+        while (node instanceof Inner) {
+            Inner inner = (Inner)node;
+            int child = lowerChildIndex(inner, powerLevel);
+            for (int i = 0; i < child; i++) { // the children before it are all below powerLevel
+                result += inner.sizes[i];
+            }
+            node = inner.children[child];
+        }
+        return result + lowerLeafPosition((Leaf)node, powerLevel);
+    }
+
+    @Override
+    public Spell select(int i) {
+        if (i < 0 || i >= this.size) {
+            return null;
+        }
+
+        Node node = this.root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner)node;
+            int child = 0;
+            while (i >= inner.sizes[child]) {
+                i -= inner.sizes[child++];
+            }
+            node = inner.children[child];
+        }
+        return ((Leaf)node).spells[i];
+    }
+
+    /**
+     * Helper function. Inserts a spell into a subtree, splitting the nodes that overflow.
+     *
+     * @return returns the new right sibling of node if node was split, else null
+     */
+    private Node insert(Node node, Spell spell, int powerLevel, String name, long namePrefix) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf)node;
+            int position = leafSearch(leaf, powerLevel, name, namePrefix);
+            if (position >= 0) {
+                return null; // won't insert duplicates
+            }
+            this.inserted = true;
+            position = -position - 1;
+            if (leaf.count < LEAF_CAPACITY) {
+                insertIntoLeaf(leaf, position, spell, namePrefix);
+                return null;
+            }
+
+            Leaf right = new Leaf(); // split in half, then insert into the half the spell belongs to
+            int half = LEAF_CAPACITY / 2;
+            System.arraycopy(leaf.power, half, right.power, 0, LEAF_CAPACITY - half);
+            System.arraycopy(leaf.prefix, half, right.prefix, 0, LEAF_CAPACITY - half);
+            System.arraycopy(leaf.spells, half, right.spells, 0, LEAF_CAPACITY - half);
+            Arrays.fill(leaf.spells, half, LEAF_CAPACITY, null);
+            right.count = LEAF_CAPACITY - half;
+            leaf.count = half;
+            right.next = leaf.next;
+            right.prev = leaf;
+            if (leaf.next != null) {
+                leaf.next.prev = right;
+            } else {
+                this.last = right;
+            }
+            leaf.next = right;
+            if (position <= half) {
+                insertIntoLeaf(leaf, position, spell, namePrefix);
+            } else {
+                insertIntoLeaf(right, position - half, spell, namePrefix);
+            }
+            return right;
+        }
+
+        Inner inner = (Inner)node;
+        int child = childIndex(inner, powerLevel, name, namePrefix);
+        Node split = insert(inner.children[child], spell, powerLevel, name, namePrefix);
+        if (!this.inserted) {
+            return null;
+        }
+        if (split == null) {
+            inner.sizes[child]++;
+            return null;
+        }
+
+        inner.sizes[child] = sizeOf(inner.children[child]);
+        if (inner.count < INNER_CAPACITY) {
+            insertIntoInner(inner, child + 1, split);
+            return null;
+        }
+
+        Inner right = new Inner(); // split in half, then add the new child to the half it belongs to
+        int half = INNER_CAPACITY / 2;
+        for (int i = half; i < INNER_CAPACITY; i++) {
+            setChild(right, i - half, inner.children[i], inner.sizes[i]);
+            right.keys[i - half] = inner.keys[i];
+            right.power[i - half] = inner.power[i];
+            right.prefix[i - half] = inner.prefix[i];
+            inner.children[i] = null;
+            inner.keys[i] = null;
+        }
+        right.count = INNER_CAPACITY - half;
+        inner.count = half;
+        if (child + 1 <= half) {
+            insertIntoInner(inner, child + 1, split);
+        } else {
+            insertIntoInner(right, child + 1 - half, split);
+        }
+        return right;
+    }
+
+    /**
+     * Helper function. Removes a spell from a subtree (sets removed). Empty nodes are unlinked, nothing is merged.
+     * On the way back up, a separator that is the removed spell is replaced by the new lowest spell of its child - only
+     * the separator of the child it was removed from can be that spell, since the separators follow the spells' order.
+     *
+     * @return returns true if node is empty after the remove
+     */
+    private boolean remove(Node node, int powerLevel, String name, long namePrefix) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf)node;
+            int position = leafSearch(leaf, powerLevel, name, namePrefix);
+            if (position < 0) {
+                return false;
+            }
+            this.removed = leaf.spells[position];
+            int moved = leaf.count - position - 1;
+            System.arraycopy(leaf.power, position + 1, leaf.power, position, moved);
+            System.arraycopy(leaf.prefix, position + 1, leaf.prefix, position, moved);
+            System.arraycopy(leaf.spells, position + 1, leaf.spells, position, moved);
+            leaf.spells[--leaf.count] = null;
+            if ((leaf.count == 0) && (leaf != this.root)) { // unlink the empty leaf
+                if (leaf.prev != null) {
+                    leaf.prev.next = leaf.next;
+                } else {
+                    this.first = leaf.next;
+                }
+                if (leaf.next != null) {
+                    leaf.next.prev = leaf.prev;
+                } else {
+                    this.last = leaf.prev;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        Inner inner = (Inner)node;
+        int child = childIndex(inner, powerLevel, name, namePrefix);
+        boolean empty = remove(inner.children[child], powerLevel, name, namePrefix);
+        if (this.removed == null) {
+            return false;
+        }
+        inner.sizes[child]--;
+        if (!empty) {
+            if (inner.keys[child] == this.removed) { // no separator keeps a removed spell reachable
+                setKey(inner, child, lowest(inner.children[child]));
+            }
+            return false;
+        }
+
+        for (int i = child; i < inner.count - 1; i++) { // drop the empty child, its separator goes with it
+            inner.children[i] = inner.children[i + 1];
+            inner.sizes[i] = inner.sizes[i + 1];
+            inner.keys[i] = inner.keys[i + 1];
+            inner.power[i] = inner.power[i + 1];
+            inner.prefix[i] = inner.prefix[i + 1];
+        }
+        inner.count--;
+        inner.children[inner.count] = null;
+        inner.keys[inner.count] = null;
+        return inner.count == 0;
+    }
+
+    /**
+     * Helper function. Rebuilds the tree bottom up from sorted spells - full leaves, then full inner levels.
+     *
+     * @param sorted the spells, sorted by AVLTree.compareSpells and without duplicates
+     * @param count the number of spells
+     */
+    private void build(Spell[] sorted, int count) {
+        int leafCount = (count + LEAF_CAPACITY - 1) / LEAF_CAPACITY;
+        Node[] level = new Node[leafCount];
+        Spell[] mins = new Spell[leafCount]; // the lowest spell under each node of the level
+        Leaf prev = null;
+
+        for (int l = 0; l < leafCount; l++) { // spread the spells evenly over the leaves
+            int from = (int)((long)count * l / leafCount);
+            int to = (int)((long)count * (l + 1) / leafCount);
+            Leaf leaf = new Leaf();
+            for (int i = from; i < to; i++) {
+                insertIntoLeaf(leaf, i - from, sorted[i], AVLTree.namePrefix(sorted[i].getName()));
+            }
+            leaf.prev = prev;
+            if (prev != null) {
+                prev.next = leaf;
+            }
+            prev = leaf;
+            level[l] = leaf;
+            mins[l] = sorted[from];
+        }
+        this.first = (Leaf)level[0];
+        this.last = prev;
+        this.levels = 1;
+
+        while (level.length > 1) {
+            int innerCount = (level.length + INNER_CAPACITY - 1) / INNER_CAPACITY;
+            Node[] parents = new Node[innerCount];
+            Spell[] parentMins = new Spell[innerCount];
+            for (int p = 0; p < innerCount; p++) {
+                int from = (int)((long)level.length * p / innerCount);
+                int to = (int)((long)level.length * (p + 1) / innerCount);
+                Inner inner = new Inner();
+                for (int i = from; i < to; i++) {
+                    setChild(inner, i - from, level[i], sizeOf(level[i]));
+                    setKey(inner, i - from, mins[i]);
+                }
+                inner.count = to - from;
+                parents[p] = inner;
+                parentMins[p] = mins[from];
+            }
+            level = parents;
+            mins = parentMins;
+            this.levels++;
+        }
+        this.root = level[0];
+        this.size = count;
+    }
+
+    /**
+     * Helper function. Makes the tree a single empty leaf.
+     */
+    private void clear() {
+        Leaf leaf = new Leaf();
+        this.root = leaf;
+        this.first = leaf;
+        this.last = leaf;
+        this.size = 0;
+        this.levels = 1;
+    }
+
+    /**
+     * Helper function. Finds the child of an inner node that a key belongs to - the last child whose separator is
+     * not above the key, by binary search.
+     */
+    private static int childIndex(Inner inner, int powerLevel, String name, long namePrefix) {
+        int lo = 1;
+        int hi = inner.count - 1;
+        int result = 0;
+
+        while (lo <= hi) {
+            int middle = (lo + hi) >>> 1;
+            if (compare(powerLevel, name, namePrefix, inner.power[middle], inner.prefix[middle], inner.keys[middle]) >= 0) {
+                result = middle;
+                lo = middle + 1;
+            } else {
+                hi = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Helper function. Finds the child of an inner node where the spells of a power level (and above) start - the
+     * last child whose separator's power level is below it. Every child before it is entirely below the power level.
+     */
+    private static int lowerChildIndex(Inner inner, int powerLevel) {
+        int lo = 1;
+        int hi = inner.count - 1;
+        int result = 0;
+
+        while (lo <= hi) {
+            int middle = (lo + hi) >>> 1;
+            if (inner.power[middle] < powerLevel) {
+                result = middle;
+                lo = middle + 1;
+            } else {
+                hi = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Helper function. Returns the position of the first spell of a leaf with at least a power level - the number of
+     * spells of the leaf below it.
+     */
+    private static int lowerLeafPosition(Leaf leaf, int powerLevel) {
+        int lo = 0;
+        int hi = leaf.count;
+
+        while (lo < hi) {
+            int middle = (lo + hi) >>> 1;
+            if (leaf.power[middle] < powerLevel) {
+                lo = middle + 1;
+            } else {
+                hi = middle;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Helper function. Binary searches a leaf for a key.
+     *
+     * @return returns the position of the key, or (-(insertion point) - 1) if it's not in the leaf
+     */
+    private static int leafSearch(Leaf leaf, int powerLevel, String name, long namePrefix) {
+        int lo = 0;
+        int hi = leaf.count - 1;
+
+        while (lo <= hi) {
+            int middle = (lo + hi) >>> 1;
+            int cmp = compare(powerLevel, name, namePrefix, leaf.power[middle], leaf.prefix[middle], leaf.spells[middle]);
+            if (cmp > 0) {
+                lo = middle + 1;
+            } else if (cmp < 0) {
+                hi = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -lo - 1;
+    }
+
+    /**
+     * Helper function. Compares a (powerLevel, name) key with a stored key, like AVLTree.compare - the spell is only
+     * read when the power levels and the name prefixes are equal.
+     */
+    private static int compare(int powerLevel, String name, long namePrefix, int otherPower, long otherPrefix, Spell other) {
+        if (powerLevel != otherPower) {
+            return powerLevel < otherPower ? -1 : 1;
+        }
+        if (namePrefix != otherPrefix) {
+            return Long.compareUnsigned(namePrefix, otherPrefix);
+        }
+        return name.compareTo(other.getName());
+    }
+
+    /**
+     * Helper function. Inserts a spell at a position of a leaf that has room.
+     */
+    private static void insertIntoLeaf(Leaf leaf, int position, Spell spell, long namePrefix) {
+        int moved = leaf.count - position;
+        System.arraycopy(leaf.power, position, leaf.power, position + 1, moved);
+        System.arraycopy(leaf.prefix, position, leaf.prefix, position + 1, moved);
+        System.arraycopy(leaf.spells, position, leaf.spells, position + 1, moved);
+        leaf.power[position] = spell.getPowerLevel();
+        leaf.prefix[position] = namePrefix;
+        leaf.spells[position] = spell;
+        leaf.count++;
+    }
+
+    /**
+     * Helper function. Inserts a new child (the right half of a split) at a position of an inner node that has room.
+     * Its separator is the lowest spell under it.
+     */
+    private static void insertIntoInner(Inner inner, int position, Node child) {
+        for (int i = inner.count; i > position; i--) {
+            inner.children[i] = inner.children[i - 1];
+            inner.sizes[i] = inner.sizes[i - 1];
+            inner.keys[i] = inner.keys[i - 1];
+            inner.power[i] = inner.power[i - 1];
+            inner.prefix[i] = inner.prefix[i - 1];
+        }
+        setChild(inner, position, child, sizeOf(child));
+        setKey(inner, position, lowest(child));
+        inner.count++;
+    }
+
+    /**
+     * Helper function. Puts a child and its number of spells at a position of an inner node.
+     */
+    private static void setChild(Inner inner, int position, Node child, int size) {
+        inner.children[position] = child;
+        inner.sizes[position] = size;
+    }
+
+    /**
+     * Helper function. Puts a separator at a position of an inner node, with its power level and name prefix.
+     */
+    private static void setKey(Inner inner, int position, Spell key) {
+        inner.keys[position] = key;
+        inner.power[position] = key.getPowerLevel();
+        inner.prefix[position] = AVLTree.namePrefix(key.getName());
+    }
+
+    /**
+     * Helper function. Returns the lowest spell under a node, by going down its first children.
+     */
+    private static Spell lowest(Node node) {
+        while (node instanceof Inner) {
+            node = ((Inner)node).children[0];
+        }
+        return ((Leaf)node).spells[0];
+    }
+
+    /**
+     * Helper function. Returns the number of spells under a node.
+     */
+    private static int sizeOf(Node node) {
+        if (node instanceof Leaf) {
+            return node.count;
+        }
+        Inner inner = (Inner)node;
+        int size = 0;
+        for (int i = 0; i < inner.count; i++) {
+            size += inner.sizes[i];
+        }
+        return size;
+    }
+}
@@ -0,0 +1,464 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micro-benchmark suite for the tables and the tree. Every operation is measured over the cross product of the
+ * parameters below, with warmup rounds before the measured ones, and reports time, allocation and GC per operation.
+ *
+ * Usage: java Benchmark [sizes=1000,100000] [loadFactors=0.5,0.75] [categories=10,100] [distributions=uniform,zipf]
+ *                       [threads=1,4] [warmup=3] [rounds=5] [filter=substring of a benchmark name]
+ *
+ * The operations:
+ *   DoubleHashTable.put, DoubleHashTable.getCastWords (hit), DoubleHashTable.getCastWords (miss) - sizes x loadFactors x distributions
+ *   HashAVLSpellTable.addSpell, .searchSpell, .getNumberSpells, .getTopK (with and without the top-k cache), .getGlobalTopK
+ *   - sizes x categories x distributions
+ *   AVLTree.insert, PooledAVLTree.insert, BPlusTree.insert - sizes x distributions
+ *   ConcurrentHashAVLSpellTable.mixed (90% searchSpell/getTopK, 10% addSpell) - sizes x categories x distributions x threads,
+ *   ns/op is wall time divided by the operations of all the threads, so it drops as the reads scale over the cores
+ * The distribution picks the keys that are looked up (and the categories of the spells) - uniform, or Zipfian (s = 1),
+ * where a few keys take most of the traffic.
+ */
+public class Benchmark {
+    private static final int TOP_K = 10;
+    private static final int OPS_PER_ROUND = 100000; // lookups per measured round
+    private static final int GLOBAL_OPS_PER_ROUND = 1000; // cross-category top-k calls per measured round, each visits every category
+    private static final int WRITE_PERCENT = 10; // share of addSpell in the concurrent mixed load
+
+    private static volatile long sink; // consumes results, so the JIT can't drop the measured work
+
+    private static int warmup = 3;
+    private static int rounds = 5;
+    private static String filter = "";
+
+    /**
+     * An operation to measure. Returns something derived from its work, which is fed to the sink.
+     */
+    private interface Operation {
+        long run();
+    }
+
+    /**
+     * Picks indexes in [0, n) - uniformly, or with a Zipfian distribution over a precomputed cumulative distribution.
+     */
+    private static class KeyGenerator {
+        private Random random;
+        private double[] cdf; // null for uniform
+        private int n;
+
+        private KeyGenerator(String distribution, int n, long seed) {
+            this.random = new Random(seed);
+            this.n = n;
+            if (distribution.equals("zipf")) {
+                this.cdf = new double[n];
+                double sum = 0;
+                for (int rank = 0; rank < n; rank++) {
+                    sum += 1.0 / (rank + 1);
+                    this.cdf[rank] = sum;
+                }
+                for (int rank = 0; rank < n; rank++) {
+                    this.cdf[rank] /= sum;
+                }
+            } else if (!distribution.equals("uniform")) {
+                throw new IllegalArgumentException("Unknown distribution: " + distribution);
+            }
+        }
+
+        private int next() {
+            if (this.cdf == null) {
+                return this.random.nextInt(this.n);
+            }
+            int index = Arrays.binarySearch(this.cdf, this.random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index, this.n - 1);
+        }
+    }
+
+    /**
+     * Runs the whole suite.
+     *
+     * @param args name=value parameters, see the class documentation
+     */
+    public static void main(String[] args) {
+        int[] sizes = {1000, 100000};
+        double[] loadFactors = {0.5, 0.75};
+        int[] categories = {10, 100};
+        String[] distributions = {"uniform", "zipf"};
+        int[] threads = {1, 4};
+
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            String[] values = pair.length == 2 ? pair[1].split(",") : new String[0];
+            switch (pair[0]) {
+                case "sizes": sizes = Arrays.stream(values).mapToInt(Integer::parseInt).toArray(); break;
+                case "loadFactors": loadFactors = Arrays.stream(values).mapToDouble(Double::parseDouble).toArray(); break;
+                case "categories": categories = Arrays.stream(values).mapToInt(Integer::parseInt).toArray(); break;
+                case "distributions": distributions = values; break;
+                case "threads": threads = Arrays.stream(values).mapToInt(Integer::parseInt).toArray(); break;
+                case "warmup": warmup = Integer.parseInt(values[0]); break;
+                case "rounds": rounds = Integer.parseInt(values[0]); break;
+                case "filter": filter = values.length > 0 ? values[0] : ""; break;
+                default: throw new IllegalArgumentException("Unknown parameter: " + arg);
+            }
+        }
+
+        System.out.printf("%-48s %-34s %12s %12s %8s %8s%n", "benchmark", "params", "ns/op", "bytes/op", "gc/rnd", "gcms/rnd");
+        for (int size : sizes) {
+            for (String distribution : distributions) {
+                for (double loadFactor : loadFactors) {
+                    benchmarkDoubleHashTable(size, loadFactor, distribution);
+                }
+                for (int categoryCount : categories) {
+                    benchmarkHashAVLSpellTable(size, categoryCount, distribution);
+                    for (int threadCount : threads) {
+                        benchmarkConcurrentHashAVLSpellTable(size, categoryCount, distribution, threadCount);
+                    }
+                }
+                benchmarkAVLTree(size, distribution);
+            }
+        }
+    }
+
+    /**
+     * DoubleHashTable put and getCastWords (hits and misses), on a fixed-capacity table filled up to the load factor.
+     */
+    private static void benchmarkDoubleHashTable(int size, double loadFactor, String distribution) {
+        String params = "size=" + size + " lf=" + loadFactor + " " + distribution;
+        int capacity = DoubleHashTable.nextPrime((int)(size / loadFactor) + 1);
+        SpellSimple[] spells = new SpellSimple[size];
+        String[] names = new String[size];
+        String[] misses = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            names[i] = "spell-" + i;
+            spells[i] = new SpellSimple(names[i], "words of spell " + i);
+            misses[i] = "missing-" + i;
+        }
+
+        measure("DoubleHashTable.put", params, size, () -> {
+            DoubleHashTable table = new DoubleHashTable(capacity, SpellHasher.MIX);
+            for (SpellSimple spell : spells) {
+                table.put(spell);
+            }
+            return table.getSize();
+        });
+
+        DoubleHashTable table = new DoubleHashTable(capacity, SpellHasher.MIX);
+        for (SpellSimple spell : spells) {
+            table.put(spell);
+        }
+        String[] hits = lookupKeys(names, distribution);
+        String[] missKeys = lookupKeys(misses, distribution);
+
+        measure("DoubleHashTable.getCastWords(hit)", params, hits.length, () -> {
+            long found = 0;
+            for (String name : hits) {
+                found += table.getCastWords(name).length();
+            }
+            return found;
+        });
+        measure("DoubleHashTable.getCastWords(miss)", params, missKeys.length, () -> {
+            long found = 0;
+            for (String name : missKeys) {
+                found += table.getCastWords(name) == null ? 0 : 1;
+            }
+            return found;
+        });
+    }
+
+    /**
+     * HashAVLSpellTable addSpell, searchSpell, getNumberSpells, getTopK, load and SpellIngest, with spells spread over the categories.
+     */
+    private static void benchmarkHashAVLSpellTable(int size, int categoryCount, String distribution) {
+        String params = "size=" + size + " categories=" + categoryCount + " " + distribution;
+        Spell[] spells = createSpells(size, categoryCount, distribution);
+        String[] categoryNames = new String[categoryCount];
+
+        for (int c = 0; c < categoryCount; c++) {
+            categoryNames[c] = "category-" + c;
+        }
+
+        measure("HashAVLSpellTable.addSpell", params, size, () -> {
+            HashAVLSpellTable table = new HashAVLSpellTable(categoryCount);
+            for (Spell spell : spells) {
+                table.addSpell(spell);
+            }
+            return table.getNumberSpells();
+        });
+
+        HashAVLSpellTable table = new HashAVLSpellTable(categoryCount);
+        for (Spell spell : spells) {
+            table.addSpell(spell);
+        }
+        Spell[] targets = lookupKeys(spells, distribution);
+        String[] categoryKeys = lookupKeys(categoryNames, distribution);
+
+        measure("HashAVLSpellTable.searchSpell", params, targets.length, () -> {
+            long found = 0;
+            for (Spell spell : targets) {
+                found += table.searchSpell(spell.getCategory(), spell.getName(), spell.getPowerLevel()) == null ? 0 : 1;
+            }
+            return found;
+        });
+        measure("HashAVLSpellTable.getNumberSpells", params, categoryKeys.length, () -> {
+            long total = 0;
+            for (String category : categoryKeys) {
+                total += table.getNumberSpells(category);
+            }
+            return total;
+        });
+        measure("HashAVLSpellTable.getTopK(k=" + TOP_K + ")", params, categoryKeys.length, () -> {
+            long total = 0;
+            for (String category : categoryKeys) {
+                List<Spell> top = table.getTopK(category, TOP_K);
+                total += top == null ? 0 : top.size();
+            }
+            return total;
+        });
+
+        measure("HashAVLSpellTable.getGlobalTopK(k=" + TOP_K + ")", params, GLOBAL_OPS_PER_ROUND, () -> {
+            long total = 0;
+            for (int i = 0; i < GLOBAL_OPS_PER_ROUND; i++) {
+                total += table.getGlobalTopK(TOP_K).size();
+            }
+            return total;
+        });
+
+        try {
+            Path path = Files.createTempFile("benchmark", ".spat");
+            try {
+                table.save(path);
+                measure("HashAVLSpellTable.load", params, size, () -> {
+                    try {
+                        return HashAVLSpellTable.load(path).getNumberSpells();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } finally {
+                Files.delete(path);
+            }
+
+            Path catalog = Files.createTempFile("benchmark", ".csv");
+            try {
+                StringBuilder csv = new StringBuilder();
+                for (Spell spell : spells) {
+                    csv.append(spell.getName()).append(',').append(spell.getCategory()).append(',').append(spell.getPowerLevel()).append(',').append(spell.getWords()).append('\n');
+                }
+                Files.write(catalog, csv.toString().getBytes(StandardCharsets.UTF_8));
+                SpellIngest ingest = new SpellIngest();
+                measure("SpellIngest.ingest(csv)", params, size, () -> {
+                    HashAVLSpellTable ingested = new HashAVLSpellTable(categoryCount);
+                    try {
+                        return ingest.ingest(catalog, SpellIngest.Format.CSV, ingested).getSpells();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } finally {
+                Files.delete(catalog);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        table.enableTopKCache(TOP_K, TOP_K * categoryCount);
+        measure("HashAVLSpellTable.getTopK(k=" + TOP_K + ",cached)", params, categoryKeys.length, () -> {
+            long total = 0;
+            for (String category : categoryKeys) {
+                List<Spell> top = table.getTopK(category, TOP_K);
+                total += top == null ? 0 : top.size();
+            }
+            return total;
+        });
+    }
+
+    /**
+     * ConcurrentHashAVLSpellTable under a mixed load - every thread runs OPS_PER_ROUND / threads operations, mostly
+     * searchSpell and getTopK with WRITE_PERCENT of addSpell, on a table preloaded with half of the spells.
+     */
+    private static void benchmarkConcurrentHashAVLSpellTable(int size, int categoryCount, String distribution, int threadCount) {
+        String params = "size=" + size + " categories=" + categoryCount + " " + distribution + " threads=" + threadCount;
+        Spell[] spells = createSpells(size, categoryCount, distribution);
+        Spell[] targets = lookupKeys(spells, distribution);
+        int opsPerThread = OPS_PER_ROUND / threadCount;
+
+        measure("ConcurrentHashAVLSpellTable.mixed", params, opsPerThread * threadCount, () -> {
+            ConcurrentHashAVLSpellTable table = new ConcurrentHashAVLSpellTable(categoryCount);
+            for (int i = 0; i < size / 2; i++) {
+                table.addSpell(spells[i]);
+            }
+
+            AtomicLong found = new AtomicLong();
+            Thread[] workers = new Thread[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                int first = t * opsPerThread;
+                workers[t] = new Thread(() -> {
+                    long local = 0;
+                    for (int i = first; i < first + opsPerThread; i++) {
+                        Spell spell = targets[i];
+                        if (i % 100 < WRITE_PERCENT) {
+                            table.addSpell(spell);
+                        } else if (i % 2 == 0) {
+                            local += table.searchSpell(spell.getCategory(), spell.getName(), spell.getPowerLevel()) == null ? 0 : 1;
+                        } else {
+                            List<Spell> top = table.getTopK(spell.getCategory(), TOP_K);
+                            local += top == null ? 0 : top.size();
+                        }
+                    }
+                    found.addAndGet(local);
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return found.get() + table.getNumberSpells();
+        });
+    }
+
+    /**
+     * AVLTree insert, into a single category.
+     */
+    private static void benchmarkAVLTree(int size, String distribution) {
+        String params = "size=" + size + " " + distribution;
+        Spell[] spells = createSpells(size, 1, distribution);
+
+        measure("AVLTree.insert", params, size, () -> {
+            AVLTree tree = new AVLTree(spells[0]);
+            for (int i = 1; i < spells.length; i++) {
+                tree.insert(spells[i]);
+            }
+            return tree.getSize();
+        });
+        measure("PooledAVLTree.insert", params, size, () -> {
+            PooledAVLTree tree = new PooledAVLTree(spells[0].getCategory());
+            for (Spell spell : spells) {
+                tree.insert(spell);
+            }
+            return tree.getSize();
+        });
+        measure("BPlusTree.insert", params, size, () -> {
+            BPlusTree tree = new BPlusTree(spells[0].getCategory());
+            for (Spell spell : spells) {
+                tree.insert(spell);
+            }
+            return tree.getSize();
+        });
+    }
+
+    /**
+     * Creates spells with distinct power levels (in random order), spread over the categories by the distribution.
+     */
+    private static Spell[] createSpells(int size, int categoryCount, String distribution) {
+        KeyGenerator categories = new KeyGenerator(distribution, categoryCount, 7);
+        Random random = new Random(11);
+        int[] powers = new int[size];
+        Spell[] spells = new Spell[size];
+
+        for (int i = 0; i < size; i++) {
+            powers[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) { // shuffle, so the trees see random inserts
+            int j = random.nextInt(i + 1);
+            int tmp = powers[i];
+            powers[i] = powers[j];
+            powers[j] = tmp;
+        }
+        for (int i = 0; i < size; i++) {
+            spells[i] = new Spell("spell-" + i, "category-" + categories.next(), powers[i], "words of spell " + i);
+        }
+        return spells;
+    }
+
+    /**
+     * Draws OPS_PER_ROUND keys from the candidates, with the given distribution.
+     */
+    private static <T> T[] lookupKeys(T[] candidates, String distribution) {
+        KeyGenerator generator = new KeyGenerator(distribution, candidates.length, 13);
+        T[] keys = Arrays.copyOf(candidates, OPS_PER_ROUND);
+
+        for (int i = 0; i < OPS_PER_ROUND; i++) {
+            keys[i] = candidates[generator.next()];
+        }
+        return keys;
+    }
+
+    /**
+     * Runs the warmup rounds and the measured rounds of an operation and prints the averages per operation.
+     *
+     * @param name the benchmark name
+     * @param params the parameters description
+     * @param opsPerRound the number of operations a single run performs
+     * @param operation the operation to run
+     */
+    private static void measure(String name, String params, int opsPerRound, Operation operation) {
+        if (!name.contains(filter)) {
+            return;
+        }
+
+        for (int i = 0; i < warmup; i++) {
+            sink += operation.run();
+        }
+
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            sink += operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+
+        long ops = (long)rounds * opsPerRound;
+        System.out.printf("%-48s %-34s %12.1f %12.1f %8.2f %8.2f%n", name, params, (double)elapsed / ops,
+                allocated < 0 ? Double.NaN : (double)allocated / ops, (double)gcCount / rounds, (double)gcTime / rounds);
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or -1 if the JVM doesn't tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of collections so far, over all the collectors.
+     */
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(bean.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the time spent collecting so far in milliseconds, over all the collectors.
+     */
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(bean.getCollectionTime(), 0);
+        }
+        return time;
+    }
+}
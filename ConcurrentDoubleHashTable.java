@@ -0,0 +1,175 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A double hashing table of spells that is safe to use from several threads at once without any locks.
+ * Writers claim an empty slot with a compare-and-set, readers probe the slots with plain volatile reads.
+ * Since several threads may run at the same time, the number of probe steps is returned by each call
+ * (putWithSteps, lookup) instead of being kept in the table like DoubleHashTable.getLastSteps does.
+ * The capacity is fixed - slots are never moved once claimed, which is what keeps the readers lock-free.
+ */
+public class ConcurrentDoubleHashTable {
+    private AtomicReferenceArray<SpellSimple> table;
+    private int capacity;
+    private AtomicInteger size;
+
+    /**
+     * The result of a lookup - the words of the spell (null if not found) and the number of steps it took.
+     */
+    public static class Lookup {
+        private String words;
+        private int steps;
+
+        private Lookup(String words, int steps) {
+            this.words = words;
+            this.steps = steps;
+        }
+
+        /**
+         * Getter, returns the words of the spell that was looked up.
+         *
+         * @return Returns the words to cast the spell, or null if it was not found.
+         */
+        public String getWords() {
+            return this.words;
+        }
+
+        /**
+         * Getter, returns the number of steps the lookup performed.
+         *
+         * @return Returns the number of steps the lookup performed.
+         */
+        public int getSteps() {
+            return this.steps;
+        }
+    }
+
+    /**
+     * Constructor. Starts with an empty table.
+     *
+     * @param capacity The capacity of the table, rounded up to a prime.
+     */
+    public ConcurrentDoubleHashTable(int capacity) {
+        this.capacity = DoubleHashTable.nextPrime(Math.max(capacity, 3));
+        this.table = new AtomicReferenceArray<SpellSimple>(this.capacity);
+        this.size = new AtomicInteger(0);
+    }
+
+    /**
+     * Inserts new spell struct to the table.
+     *
+     * @param spell spell struct, an instance of SpellSimple class
+     *
+     * @return Returns True if succeeds or False if the table is full.
+     */
+    public boolean put(SpellSimple spell) {
+        return putWithSteps(spell) >= 0;
+    }
+
+    /**
+     * Inserts new spell struct to the table, returning the number of steps it took.
+     *
+     * @param spell spell struct, an instance of SpellSimple class
+     *
+     * @return Returns the number of steps performed, or -1 if the table is full.
+     */
+    public int putWithSteps(SpellSimple spell) {
+        int hash = PackedDoubleHashTable.hashName(spell.getName());
+        int index = PackedDoubleHashTable.h1(hash, this.capacity);
+        int step = PackedDoubleHashTable.h2(hash, this.capacity);
+        int current;
+
+        do { // reserve room first, so a free slot is guaranteed to exist on the probe sequence
+            current = this.size.get();
+            if (current >= this.capacity) {
+                return -1;
+            }
+        } while (!this.size.compareAndSet(current, current + 1));
+
+        for (int steps = 0; ; steps++) { // the (prime) capacity makes the sequence go over every slot
+            if ((this.table.get(index) == null) && this.table.compareAndSet(index, null, spell)) { // claimed
+                return steps;
+            }
+            index = (index + step) % this.capacity;
+        }
+    }
+
+    /**
+     * Function that returns the 'words' used to cast the spell, given its 'name'. Never blocks.
+     *
+     * @param name the name of the spell
+     *
+     * @return Returns the 'words' to cast the spell, or null if the spell is not in the table.
+     */
+    public String getCastWords(String name) {
+        long found = probe(name);
+        int index = (int)found;
+
+        if (index < 0) {
+            return null;
+        }
+        return this.table.get(index).getWords();
+    }
+
+    /**
+     * Looks up a spell by its name, returning both its words and the number of steps it took. Never blocks.
+     *
+     * @param name the name of the spell
+     *
+     * @return Returns the lookup result.
+     */
+    public Lookup lookup(String name) {
+        long found = probe(name);
+        int index = (int)found;
+        int steps = (int)(found >>> 32);
+
+        if (index < 0) {
+            return new Lookup(null, steps);
+        }
+        return new Lookup(this.table.get(index).getWords(), steps);
+    }
+
+    /**
+     * Getter, returns the number of spells in the table.
+     *
+     * @return Returns the number of spells currently in the table.
+     */
+    public int getSize() {
+        return this.size.get();
+    }
+
+    /**
+     * Getter, returns the capacity of the table.
+     *
+     * @return Returns the capacity of the table.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Probes the table for a name. Slots are only ever filled (never emptied), so a slot seen empty ends the search.
+     *
+     * @param name the name of the spell
+     *
+     * @return Returns the steps taken in the high 32 bits and the index of the spell (-1 if not found) in the low 32 bits.
+     */
+    private long probe(String name) {
+        int hash = PackedDoubleHashTable.hashName(name);
+        int index = PackedDoubleHashTable.h1(hash, this.capacity);
+        int step = PackedDoubleHashTable.h2(hash, this.capacity);
+        int steps;
+
+        for (steps = 0; steps < this.capacity; steps++) {
+            SpellSimple spell = this.table.get(index);
+            if (spell == null) {
+                break;
+            }
+            if (spell.getName().equals(name)) {
+                return ((long)steps << 32) | index;
+            }
+            index = (index + step) % this.capacity;
+        }
+        return ((long)steps << 32) | 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * A hash table of AVL Trees (one tree per spell category) that is safe to use from several threads at once.
+ * Every category has its own lock, so writers of different categories never wait for each other. Readers don't
+ * take the lock at all in the common case: they read the tree optimistically and validate the lock's stamp afterwards,
+ * falling back to a shared read lock only if a writer of the same category got in the way.
+ * The number of spells is kept in a striped counter, so concurrent inserts don't all contend on one field.
+ */
+public class ConcurrentHashAVLSpellTable {
+    private ConcurrentHashMap<String, Category> categories;
+    private LongAdder numSpells;
+
+    /**
+     * A category's tree and the lock that guards it.
+     */
+    private static class Category {
+        private final AVLTree tree;
+        private final StampedLock lock;
+
+        private Category(String category) {
+            this.tree = new AVLTree(category);
+            this.lock = new StampedLock();
+        }
+    }
+
+    /**
+     * Constructor, initialize the table where the given size is the number of categories expected
+     *
+     * @param size the number of categories expected, the table grows past it if needed
+     */
+    public ConcurrentHashAVLSpellTable(int size) {
+        this.categories = new ConcurrentHashMap<String, Category>(Math.max(size, 1));
+        this.numSpells = new LongAdder();
+    }
+
+    /**
+     * Adds a spell to the table, locking only the spell's category. A spell with the same category, power level and
+     * name as an existing one is ignored.
+     *
+     * @param s Spell class instance. The spell to add
+     */
+    public void addSpell(Spell s) {
+        Category category = this.categories.computeIfAbsent(s.getCategory(), Category::new);
+        long stamp = category.lock.writeLock();
+
+        try {
+            if (category.tree.insert(s)) {
+                this.numSpells.increment();
+            }
+        } finally {
+            category.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Searches for a spell by category, spell name , and powerLevel. Doesn't block unless a writer is modifying the
+     * same category.
+     *
+     * @param category The spell's category
+     * @param spellName The spell name
+     * @param powerLevel The spell's powerLevel
+     *
+     * @return returns the searched spell as a Spell class instance, if found, else returns null
+     */
+    public Spell searchSpell(String category, String spellName, int powerLevel) {
+        Category entry = this.categories.get(category);
+
+        if (entry == null) {
+            return null;
+        }
+        return read(entry, () -> entry.tree.search(spellName, powerLevel));
+    }
+
+    /**
+     * Getter. Returns the number of spells that exist in the entire data structure (without category).
+     * Sums the striped counter, so it's exact only when no spell is being added at the same time.
+     *
+     * @return Returns the number of spells that exist in the entire data structure.
+     */
+    public int getNumberSpells() {
+        return this.numSpells.intValue();
+    }
+
+    /**
+     * Getter. Returns the number of spells that exist with the same input category.
+     *
+     * @param category The category of the spells
+     *
+     * @return Returns the number of spells that exist with the same input category.
+     */
+    public int getNumberSpells(String category) {
+        Category entry = this.categories.get(category);
+
+        if (entry == null) {
+            return 0;
+        }
+        return read(entry, entry.tree::getSize);
+    }
+
+    /**
+     * Returns list of top-k spells (ordered by power level, from highest to lowest) with the same category.
+     *
+     * @param category The category of the spells
+     * @param k The number of top spells to return
+     *
+     * @return Returns list of top-k spells with the same category, or null if the category doesn't exist.
+     */
+    public List<Spell> getTopK(String category, int k) {
+        Category entry = this.categories.get(category);
+
+        if (entry == null) {
+            return null;
+        }
+        // never walk more than the tree's size, so a torn optimistic read can't run away with a huge k
+        return read(entry, () -> entry.tree.getTopK(Math.min(k, entry.tree.getSize())));
+    }
+
+    /**
+     * Runs a read-only query on a category's tree. The query first runs without the lock and its result is kept only
+     * if no writer locked the category in the meantime; otherwise (or if the query tripped over a half-done insert)
+     * it runs again under the read lock.
+     *
+     * @param category the category to read
+     * @param query the query to run on the category's tree
+     *
+     * @return Returns the result of the query.
+     */
+    private static <T> T read(Category category, Supplier<T> query) {
+        StampedLock lock = category.lock;
+        long stamp = lock.tryOptimisticRead();
+
+        if (stamp != 0) { // no writer holds the lock
+            try {
+                T result = query.get();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                // the tree changed under the query - retry under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return query.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
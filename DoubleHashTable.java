@@ -1,93 +1,236 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
 public class DoubleHashTable {
+    private static final int REHASH_BATCH = 8; // least number of old slots migrated by each 'put'/'getCastWords' while rehashing
+    private static final SpellSimple TOMBSTONE = new SpellSimple("", ""); // marks a removed spell's slot, compared by reference
+
     private SpellSimple[] table;
+    private long[] hashes; // cached hash of the name stored in each slot
+    private SpellHasher hasher;
     private int capacity;
     private int size;
     private int steps=0;
+    private int tombstones; // removed slots of the current table
+    private double maxTombstoneRatio = 0.25; // tombstones / capacity that triggers a compaction
+    private ProbeStats stats; // null while statistics are disabled
+
+    private double maxLoadFactor; // 0 means the table has a fixed capacity and never grows
+    private SpellSimple[] oldTable; // the table being migrated from, null when no rehash is in progress
+    private long[] oldHashes;
+    private int oldCapacity;
+    private int rehashIndex; // next slot of oldTable to migrate
+    private int rehashBatch; // old slots migrated per operation, enough to finish before the next growth
+    private int migrated; // number of spells moved out of oldTable by the current (or last) rehash
 
     /**
-     * Constructor for DoubleHashTable class. 
+     * Constructor for DoubleHashTable class.
      * Starts with empty table, and capacity of the table is determined by the input capacity.
-     * 
+     * The capacity never changes - a capacity that isn't prime is never compacted, put reuses its tombstones instead.
+     * Uses the course's original hash functions (SpellHasher.CHAR_SUM), so step counts are the ones the assignment defines.
+     *
      * @param capacity The capacity of the table. (m)
      */
     public DoubleHashTable(int capacity) {
+        this(capacity, SpellHasher.CHAR_SUM);
+    }
+
+    /**
+     * Constructor for DoubleHashTable class, with a given hash strategy.
+     * Starts with empty table, and capacity of the table is determined by the input capacity.
+     *
+     * @param capacity The capacity of the table. (m)
+     * @param hasher The hash strategy for the spell names.
+     */
+    public DoubleHashTable(int capacity, SpellHasher hasher) {
         this.capacity = capacity;
         this.table = new SpellSimple[capacity];
+        this.hashes = new long[capacity];
+        this.hasher = hasher;
         this.size = 0;
+        this.maxLoadFactor = 0;
+    }
+
+    /**
+     * Constructor for an auto-growing DoubleHashTable.
+     * Once an insert would push the load factor above maxLoadFactor the spells are rehashed into a table of
+     * (at least) double the capacity. The rehash is incremental - every following 'put' and 'getCastWords' moves
+     * a small batch of spells, so no single operation pays for the whole migration. The batch is sized so the migration
+     * is done within the inserts that fit before the next growth: 8 slots, or about 1 / maxLoadFactor slots when
+     * maxLoadFactor is under 1/8.
+     * Capacities are always prime, which keeps every h2 step size coprime with the capacity.
+     *
+     * @param initialCapacity The initial capacity of the table, rounded up to a prime.
+     * @param maxLoadFactor The load factor (size / capacity) that triggers a rehash, must be in (0, 1).
+     */
+    public DoubleHashTable(int initialCapacity, double maxLoadFactor) {
+        this(initialCapacity, maxLoadFactor, SpellHasher.MIX);
+    }
+
+    /**
+     * Constructor for an auto-growing DoubleHashTable, with a given hash strategy. See DoubleHashTable(int, double).
+     *
+     * @param initialCapacity The initial capacity of the table, rounded up to a prime.
+     * @param maxLoadFactor The load factor (size / capacity) that triggers a rehash, must be in (0, 1).
+     * @param hasher The hash strategy for the spell names.
+     */
+    public DoubleHashTable(int initialCapacity, double maxLoadFactor, SpellHasher hasher) {
+        if (!(maxLoadFactor > 0 && maxLoadFactor < 1)) {
+            throw new IllegalArgumentException("maxLoadFactor must be in (0, 1), got: " + maxLoadFactor);
+        }
+        this.capacity = nextPrime(Math.max(initialCapacity, 3));
+        this.table = new SpellSimple[this.capacity];
+        this.hashes = new long[this.capacity];
+        this.hasher = hasher;
+        this.size = 0;
+        this.maxLoadFactor = maxLoadFactor;
     }
 
     /**
      * Inserts new spell struct to the table (based on hash functions).
-     * 
+     *
      * @param spell spell struct, an instance of SpellSimple class
-     * 
+     *
      * @return Returns True if succeeds or False if not.
      */
-    public boolean put(SpellSimple spell) { 
+    public boolean put(SpellSimple spell) {
         int index;
-        int h1;
-        int h2;
+        long hash;
+
+        if (this.oldTable != null) {
+            migrateBatch();
+        }
+
+        if ((this.maxLoadFactor > 0) && (this.size + 1 > this.maxLoadFactor * this.capacity)) { // growing table is about to pass its load factor
+            rehash(nextPrime(2 * this.capacity));
+        }
 
         if (this.size >= this.capacity){ // tests if there's place for the new item
             return false;
         }
 
         this.steps = 0;
-        
-        h1 = hash1(spell.getName());
-        h2 = hash2(spell.getName());
-
-        index = (h1 + this.steps*h2)%this.capacity; // could use 0 instead of steps here, but I'd rather make it more readable here
-
-        //TODO - will get stuck if there's space in the table but the hashing functions are not good
-        while (this.table[index] != null){ // keep running until table[index] is not taken (null == empty)
-            this.steps++;
-            index = (h1 + this.steps*h2)%this.capacity;
+        hash = this.hasher.hash(spell.getName());
+        index = probeFree(this.table, this.capacity, hash);
+        if (index < 0) { // the probe sequence didn't reach any free slot
+            return false;
         }
 
+        if (this.table[index] == TOMBSTONE) { // reusing a removed slot
+            this.tombstones--;
+        }
         this.table[index] = spell;
+        this.hashes[index] = hash;
         this.size++;
-        return true; 
+        if (this.stats != null) {
+            this.stats.record(ProbeStats.INSERT, this.steps);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a spell from the table, given its 'name'.
+     * The slot is marked with a tombstone (not emptied), so probe sequences that pass through it stay intact.
+     * Once the tombstones pass maxTombstoneRatio of the capacity, the table is compacted - the live spells are
+     * incrementally moved to a fresh array, the same way a growing table rehashes.
+     *
+     * @param name the name of the spell
+     *
+     * @return Returns True if the spell was removed or False if it's not in the table.
+     */
+    public boolean remove(String name) {
+        int index;
+        long hash;
+
+        this.steps = 0;
+
+        if (this.size == 0){ // tests if the table is empty
+            return false;
+        }
+
+        if (this.oldTable != null) {
+            migrateBatch();
+        }
+
+        hash = this.hasher.hash(name);
+        if (this.oldTable != null) {
+            index = probeName(this.oldTable, this.oldHashes, this.oldCapacity, name, hash);
+            if (index >= 0) {
+                this.oldTable[index] = TOMBSTONE; // so it's neither migrated nor found by lookups falling back to the old table
+                if (index >= this.rehashIndex) { // wasn't migrated yet, so it's not in the new table
+                    this.size--;
+                    return true;
+                }
+            }
+        }
+
+        index = probeName(this.table, this.hashes, this.capacity, name, hash);
+        if (index < 0) {
+            return false;
+        }
+
+        this.table[index] = TOMBSTONE;
+        this.tombstones++;
+        this.size--;
+
+        if ((this.oldTable == null) && (this.tombstones > this.maxTombstoneRatio * this.capacity) && isPrime(this.capacity)) {
+            rehash(this.capacity); // compaction into the same capacity - a capacity that isn't prime keeps its tombstones, see probeFreeQuietly
+        }
+        return true;
     }
 
     /**
      * Function that returns the 'words' used to cast the spell, given its 'name'.
-     * 
+     *
      * @param name the name of the spell
-     * 
+     *
      * @return Returns the 'words' to cast the spell.
      */
     public String getCastWords(String name) {
         int index;
-        int h1;
-        int h2;
+        long hash;
 
         this.steps = 0;
 
         if (this.size == 0){ // tests if the table is empty
+            if (this.stats != null) {
+                this.stats.record(ProbeStats.MISS, 0);
+            }
             return null;
         }
-        
-        h1 = hash1(name);
-        h2 = hash2(name);
 
-        index = (h1 + this.steps*h2)%this.capacity; // could use 0 instead of steps here, but I'd rather make it more readable here
+        if (this.oldTable != null) {
+            migrateBatch();
+        }
 
-        //TODO - will get stuck if the spell is not in the table
-        while (this.table[index].getName() != name){ // keep running until spell is found
-            this.steps++;
-            index = (h1 + this.steps*h2)%this.capacity;
+        hash = this.hasher.hash(name); // one pass over the name serves both tables
+        index = probeName(this.table, this.hashes, this.capacity, name, hash);
+        if (index >= 0) {
+            if (this.stats != null) {
+                this.stats.record(ProbeStats.HIT, this.steps);
+            }
+            return this.table[index].getWords();
+        }
 
-            if (this.steps > this.size) { // if the spell doesn't exist in table
-                return null;
+        if (this.oldTable != null) { // not migrated yet - look in the old table as well
+            index = probeName(this.oldTable, this.oldHashes, this.oldCapacity, name, hash);
+            if (index >= 0) {
+                if (this.stats != null) {
+                    this.stats.record(ProbeStats.HIT, this.steps);
+                }
+                return this.oldTable[index].getWords();
             }
         }
-        return this.table[index].getWords();
+        if (this.stats != null) {
+            this.stats.record(ProbeStats.MISS, this.steps);
+        }
+        return null;
     }
 
     /**
      * Getter, returns the number of spells in the hashtable  (spells that Marlin knows)
-     * 
+     *
      * @return Returns the number of spells currently in the hashtable.
      */
     public int getSize() {
@@ -96,41 +239,384 @@ public class DoubleHashTable {
 
     /**
      * Getter, returns the number of steps performed in the last 'put' or 'getCastWords' action (where the steps size is defined by h2 hash functin)
-     * 
+     *
      * @return Returns the number of steps performed in the last 'put' or 'getCastWords' action
      */
     public int getLastSteps() {
         return this.steps;
-    } 
+    }
 
     /**
-     * Hash function that's used when using 'put' and 'getCastWords' to determine the index location of 'name' in table.
-     * 
-     * @param name the name of the spell
-     * 
-     * @return Returns value used to determine the index location of 'name' in table
+     * Getter, returns the current capacity of the table (the capacity being migrated to, while rehashing)
+     *
+     * @return Returns the current capacity of the table.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns whether an incremental rehash is currently in progress.
+     *
+     * @return Returns true if spells are still being migrated to a bigger table.
+     */
+    public boolean isRehashing() {
+        return this.oldTable != null;
+    }
+
+    /**
+     * Getter, returns how many spells were migrated so far by the current rehash (or by the last one, if it's done).
+     *
+     * @return Returns the number of spells migrated by the current or last rehash.
+     */
+    public int getMigratedCount() {
+        return this.migrated;
+    }
+
+    /**
+     * Starts collecting probe length statistics of 'put' and 'getCastWords' (see getStats).
+     * While disabled, the statistics cost a single null check per operation.
+     */
+    public void enableStats() {
+        if (this.stats == null) {
+            this.stats = new ProbeStats();
+        }
+    }
+
+    /**
+     * Stops collecting probe length statistics and drops the collected ones.
+     */
+    public void disableStats() {
+        this.stats = null;
+    }
+
+    /**
+     * Getter, returns the probe length statistics collected since enableStats.
+     *
+     * @return Returns the live statistics, or null if they're disabled.
+     */
+    public ProbeStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Getter, returns the current load factor - the number of spells over the capacity.
+     *
+     * @return Returns the current load factor.
+     */
+    public double getLoadFactor() {
+        return (double)this.size / this.capacity;
+    }
+
+    /**
+     * Computes the primary cluster size distribution of the current table - the runs of consecutive taken slots
+     * (tombstones included, since probe sequences go through them). Scans the whole table.
+     * During an incremental rehash the slots of the old table that weren't migrated yet are scanned as well, so
+     * the clusters cover every spell.
+     *
+     * @return Returns an array where entry i is the number of clusters of exactly i slots.
      */
-    private int hash1(String name) {
-        int result = 0;
-        for (int idx = 0; idx < name.length(); idx++){
-            result = result + 31*(int)name.charAt(idx); // int casting transforms char to ASCII
+    public int[] getClusterHistogram() {
+        int[] runs = new int[Math.max(this.capacity, this.oldCapacity) + 1];
+        int longest = countRuns(this.table, 0, this.capacity, runs);
+
+        if (this.oldTable != null) { // the migrated slots count as empty
+            longest = Math.max(longest, countRuns(this.oldTable, this.rehashIndex, this.oldCapacity, runs));
         }
-        return (result % this.capacity);
+        return Arrays.copyOf(runs, longest + 1);
     }
 
     /**
-     * Hash function that's used when using 'put' and 'getCastWords' to determine the step size when table[index] is occupied.
-     * 
+     * Counts the runs of consecutive taken slots between 'from' and 'to' into runs.
+     * A run at the end wraps around to the start only when the whole table is scanned (from == 0).
+     *
+     * @param slots the table to scan
+     * @param from the first slot scanned
+     * @param to the end of the scan (exclusive), the capacity of the table
+     * @param runs the histogram the runs are added to
+     *
+     * @return Returns the length of the longest run counted.
+     */
+    private static int countRuns(SpellSimple[] slots, int from, int to, int[] runs) {
+        int firstRun = 0;
+        int run = 0;
+        int longest = 0;
+
+        for (int index = from; index < to; index++) {
+            if (slots[index] != null) {
+                run++;
+            } else {
+                if (run == index - from) { // the run at the start of the scan, it may continue the last run (wrap around)
+                    firstRun = run;
+                } else if (run > 0) {
+                    runs[run]++;
+                    longest = Math.max(longest, run);
+                }
+                run = 0;
+            }
+        }
+        if (run == to - from) { // every scanned slot is taken
+            if (run > 0) {
+                runs[run]++;
+            }
+            return run;
+        }
+        if (from > 0) { // no wrap around, the first run stands alone
+            if (firstRun > 0) {
+                runs[firstRun]++;
+                longest = Math.max(longest, firstRun);
+            }
+            firstRun = 0;
+        }
+        if (run + firstRun > 0) {
+            runs[run + firstRun]++;
+            longest = Math.max(longest, run + firstRun);
+        }
+        return longest;
+    }
+
+    /**
+     * Getter, returns the number of tombstones (removed slots) in the current table.
+     *
+     * @return Returns the number of tombstones in the current table.
+     */
+    public int getTombstones() {
+        return this.tombstones;
+    }
+
+    /**
+     * Setter, sets the ratio of tombstones to capacity that triggers a compaction.
+     *
+     * @param maxTombstoneRatio the ratio that triggers a compaction, must be in (0, 1]
+     */
+    public void setMaxTombstoneRatio(double maxTombstoneRatio) {
+        if (!(maxTombstoneRatio > 0 && maxTombstoneRatio <= 1)) {
+            throw new IllegalArgumentException("maxTombstoneRatio must be in (0, 1], got: " + maxTombstoneRatio);
+        }
+        this.maxTombstoneRatio = maxTombstoneRatio;
+    }
+
+    /**
+     * Saves the table to a file, in the layout that MappedDoubleHashTable reads. This table's hash strategy and capacity
+     * may differ from the file's, so the live spells - with the ones still waiting in the old table of a rehash - are
+     * copied into a PackedDoubleHashTable, whose save writes the file.
+     *
+     * @param path the file to write, replaced if it exists
+     *
+     * @throws IOException if writing fails, or the table is too large to be mapped as a single region
+     */
+    public void save(Path path) throws IOException {
+        PackedDoubleHashTable packed = new PackedDoubleHashTable(2 * this.size + 1); // never grows, load factor under 0.5
+
+        for (int index = 0; index < this.capacity; index++) {
+            if ((this.table[index] != null) && (this.table[index] != TOMBSTONE) && !packed.put(this.table[index])) {
+                throw new IOException("Table is too large to be mapped: the spells don't fit in an arena");
+            }
+        }
+        if (this.oldTable != null) { // the slots before rehashIndex were migrated already
+            for (int index = this.rehashIndex; index < this.oldCapacity; index++) {
+                if ((this.oldTable[index] != null) && (this.oldTable[index] != TOMBSTONE) && !packed.put(this.oldTable[index])) {
+                    throw new IOException("Table is too large to be mapped: the spells don't fit in an arena");
+                }
+            }
+        }
+        packed.save(path);
+    }
+
+    /**
+     * Starts an incremental rehash into a fresh table - a bigger one when growing, one of the same capacity when compacting.
+     * A rehash that is still in progress is completed first - a safety net, the batch size has it done before the next
+     * growth, and a compaction waits for it.
+     *
+     * @param newCapacity the capacity of the new table
+     */
+    private void rehash(int newCapacity) {
+        while (this.oldTable != null) { // finish the previous migration before starting a new one
+            migrateBatch();
+        }
+
+        this.oldTable = this.table;
+        this.oldHashes = this.hashes;
+        this.oldCapacity = this.capacity;
+        this.capacity = newCapacity;
+        this.table = new SpellSimple[this.capacity];
+        this.hashes = new long[this.capacity];
+        this.tombstones = 0; // the tombstones stay behind in the old table
+        this.rehashIndex = 0;
+        this.migrated = 0;
+
+        // every insert migrates a batch, so the migration must be done within the inserts left before the next growth -
+        // the spell of the insert that started this rehash, then the ones up to the load factor
+        this.rehashBatch = REHASH_BATCH;
+        if (this.maxLoadFactor > 0) {
+            int headroom = Math.max(1, (int)(this.maxLoadFactor * this.capacity) - this.size - 1);
+            this.rehashBatch = Math.max(REHASH_BATCH, (this.oldCapacity + headroom - 1) / headroom);
+        }
+    }
+
+    /**
+     * Moves the spells of the next rehashBatch slots of the old table to the new table.
+     * The old table is left untouched (so its probe chains stay valid for lookups) and dropped when the last slot is migrated.
+     * Uses the cached hashes, so no name is hashed again. Tombstones are not migrated.
+     */
+    private void migrateBatch() {
+        int end = Math.min(this.rehashIndex + this.rehashBatch, this.oldCapacity);
+
+        for (; this.rehashIndex < end; this.rehashIndex++) {
+            SpellSimple spell = this.oldTable[this.rehashIndex];
+            if ((spell != null) && (spell != TOMBSTONE)) {
+                long hash = this.oldHashes[this.rehashIndex];
+                int index = probeFreeQuietly(this.table, this.capacity, hash);
+                if (this.table[index] == TOMBSTONE) {
+                    this.tombstones--;
+                }
+                this.table[index] = spell;
+                this.hashes[index] = hash;
+                this.migrated++;
+            }
+        }
+
+        if (this.rehashIndex == this.oldCapacity) { // done
+            this.oldTable = null;
+            this.oldHashes = null;
+        }
+    }
+
+    /**
+     * Looks for the first free slot (empty or tombstone) in the probe sequence of a name, counting the steps taken.
+     *
+     * @param slots the table to probe
+     * @param slotsCapacity the capacity of the probed table
+     * @param hash the hash of the name of the spell
+     *
+     * @return Returns the index of the free slot, or -1 if every slot of the probe sequence is taken.
+     */
+    private int probeFree(SpellSimple[] slots, int slotsCapacity, long hash) {
+        int h2 = hash2(hash, slotsCapacity);
+        int index = hash1(hash, slotsCapacity);
+
+        while ((slots[index] != null) && (slots[index] != TOMBSTONE)){ // keep running until table[index] is not taken (null == empty)
+            this.steps++;
+            if (this.steps >= slotsCapacity) { // went over the whole probe sequence
+                return -1;
+            }
+            index = (index + h2)%slotsCapacity;
+        }
+        return index;
+    }
+
+    /**
+     * Same as probeFree, without touching the steps counter. Used for migrating spells into a table of prime capacity,
+     * where every probe sequence visits every slot, so a free slot is always reached.
+     *
+     * @param slots the table to probe
+     * @param slotsCapacity the capacity of the probed table
+     * @param hash the hash of the name of the spell
+     *
+     * @return Returns the index of the free slot.
+     */
+    private int probeFreeQuietly(SpellSimple[] slots, int slotsCapacity, long hash) {
+        int h2 = hash2(hash, slotsCapacity);
+        int index = hash1(hash, slotsCapacity);
+
+        for (int probe = 0; (slots[index] != null) && (slots[index] != TOMBSTONE); probe++) {
+            if (probe >= slotsCapacity) { // can't happen with a prime capacity - fail instead of spinning forever
+                throw new IllegalStateException("No free slot in the probe sequence, capacity: " + slotsCapacity);
+            }
+            index = (index + h2)%slotsCapacity;
+        }
+        return index;
+    }
+
+    /**
+     * Looks for the slot holding the spell 'name', counting the steps taken.
+     * The cached hashes are compared first, names are only compared when the hashes are equal.
+     * Tombstones are skipped - only an empty slot ends the probe sequence.
+     *
+     * @param slots the table to probe
+     * @param slotHashes the cached hashes of the probed table
+     * @param slotsCapacity the capacity of the probed table
      * @param name the name of the spell
-     * 
-     * @return Returns step size that's used when table[index] is occupied 
+     * @param hash the hash of the name
+     *
+     * @return Returns the index of the spell, or -1 if it's not in the table.
+     */
+    private int probeName(SpellSimple[] slots, long[] slotHashes, int slotsCapacity, String name, long hash) {
+        int h2 = hash2(hash, slotsCapacity);
+        int index = hash1(hash, slotsCapacity);
+
+        for (int probe = 0; probe < slotsCapacity; probe++) {
+            if (slots[index] == null) { // an empty slot ends the probe sequence - the spell isn't here
+                return -1;
+            }
+            if ((slotHashes[index] == hash) && (slots[index] != TOMBSTONE) && slots[index].getName().equals(name)) { // found
+                return index;
+            }
+            this.steps++;
+            index = (index + h2)%slotsCapacity;
+        }
+        return -1; // went over the whole (full) table
+    }
+
+    /**
+     * Reduces a hash to the index location of the name in a table ('put' and 'getCastWords' start probing there).
+     *
+     * @param hash the hash of the name of the spell
+     * @param slotsCapacity the capacity of the table
+     *
+     * @return Returns value used to determine the index location of the name in table
+     */
+    private static int hash1(long hash, int slotsCapacity) {
+        return Integer.remainderUnsigned(SpellHasher.h1(hash), slotsCapacity);
+    }
+
+    /**
+     * Reduces a hash to the step size used when table[index] is occupied.
+     *
+     * @param hash the hash of the name of the spell
+     * @param slotsCapacity the capacity of the table
+     *
+     * @return Returns step size that's used when table[index] is occupied
+     */
+    private static int hash2(long hash, int slotsCapacity) {
+        return (1 + Integer.remainderUnsigned(SpellHasher.h2(hash), slotsCapacity - 2));
+    }
+
+    /**
+     * Returns the smallest prime that is greater than or equal to n.
+     *
+     * @param n the lower bound
+     *
+     * @return Returns the smallest prime >= n.
      */
-    private int hash2(String name) {
-        int result = 0;
-        for (int idx = 0; idx < name.length(); idx++){
-            result = result + 13*(int)name.charAt(idx); // int casting transforms char to ASCII
+    static int nextPrime(int n) {
+        int candidate = Math.max(n, 2);
+
+        while (!isPrime(candidate)) {
+            candidate++;
         }
-        return (1 + (result % (this.capacity - 2))); 
+        return candidate;
     }
 
-}
\ No newline at end of file
+    /**
+     * Trial-division primality test.
+     *
+     * @param n the number to test
+     *
+     * @return Returns true if n is prime.
+     */
+    private static boolean isPrime(int n) {
+        if (n < 2) {
+            return false;
+        }
+        if (n % 2 == 0) {
+            return n == 2;
+        }
+        for (int divisor = 3; (long)divisor*divisor <= n; divisor += 2) {
+            if (n % divisor == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Crash-safe HashAVLSpellTable - the table is kept in memory, every mutation is appended to a write-ahead SpellLog,
+ * and checkpoint() saves a snapshot of the table and empties the log. Opening it loads the last snapshot and replays
+ * the log on top of it.
+ *
+ * Safe for concurrent use: mutations are applied and logged under a write lock (so the log's order is the table's),
+ * then a writer waits for the group commit outside of the lock - concurrent writers share one fsync. With
+ * waitForCommit false, the mutations return without waiting, and a crash loses at most the last commit window.
+ */
+public class DurableSpellTable implements Closeable {
+    private static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 5;
+    private static final int DEFAULT_COMMIT_BYTES = 1 << 18;
+
+    private HashAVLSpellTable table;
+    private SpellLog log;
+    private Path snapshotPath;
+    private boolean waitForCommit; // mutations return once their record is on disk
+    private ReentrantReadWriteLock lock;
+
+    /**
+     * Private constructor, see open.
+     */
+    private DurableSpellTable(HashAVLSpellTable table, SpellLog log, Path snapshotPath, boolean waitForCommit) {
+        this.table = table;
+        this.log = log;
+        this.snapshotPath = snapshotPath;
+        this.waitForCommit = waitForCommit;
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Opens a table whose mutations return once they're on disk, committed every 5 ms or every 256 KB of records.
+     *
+     * @param snapshotPath the snapshot file, the table starts empty if it doesn't exist
+     * @param logPath the log file, created if it doesn't exist
+     *
+     * @return Returns the table, with the snapshot's spells and the log's mutations.
+     *
+     * @throws IOException if the snapshot or the log can't be read
+     */
+    public static DurableSpellTable open(Path snapshotPath, Path logPath) throws IOException {
+        return open(snapshotPath, logPath, DEFAULT_COMMIT_INTERVAL_MILLIS, DEFAULT_COMMIT_BYTES, true);
+    }
+
+    /**
+     * Opens a table.
+     *
+     * @param snapshotPath the snapshot file, the table starts empty if it doesn't exist
+     * @param logPath the log file, created if it doesn't exist
+     * @param commitIntervalMillis the longest time a mutation waits before its batch is committed
+     * @param commitBytes the batch size that is committed at once, without waiting for the interval
+     * @param waitForCommit true if mutations return once their record is on disk, false if they return at once
+     *
+     * @return Returns the table, with the snapshot's spells and the log's mutations.
+     *
+     * @throws IOException if the snapshot or the log can't be read
+     */
+    public static DurableSpellTable open(Path snapshotPath, Path logPath, long commitIntervalMillis, int commitBytes,
+            boolean waitForCommit) throws IOException {
+        HashAVLSpellTable table = new HashAVLSpellTable(16);
+        long checkpointed = 0; // the log generation the snapshot holds
+
+        if (Files.exists(snapshotPath)) {
+            table = HashAVLSpellTable.load(snapshotPath);
+            checkpointed = SpellTableFile.readLogGeneration(snapshotPath);
+        }
+        SpellLog log = SpellLog.open(logPath, table, checkpointed, commitIntervalMillis, commitBytes);
+        return new DurableSpellTable(table, log, snapshotPath, waitForCommit);
+    }
+
+    /**
+     * Adds a spell.
+     *
+     * @param s the spell to add
+     *
+     * @throws IOException if the log failed
+     */
+    public void addSpell(Spell s) throws IOException {
+        long sequence;
+
+        this.lock.writeLock().lock();
+        try {
+            sequence = this.log.appendAdd(s); // first, a failed log leaves the table as it was
+            this.table.addSpell(s);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        commit(sequence);
+    }
+
+    /**
+     * Adds many spells at once, with HashAVLSpellTable.addAll.
+     *
+     * @param spells the spells to add
+     *
+     * @throws IOException if the log failed
+     */
+    public void addAll(Collection<Spell> spells) throws IOException {
+        long sequence = 0;
+
+        this.lock.writeLock().lock();
+        try {
+            for (Spell s : spells) {
+                sequence = this.log.appendAdd(s);
+            }
+            this.table.addAll(spells);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        commit(sequence);
+    }
+
+    /**
+     * Removes a spell.
+     *
+     * @param category the spell's category
+     * @param spellName the spell name
+     * @param powerLevel the spell's power level
+     *
+     * @return Returns the removed spell, or null if there's no such spell.
+     *
+     * @throws IOException if the log failed
+     */
+    public Spell removeSpell(String category, String spellName, int powerLevel) throws IOException {
+        Spell removed;
+        long sequence;
+
+        this.lock.writeLock().lock();
+        try {
+            if (this.table.searchSpell(category, spellName, powerLevel) == null) {
+                return null;
+            }
+            sequence = this.log.appendRemove(category, spellName, powerLevel); // first, a failed log leaves the table as it was
+            removed = this.table.removeSpell(category, spellName, powerLevel);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        commit(sequence);
+        return removed;
+    }
+
+    /**
+     * Changes the power level of a spell, see HashAVLSpellTable.updatePowerLevel.
+     *
+     * @param category the spell's category
+     * @param spellName the spell name
+     * @param powerLevel the spell's current power level
+     * @param newPowerLevel the spell's new power level
+     *
+     * @return Returns the updated spell, or null if there's no such spell or the new power level is taken.
+     *
+     * @throws IOException if the log failed
+     */
+    public Spell updatePowerLevel(String category, String spellName, int powerLevel, int newPowerLevel) throws IOException {
+        Spell updated;
+        long sequence;
+
+        this.lock.writeLock().lock();
+        try {
+            Spell current = this.table.searchSpell(category, spellName, powerLevel);
+            if (current == null || newPowerLevel == powerLevel) { // nothing changes, nothing to log
+                return current;
+            }
+            if (this.table.searchSpell(category, spellName, newPowerLevel) != null) { // the new place is taken
+                return null;
+            }
+            sequence = this.log.appendUpdate(category, spellName, powerLevel, newPowerLevel); // first, as in addSpell
+            updated = this.table.updatePowerLevel(category, spellName, powerLevel, newPowerLevel);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        commit(sequence);
+        return updated;
+    }
+
+    /**
+     * Searches for a spell by category, spell name and power level.
+     *
+     * @param category the spell's category
+     * @param spellName the spell name
+     * @param powerLevel the spell's power level
+     *
+     * @return Returns the spell, or null if it wasn't found.
+     */
+    public Spell searchSpell(String category, String spellName, int powerLevel) {
+        this.lock.readLock().lock();
+        try {
+            return this.table.searchSpell(category, spellName, powerLevel);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of spells in the table.
+     *
+     * @return Returns the number of spells.
+     */
+    public int getNumberSpells() {
+        this.lock.readLock().lock();
+        try {
+            return this.table.getNumberSpells();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of spells in a category.
+     *
+     * @param category the category of the spells
+     *
+     * @return Returns the number of spells in the category.
+     */
+    public int getNumberSpells(String category) {
+        this.lock.readLock().lock();
+        try {
+            return this.table.getNumberSpells(category);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the k spells with the highest power levels in a category.
+     *
+     * @param category the category of the spells
+     * @param k the number of top spells to return
+     *
+     * @return Returns a list of the top-k spells, or null if the category doesn't exist.
+     */
+    public List<Spell> getTopK(String category, int k) {
+        this.lock.readLock().lock();
+        try {
+            return this.table.getTopK(category, k);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Saves a snapshot of the table and empties the log, so the next open doesn't replay it. The snapshot is written
+     * to a temporary file and moved over the previous one, so a crash leaves either snapshot with a log that completes
+     * it - the snapshot records the log's generation, so a log it already holds isn't replayed on top of it. Mutations
+     * wait while the snapshot is written.
+     *
+     * @throws IOException if the snapshot can't be written or the log failed
+     */
+    public void checkpoint() throws IOException {
+        Path temporary = this.snapshotPath.resolveSibling(this.snapshotPath.getFileName() + ".tmp");
+
+        this.lock.writeLock().lock();
+        try {
+            SpellTableFile.save(this.table, temporary, this.log.getGeneration()); // forced to disk before it's moved
+            Files.move(temporary, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            SpellLog.forceDirectory(this.snapshotPath); // the move is durable before the log is emptied
+            this.log.truncate(); // a crash before this leaves a log of the snapshot's generation, which open skips
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Getter, returns the table's write-ahead log, for its counters.
+     *
+     * @return Returns the log.
+     */
+    public SpellLog getLog() {
+        return this.log;
+    }
+
+    /**
+     * Commits the pending mutations and closes the log. The table must not be used afterwards.
+     *
+     * @throws IOException if the log failed
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            this.log.close();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Helper function. Waits for a mutation's record to be on disk, if the table waits for commits.
+     *
+     * @param sequence the sequence number of the mutation's record
+     */
+    private void commit(long sequence) throws IOException {
+        if (this.waitForCommit) {
+            this.log.awaitCommit(sequence);
+        }
+    }
+}
@@ -1,20 +1,195 @@
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
 
+/**
+ * Hash table of AVL Trees - one tree per spell category.
+ * The category index is open-addressed with linear probing: the cached hash of each slot's category sits inline
+ * in an int[], so resolving a category scans a few adjacent ints (usually a single cache line) and only reads the
+ * tree's category name when the hashes match. The index doubles once more than half of its slots are taken.
+ *
+ * Each category's spells are kept in a SpellIndex of the table's engine (see SpellIndex.Engine) - AVLTree by default;
+ * with the AUTO engine a category starts as an AVLTree and is moved into a BPlusTree once it grows large.
+ *
+ * A table created persistent keeps persistent AVL Trees, and snapshot() hands out a read-only copy of the table that
+ * shares every tree's current version - a consistent point-in-time view (a top-k and a count that agree) that other
+ * threads may query without locks while the owner keeps adding spells.
+ */
 public class HashAVLSpellTable {
-    private LinkedList<AVLTree> buckets[];
-    private int tableSize;
+    private static final double MAX_LOAD_FACTOR = 0.5;
+    private static final int PARALLEL_MERGE_THRESHOLD = 64; // categories merged by a single task of a cross-category top-k
+
+    private SpellIndex[] trees; // the category index, null == empty slot
+    private int[] categoryHashes; // cached hash of the category of each slot
+    private int tableSize; // number of slots, a power of two
+    private int numCategories;
     private int numSpells;
+    private SpellHasher hasher;
+    private boolean persistent; // the trees are persistent, snapshot() can be used
+    private SpellIndex.Engine engine;
+    private boolean readOnly; // a snapshot
+    private TopKCache topKCache; // null == disabled
 
     /**
-     * Constructor, initialize the table where the given size is the number of buckets required
+     * Constructor, initialize the table where the given size is the number of categories expected
      * 
-     * @param size the number of buckets required
+     * @param size the number of categories expected, the index grows past it if needed
      */
     public HashAVLSpellTable(int size) {
+        this(size, SpellHasher.MIX);
+    }
+
+    /**
+     * Constructor, initialize the table where the given size is the number of categories expected
+     * 
+     * @param size the number of categories expected, the index grows past it if needed
+     * @param hasher the hash strategy for the categories
+     */
+    public HashAVLSpellTable(int size, SpellHasher hasher) {
+        this(size, hasher, false);
+    }
+
+    /**
+     * Constructor, initialize the table where the given size is the number of categories expected
+     * 
+     * @param size the number of categories expected, the index grows past it if needed
+     * @param engine the index engine of the categories
+     */
+    public HashAVLSpellTable(int size, SpellIndex.Engine engine) {
+        this(size, SpellHasher.MIX, false, engine);
+    }
+
+    /**
+     * Constructor, initialize the table where the given size is the number of categories expected
+     * 
+     * @param size the number of categories expected, the index grows past it if needed
+     * @param persistent true to keep persistent AVL Trees, so snapshot() can be used
+     */
+    public HashAVLSpellTable(int size, boolean persistent) {
+        this(size, SpellHasher.MIX, persistent);
+    }
+
+    /**
+     * Constructor, initialize the table where the given size is the number of categories expected
+     * 
+     * @param size the number of categories expected, the index grows past it if needed
+     * @param hasher the hash strategy for the categories
+     * @param persistent true to keep persistent AVL Trees, so snapshot() can be used
+     */
+    public HashAVLSpellTable(int size, SpellHasher hasher, boolean persistent) {
+        this(size, hasher, persistent, SpellIndex.Engine.AVL);
+    }
+
+    /**
+     * Constructor, initialize the table where the given size is the number of categories expected
+     * 
+     * @param size the number of categories expected, the index grows past it if needed
+     * @param hasher the hash strategy for the categories
+     * @param persistent true to keep persistent AVL Trees, so snapshot() can be used
+     * @param engine the index engine of the categories, must be AVL for a persistent table
+     */
+    public HashAVLSpellTable(int size, SpellHasher hasher, boolean persistent, SpellIndex.Engine engine) {
+        if (persistent && (engine != SpellIndex.Engine.AVL)) {
+            throw new IllegalArgumentException("Only the AVL engine supports a persistent table, got: " + engine);
+        }
         this.numSpells = 0;
-        this.tableSize = size;
-        this.buckets = new LinkedList[size]; 
+        this.numCategories = 0;
+        this.tableSize = Integer.highestOneBit(Math.max((int)(size / MAX_LOAD_FACTOR) - 1, 4)) << 1; // power of two with room for size categories
+        this.hasher = hasher;
+        this.trees = new SpellIndex[this.tableSize];
+        this.categoryHashes = new int[this.tableSize];
+        this.persistent = persistent;
+        this.engine = engine;
+    }
+
+    /**
+     * Private constructor of a snapshot - copies the index of a persistent table, with a snapshot of each tree.
+     * 
+     * @param table the persistent table to take a snapshot of
+     */
+    private HashAVLSpellTable(HashAVLSpellTable table) {
+        this.numSpells = table.numSpells;
+        this.numCategories = table.numCategories;
+        this.tableSize = table.tableSize;
+        this.hasher = table.hasher;
+        this.trees = new SpellIndex[this.tableSize];
+        this.categoryHashes = table.categoryHashes.clone();
+        for (int index = 0; index < this.tableSize; index++) {
+            if (table.trees[index] != null) {
+                this.trees[index] = ((AVLTree)table.trees[index]).snapshot(); // a persistent table only has AVL Trees
+            }
+        }
+        this.persistent = true;
+        this.engine = SpellIndex.Engine.AVL;
+        this.readOnly = true;
+    }
+
+    /**
+     * Returns a point-in-time view of a persistent table - a read-only table that serves every query method and never
+     * changes, so it may be handed to other threads and read without locks. Costs O(number of categories): the index is
+     * copied, the trees are shared. Must be called by the thread that adds the spells (or under its lock).
+     * 
+     * @return Returns a read-only snapshot of the table.
+     * 
+     * @throws IllegalStateException if the table isn't persistent
+     */
+    public HashAVLSpellTable snapshot() {
+        if (!this.persistent) {
+            throw new IllegalStateException("Only a persistent table can be snapshotted");
+        }
+        return new HashAVLSpellTable(this);
+    }
+
+    /**
+     * Writes the table to a file in a compact binary format (see SpellTableFile): each category's spells in sorted
+     * order, with every distinct string stored once. A snapshot can be saved while the owner keeps adding spells.
+     * 
+     * @param path the file to write, replaced if it exists, and forced to disk before this returns
+     * 
+     * @throws IOException if writing fails
+     */
+    public void save(Path path) throws IOException {
+        SpellTableFile.save(this, path);
+    }
+
+    /**
+     * Reads a table written by save, with the default AVL engine. The file is streamed, and each category's tree is
+     * built in linear time from its already sorted spells.
+     * 
+     * @param path the file to read
+     * 
+     * @return Returns the loaded table.
+     * 
+     * @throws IOException if reading fails or the file is not a valid saved table
+     */
+    public static HashAVLSpellTable load(Path path) throws IOException {
+        return load(path, SpellIndex.Engine.AVL);
+    }
+
+    /**
+     * Reads a table written by save. The file is streamed, and each category's tree is built in linear time from its
+     * already sorted spells.
+     * 
+     * @param path the file to read
+     * @param engine the index engine of the loaded table's categories
+     * 
+     * @return Returns the loaded table.
+     * 
+     * @throws IOException if reading fails or the file is not a valid saved table
+     */
+    public static HashAVLSpellTable load(Path path, SpellIndex.Engine engine) throws IOException {
+        return SpellTableFile.load(path, engine);
     }
 
     /**
@@ -22,39 +197,156 @@ public class HashAVLSpellTable {
      * 
      * @param category the category of the spell
      * 
-     * @return Returns value used to determine the index location of the category in table
+     * @return Returns the hash of the category, its low bits are the index location of the category in table
      */
     private int hash(String category) {
-        int result = 0;
-        for (int idx = 0; idx < category.length(); idx++){
-            result = result + (int)category.charAt(idx); // int casting transforms char to ASCII
-        }
-        return (result % this.tableSize);
+        return SpellHasher.h1(this.hasher.hash(category));
     }
 
     /**
-     * Adds a spell to the hash table
+     * Adds a spell to the hash table. A spell with the same category, power level and name as an existing one is ignored.
      * 
      * @param s Spell class instance. The spell to add
+     * 
+     * @throws UnsupportedOperationException if the table is a snapshot
      */
     public void addSpell(Spell s) {
-        int index = hash(s.getCategory());
-        boolean isInserted = false;
-        
-        if (this.buckets[index] == null) { // slot at index is free - there's place and the spell category is not in the DS yet.
-            this.buckets[index] = new LinkedList<AVLTree>(); // create node
-        } else { // buckets[index] has an AVLTree there already
-            for (AVLTree tree : this.buckets[index]) { // iterate over trees in the same index
-                if (tree.getCategory().equals(s.getCategory())) { // if a tree with the wanted category is found
-                    tree.insert(s); // add s to the AVL Tree - tree
-                    isInserted = true;
-                }
-            } 
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        SpellIndex tree = findTree(s.getCategory());
+
+        if (tree == null) { // the spell category is not in the DS yet
+            tree = newTree(s.getCategory()); // new tree for its category
+            addTree(tree);
+        }
+        if (tree.insert(s)) { // add s to the tree
+            this.numSpells++;
+            if (this.topKCache != null) {
+                this.topKCache.onInsert(s);
+            }
+            if (tree.getSize() == SpellIndex.Engine.AUTO_THRESHOLD + 1) {
+                upgradeTree(s.getCategory());
+            }
+        }
+    }
+
+    /**
+     * Removes a spell from the hash table - O(log n). A category left without spells is removed from the index.
+     * 
+     * @param category The spell's category
+     * @param spellName The spell name
+     * @param powerLevel The spell's powerLevel
+     * 
+     * @return Returns the removed spell, or null if there's no such spell.
+     * 
+     * @throws UnsupportedOperationException if the table is a snapshot
+     */
+    public Spell removeSpell(String category, String spellName, int powerLevel) {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        int index = findIndex(category);
+
+        if (index < 0) {
+            return null;
+        }
+
+        SpellIndex tree = this.trees[index];
+        Spell removed = tree.remove(spellName, powerLevel);
+        if (removed == null) {
+            return null;
+        }
+        this.numSpells--;
+        if (this.topKCache != null) {
+            this.topKCache.onRemove(removed);
+        }
+        if (tree.getSize() == 0) {
+            removeTree(index);
+        }
+        return removed;
+    }
+
+    /**
+     * Changes the power level of a spell - O(log n). The spell is immutable, so it's replaced by a copy with the new
+     * power level, moved to its new place in the category's tree.
+     * 
+     * @param category The spell's category
+     * @param spellName The spell name
+     * @param powerLevel The spell's current powerLevel
+     * @param newPowerLevel The spell's new powerLevel
+     * 
+     * @return Returns the updated spell, or null if there's no such spell or the category already has a spell with
+     * the same name at newPowerLevel (nothing is changed then).
+     * 
+     * @throws UnsupportedOperationException if the table is a snapshot
+     */
+    public Spell updatePowerLevel(String category, String spellName, int powerLevel, int newPowerLevel) {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
         }
-        if (!isInserted) { // didn't find the tree with the same category as spell 's' in buckets[index]
-                this.buckets[index].add(new AVLTree(s)); // new AVL tree for the spell, for its category
+
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
+            return null;
+        }
+        if (newPowerLevel == powerLevel) {
+            return tree.search(spellName, powerLevel);
+        }
+        if (tree.search(spellName, newPowerLevel) != null) { // the new place is taken
+            return null;
+        }
+
+        Spell old = tree.remove(spellName, powerLevel);
+        if (old == null) {
+            return null;
+        }
+        Spell updated = new Spell(old.getName(), old.getCategory(), newPowerLevel, old.getWords());
+        tree.insert(updated);
+        if (this.topKCache != null) {
+            this.topKCache.onRemove(old);
+            this.topKCache.onInsert(updated);
+        }
+        return updated;
+    }
+
+    /**
+     * Adds many spells to the hash table at once. The spells are grouped by category and each group is loaded into its
+     * category's AVL Tree with AVLTree.addAll - a new category's tree is built in linear time (after sorting) as a
+     * perfectly balanced tree, instead of paying a hash, a chain scan and a rebalancing insert per spell.
+     * 
+     * @param spells the spells to add
+     * 
+     * @throws UnsupportedOperationException if the table is a snapshot
+     */
+    public void addAll(Collection<Spell> spells) {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        Map<String, List<Spell>> groups = new HashMap<String, List<Spell>>();
+
+        for (Spell s : spells) {
+            groups.computeIfAbsent(s.getCategory(), category -> new ArrayList<Spell>()).add(s);
+        }
+
+        for (Map.Entry<String, List<Spell>> group : groups.entrySet()) {
+            SpellIndex tree = findTree(group.getKey());
+            if (tree == null) { // new category
+                tree = newTree(group.getKey());
+                addTree(tree);
+            }
+            this.numSpells += tree.addAll(group.getValue());
+            if (this.topKCache != null) {
+                this.topKCache.invalidate(group.getKey());
+            }
+            if (tree.getSize() > SpellIndex.Engine.AUTO_THRESHOLD) {
+                upgradeTree(group.getKey());
+            }
         }
-        this.numSpells++;
     }
 
     /**
@@ -67,14 +359,12 @@ public class HashAVLSpellTable {
      * @return returns the searched spell as a Spell class instance, if found, else returns null
      */
     public Spell searchSpell(String category, String spellName, int powerLevel) {
-        int index = hash(category);
+        SpellIndex tree = findTree(category);
 
-        for (AVLTree tree : this.buckets[index]) { // iterate over trees in the same index
-            if (tree.getCategory().equals(category)) {
-                return tree.search(spellName, powerLevel);
-            }
+        if (tree == null) {
+            return null;
         }
-        return null;
+        return tree.search(spellName, powerLevel);
     }
 
     /**
@@ -94,40 +384,548 @@ public class HashAVLSpellTable {
      * @return Returns the number of spells that exist with the same input category.
      */
     public int getNumberSpells(String category){
-        int index = hash(category);
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
+            return 0; // return 0 if category was not found
+        }
+        return tree.getSize(); // numbere of spells in the AVLTree - tree
+    }
+
+    /**
+     * Function that returns the top-k spells (based on power level) with the same input category.
+     * While the top-k cache is enabled and k is at most its N, the list is a shared immutable view from the cache.
+     * 
+     * @param category The category of spells
+     * @param k The number of top spells to return
+     * 
+     * @return Returns list of top-k spells of the given category.
+     */
+    public List<Spell> getTopK(String category, int k) {
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
+            return null;
+        }
+        if ((this.topKCache != null) && (k <= this.topKCache.getN())) {
+            return this.topKCache.getTopK(tree, k);
+        }
+        return tree.getTopK(k);
+    }
+
+    /**
+     * Function that returns the top-k spells (based on power level) over all the categories.
+     * See getTopK(Set, int) for how the categories are merged.
+     * 
+     * @param k The number of top spells to return
+     * 
+     * @return Returns list of the top-k spells of the whole table, from the highest power level to the lowest.
+     */
+    public List<Spell> getGlobalTopK(int k) {
+        List<SpellIndex> selected = new ArrayList<SpellIndex>(this.numCategories);
+
+        for (SpellIndex tree : this.trees) {
+            if (tree != null) {
+                selected.add(tree);
+            }
+        }
+        return mergeTopK(selected, k);
+    }
+
+    /**
+     * Function that returns the top-k spells (based on power level) over the input categories.
+     * The descending iterators of the categories' trees are merged lazily through a heap, so only O(k) spells are
+     * read past the first one of each category - O(c log n + k log c) for c categories. Above PARALLEL_MERGE_THRESHOLD
+     * categories, the categories are split into groups merged in parallel on the common fork-join pool, and the
+     * groups' top-k lists are merged pairwise. The table must not be modified during the call.
+     * 
+     * @param categories The categories of spells, the ones that don't exist are ignored
+     * @param k The number of top spells to return
+     * 
+     * @return Returns list of the top-k spells of the categories, from the highest power level to the lowest.
+     */
+    public List<Spell> getTopK(Set<String> categories, int k) {
+        List<SpellIndex> selected = new ArrayList<SpellIndex>(categories.size());
+
+        for (String category : categories) {
+            SpellIndex tree = findTree(category);
+            if (tree != null) {
+                selected.add(tree);
+            }
+        }
+        return mergeTopK(selected, k);
+    }
+
+    /**
+     * Getter. Returns the names of all the categories in the table, in no particular order.
+     * 
+     * @return Returns a new list of the category names.
+     */
+    public List<String> getCategories() {
+        List<String> categories = new ArrayList<String>(this.numCategories);
+
+        for (SpellIndex tree : this.trees) {
+            if (tree != null) {
+                categories.add(tree.getCategory());
+            }
+        }
+        return categories;
+    }
+
+    /**
+     * Starts caching the top-n spells of the categories that getTopK is called on (see TopKCache). Replaces the
+     * current cache, if any.
+     * 
+     * @param n the number of top spells kept per category, getTopK with a larger k walks the tree
+     * @param maxEntries the most spells the cache holds over all the categories, at least n
+     */
+    public void enableTopKCache(int n, int maxEntries) {
+        this.topKCache = new TopKCache(n, maxEntries);
+    }
+
+    /**
+     * Stops caching top-k spells and drops the cache.
+     */
+    public void disableTopKCache() {
+        this.topKCache = null;
+    }
 
-        if (this.buckets[index] == null) {
+    /**
+     * Getter, returns the top-k cache, with its hit and miss counters.
+     * 
+     * @return Returns the live cache, or null if it's disabled.
+     */
+    public TopKCache getTopKCache() {
+        return this.topKCache;
+    }
+
+    /**
+     * Function that returns a lazy iterator over the spells of the input category, from the highest power level to
+     * the lowest. Unlike getTopK nothing is copied, so the caller can stop at any point.
+     * The table must not be modified while iterating.
+     * 
+     * @param category The category of spells
+     * 
+     * @return Returns an iterator over the spells of the category in descending power level order (empty if the category doesn't exist).
+     */
+    public Iterator<Spell> topIterator(String category) {
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
+            return Collections.emptyIterator();
+        }
+        return tree.descendingIterator();
+    }
+
+    /**
+     * Function that returns the spells of the input category whose power level is in [lo, hi], as a lazy stream in
+     * ascending power level order. Costs O(log n + m) for m returned spells, and never copies the range.
+     * The table must not be modified while the stream is consumed.
+     * 
+     * @param category The category of spells
+     * @param lo The lowest power level to return (inclusive)
+     * @param hi The highest power level to return (inclusive)
+     * 
+     * @return Returns a stream of the spells in the range (empty if the category doesn't exist).
+     */
+    public Stream<Spell> rangeQuery(String category, int lo, int hi) {
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
+            return Stream.empty();
+        }
+        return tree.rangeQuery(lo, hi);
+    }
+
+    /**
+     * Returns the rank of a power level in the input category - the number of spells of the category with a lower power level.
+     * 
+     * @param category The category of spells
+     * @param powerLevel The power level to rank
+     * 
+     * @return Returns the number of spells of the category below powerLevel (0 if the category doesn't exist).
+     */
+    public int rank(String category, int powerLevel) {
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
+            return 0;
+        }
+        return tree.rank(powerLevel);
+    }
+
+    /**
+     * Returns the spell of the input category with the i-th lowest power level, counting from 0.
+     * 
+     * @param category The category of spells
+     * @param i The rank of the spell
+     * 
+     * @return Returns the spell with the given rank, or null if the category doesn't exist or i is out of range.
+     */
+    public Spell select(String category, int i) {
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
+            return null;
+        }
+        return tree.select(i);
+    }
+
+    /**
+     * Returns the number of spells of the input category whose power level is in [lo, hi], in O(log n).
+     * 
+     * @param category The category of spells
+     * @param lo The lowest power level to count (inclusive)
+     * @param hi The highest power level to count (inclusive)
+     * 
+     * @return Returns the number of spells in the range (0 if the category doesn't exist).
+     */
+    public int countInRange(String category, int lo, int hi) {
+        SpellIndex tree = findTree(category);
+
+        if (tree == null) {
             return 0;
         }
+        return tree.countInRange(lo, hi);
+    }
 
-        for (AVLTree tree : this.buckets[index]) { // iterate over trees in the same index
-            if (tree.getCategory().equals(category)) {
-                return tree.getSize(); // numbere of spells in the AVLTree - tree
+    /**
+     * Helper function. Merges the top-k spells of several trees - sequentially, or over the fork-join pool if there
+     * are many trees.
+     * 
+     * @param trees the AVL Trees to merge
+     * @param k the number of top spells to return
+     * 
+     * @return Returns list of the top-k spells of the trees, in descending order.
+     */
+    private static List<Spell> mergeTopK(List<SpellIndex> trees, int k) {
+        if (k <= 0 || trees.isEmpty()) {
+            return new ArrayList<Spell>();
+        }
+        if (trees.size() <= PARALLEL_MERGE_THRESHOLD) {
+            return heapMerge(trees, 0, trees.size(), k);
+        }
+        return ForkJoinPool.commonPool().invoke(new MergeTask(trees, 0, trees.size(), k));
+    }
+
+    /**
+     * Helper function. Lazily merges the descending iterators of a range of trees through a max-heap of their next spells.
+     * 
+     * @param trees the AVL Trees
+     * @param from the index of the first tree to merge
+     * @param to the index after the last tree to merge
+     * @param k the number of top spells to return
+     * 
+     * @return Returns list of the top-k spells of the trees, in descending order.
+     */
+    private static List<Spell> heapMerge(List<SpellIndex> trees, int from, int to, int k) {
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(to - from, 1));
+        List<Spell> result = new ArrayList<Spell>();
+
+        for (int i = from; i < to; i++) {
+            Iterator<Spell> spells = trees.get(i).descendingIterator();
+            if (spells.hasNext()) {
+                heap.add(new Cursor(spells));
             }
         }
-        return 0; // return 0 if category was not found
+        while ((result.size() < k) && !heap.isEmpty()) {
+            Cursor cursor = heap.poll();
+            result.add(cursor.head);
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+        }
+        return result;
     }
 
     /**
-     * Function that returns the top-k spells (based on power level) with the same input category
+     * Helper function. Merges two descending lists of spells, keeping the top k.
+     * 
+     * @param a a list of spells in descending order
+     * @param b a list of spells in descending order
+     * @param k the number of top spells to keep
+     * 
+     * @return Returns list of the top-k spells of both lists, in descending order.
+     */
+    private static List<Spell> mergeLists(List<Spell> a, List<Spell> b, int k) {
+        List<Spell> result = new ArrayList<Spell>(Math.min(k, a.size() + b.size()));
+        int i = 0;
+        int j = 0;
+
+        while ((result.size() < k) && ((i < a.size()) || (j < b.size()))) {
+            if ((j == b.size()) || ((i < a.size()) && (AVLTree.compareSpells(a.get(i), b.get(j)) >= 0))) {
+                result.add(a.get(i++));
+            } else {
+                result.add(b.get(j++));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A tree's descending iterator and its next spell, ordered for the heap so the strongest spell comes out first.
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        private Spell head;
+        private Iterator<Spell> rest;
+
+        private Cursor(Iterator<Spell> spells) {
+            this.head = spells.next();
+            this.rest = spells;
+        }
+
+        private boolean advance() {
+            if (!this.rest.hasNext()) {
+                return false;
+            }
+            this.head = this.rest.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return AVLTree.compareSpells(other.head, this.head); // reversed - PriorityQueue is a min-heap
+        }
+    }
+
+    /**
+     * Fork-join task of a cross-category top-k: splits its range of trees in half until a range is small enough to
+     * heap-merge, then merges the halves' top-k lists.
+     */
+    private static class MergeTask extends RecursiveTask<List<Spell>> {
+        private static final long serialVersionUID = 1L;
+
+        private List<SpellIndex> trees;
+        private int from;
+        private int to;
+        private int k;
+
+        private MergeTask(List<SpellIndex> trees, int from, int to, int k) {
+            this.trees = trees;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+        }
+
+        @Override
+        protected List<Spell> compute() {
+            if (this.to - this.from <= PARALLEL_MERGE_THRESHOLD) {
+                return heapMerge(this.trees, this.from, this.to, this.k);
+            }
+            int middle = (this.from + this.to) >>> 1;
+            MergeTask left = new MergeTask(this.trees, this.from, middle, this.k);
+            left.fork();
+            List<Spell> right = new MergeTask(this.trees, middle, this.to, this.k).compute();
+            return mergeLists(left.join(), right, this.k);
+        }
+    }
+
+    /**
+     * Helper function. Creates the empty tree of a new category, of the table's engine.
+     * 
+     * @param category the category of the tree
+     * 
+     * @return Returns the new tree.
+     */
+    private SpellIndex newTree(String category) {
+        if (this.persistent) {
+            return new AVLTree(category, true);
+        }
+        return this.engine.create(category);
+    }
+
+    /**
+     * Helper function. With the AUTO engine, moves a category that passed AUTO_THRESHOLD spells from its AVL Tree into
+     * a B+ tree - an in-order scan and a bottom-up build, O(n) once per category.
+     * 
+     * @param category the category to move
+     */
+    private void upgradeTree(String category) {
+        int index = findIndex(category);
+
+        if ((this.engine != SpellIndex.Engine.AUTO) || (this.trees[index] instanceof BPlusTree)) {
+            return;
+        }
+        List<Spell> spells = new ArrayList<Spell>(this.trees[index].getSize());
+        this.trees[index].rangeIterator(Integer.MIN_VALUE, Integer.MAX_VALUE).forEachRemaining(spells::add);
+        BPlusTree tree = new BPlusTree(category);
+        tree.addAll(spells);
+        this.trees[index] = tree;
+    }
+
+    /**
+     * Helper function for SpellTableFile.load. Adds a new category with all of its spells, building its tree in one go.
+     * 
+     * @param category the category to add
+     * @param spells the spells of the category, sorted in ascending order
+     * 
+     * @return Returns true if the category was added, false if the table already has it.
+     */
+    boolean loadCategory(String category, List<Spell> spells) {
+        if (findIndex(category) >= 0) {
+            return false;
+        }
+
+        SpellIndex tree = newTree(category, spells.size());
+        tree.addAll(spells);
+        return adoptTree(tree);
+    }
+
+    /**
+     * Helper function for bulk loaders (SpellTableFile, SpellIngest). Adds a new category whose tree was built outside
+     * of the table, e.g. by another thread - the tree must come from newTree and must not be used by its builder anymore.
+     * 
+     * @param tree the tree of a category
+     * 
+     * @return Returns true if the tree was adopted, false if the table already has its category.
+     * 
+     * @throws UnsupportedOperationException if the table is a snapshot
+     */
+    boolean adoptTree(SpellIndex tree) {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+        if (findIndex(tree.getCategory()) >= 0) {
+            return false;
+        }
+        this.numSpells += tree.getSize();
+        addTree(tree);
+        if (tree.getSize() > SpellIndex.Engine.AUTO_THRESHOLD) {
+            upgradeTree(tree.getCategory());
+        }
+        return true;
+    }
+
+    /**
+     * Helper function. Creates the tree of a category that is about to get many spells at once - with the AUTO engine,
+     * a large category goes straight into a B+ tree. Only reads the table's settings, so other threads may call it.
+     * 
+     * @param category the category of the tree
+     * @param expectedSize the number of spells the tree is about to get
+     * 
+     * @return Returns the new tree.
+     */
+    SpellIndex newTree(String category, int expectedSize) {
+        if ((this.engine == SpellIndex.Engine.AUTO) && (expectedSize > SpellIndex.Engine.AUTO_THRESHOLD)) {
+            return new BPlusTree(category);
+        }
+        return newTree(category);
+    }
+
+    /**
+     * Getter. Returns the engine of the table's categories.
+     * 
+     * @return Returns the index engine.
+     */
+    public SpellIndex.Engine getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * Helper function. Finds the AVL Tree of a category.
      * 
      * @param category The category of spells
-     * @param k The number of top spells to return
      * 
-     * @return Returns list of top-k spells of the given category.
+     * @return Returns the AVL Tree of the category, or null if the category was not found.
      */
-    public List<Spell> getTopK(String category, int k) {
-        int index = hash(category);
+    private SpellIndex findTree(String category) {
+        int index = findIndex(category);
 
-        if (this.buckets[index] == null) {
+        if (index < 0) {
             return null;
         }
+        return this.trees[index];
+    }
+
+    /**
+     * Helper function. Finds the slot of a category in the index.
+     * 
+     * @param category The category of spells
+     * 
+     * @return Returns the index of the category's slot, or -1 if the category was not found.
+     */
+    private int findIndex(String category) {
+        int hash = hash(category);
+        int mask = this.tableSize - 1;
+
+        for (int index = hash & mask; this.trees[index] != null; index = (index + 1) & mask) { // an empty slot ends the probe sequence
+            if ((this.categoryHashes[index] == hash) && this.trees[index].getCategory().equals(category)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function. Removes a category's tree from the index by backward-shift deletion: the trees after the
+     * freed slot are moved back into it when their probe sequence passes through it, so the index never needs
+     * tombstones and every probe sequence still ends at the first empty slot.
+     * 
+     * @param index the slot of the tree to remove
+     */
+    private void removeTree(int index) {
+        int mask = this.tableSize - 1;
+        int hole = index;
+
+        this.trees[hole] = null;
+        for (int next = (hole + 1) & mask; this.trees[next] != null; next = (next + 1) & mask) {
+            int home = this.categoryHashes[next] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) { // the hole is between the tree's home slot and its slot
+                this.trees[hole] = this.trees[next];
+                this.categoryHashes[hole] = this.categoryHashes[next];
+                this.trees[next] = null;
+                hole = next;
+            }
+        }
+        this.numCategories--;
+    }
+
+    /**
+     * Helper function. Adds the AVL Tree of a new category to the index, growing the index if needed.
+     * 
+     * @param tree the AVL Tree of a category that is not in the index yet
+     */
+    private void addTree(SpellIndex tree) {
+        if (this.numCategories + 1 > MAX_LOAD_FACTOR * this.tableSize) {
+            resize(2 * this.tableSize);
+        }
+        placeTree(tree, hash(tree.getCategory()));
+        this.numCategories++;
+    }
+
+    /**
+     * Helper function. Puts a tree in the first free slot of its probe sequence.
+     * 
+     * @param tree the AVL Tree of a category
+     * @param hash the hash of the tree's category
+     */
+    private void placeTree(SpellIndex tree, int hash) {
+        int mask = this.tableSize - 1;
+        int index = hash & mask;
+
+        while (this.trees[index] != null) {
+            index = (index + 1) & mask;
+        }
+        this.trees[index] = tree;
+        this.categoryHashes[index] = hash;
+    }
 
-        for (AVLTree tree : this.buckets[index]) { // iterate over trees in the same index
-            if (tree.getCategory().equals(category)) {
-                return tree.getTopK(k); // numbere of spells in the AVLTree - tree
+    /**
+     * Helper function. Moves all the trees to an index of a new size, using the cached hashes.
+     * 
+     * @param newSize the new number of slots, a power of two
+     */
+    private void resize(int newSize) {
+        SpellIndex[] oldTrees = this.trees;
+        int[] oldHashes = this.categoryHashes;
+
+        this.tableSize = newSize;
+        this.trees = new SpellIndex[newSize];
+        this.categoryHashes = new int[newSize];
+        for (int index = 0; index < oldTrees.length; index++) {
+            if (oldTrees[index] != null) {
+                placeTree(oldTrees[index], oldHashes[index]);
             }
-        } 
-        return null;
+        }
     }
 }
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collision and clustering report of a SpellHasher over a set of keys, for comparing hash strategies on a real corpus.
+ * The keys are inserted (by double hashing, the way DoubleHashTable does) into a table of the given capacity and the
+ * resulting probe lengths and clusters are measured.
+ *
+ * Usage: java HashReport names.txt [capacity] - one key per line, prints a report for every built-in strategy.
+ */
+public class HashReport {
+    private String hasherName;
+    private int keys;
+    private int capacity;
+    private int fullCollisions; // distinct keys with exactly the same 64-bit hash
+    private int homeCollisions; // keys whose home slot was already taken by an earlier key's home slot
+    private int maxKeysPerHome;
+    private double averageProbes;
+    private int maxProbes;
+    private int clusters; // runs of consecutive taken slots
+    private int maxCluster;
+
+    /**
+     * Private constructor, use analyze.
+     */
+    private HashReport() {
+    }
+
+    /**
+     * Measures a hash strategy over a set of keys.
+     *
+     * @param hasher the hash strategy to measure
+     * @param keys the keys to hash, duplicates are ignored
+     * @param capacity the capacity of the simulated table (prime, like DoubleHashTable's), at least 3 and greater than the number of distinct keys
+     *
+     * @return Returns the report.
+     */
+    public static HashReport analyze(SpellHasher hasher, List<String> keys, int capacity) {
+        Set<String> distinct = new LinkedHashSet<String>(keys);
+        HashReport report = new HashReport();
+
+        if (capacity < 3) { // the h2 step is reduced modulo capacity - 2, like DoubleHashTable's
+            throw new IllegalArgumentException("capacity must be at least 3, got: " + capacity);
+        }
+        if (distinct.size() >= capacity) {
+            throw new IllegalArgumentException("capacity " + capacity + " must be greater than the number of keys " + distinct.size());
+        }
+
+        report.hasherName = hasher.toString();
+        report.keys = distinct.size();
+        report.capacity = capacity;
+
+        Map<Long, Integer> hashCounts = new HashMap<Long, Integer>();
+        int[] homeCounts = new int[capacity];
+        boolean[] taken = new boolean[capacity];
+        long totalProbes = 0;
+
+        for (String key : distinct) {
+            long hash = hasher.hash(key);
+            int home = Integer.remainderUnsigned(SpellHasher.h1(hash), capacity);
+            int step = 1 + Integer.remainderUnsigned(SpellHasher.h2(hash), capacity - 2); // same reduction as DoubleHashTable
+
+            if (hashCounts.merge(hash, 1, Integer::sum) > 1) {
+                report.fullCollisions++;
+            }
+            if (homeCounts[home]++ > 0) {
+                report.homeCollisions++;
+            }
+            report.maxKeysPerHome = Math.max(report.maxKeysPerHome, homeCounts[home]);
+
+            int index = home;
+            int probes = 0;
+            while (taken[index] && probes < capacity) { // a non-prime capacity may not reach every slot
+                probes++;
+                index = (int)((index + (long)step) % capacity);
+            }
+            taken[index] = true;
+            totalProbes += probes;
+            report.maxProbes = Math.max(report.maxProbes, probes);
+        }
+        report.averageProbes = report.keys == 0 ? 0 : (double)totalProbes / report.keys;
+
+        // primary clusters - runs of taken slots, the table wraps around
+        int run = 0;
+        for (int index = 0; index < capacity; index++) {
+            if (taken[index]) {
+                if (run == 0) {
+                    report.clusters++;
+                }
+                run++;
+                report.maxCluster = Math.max(report.maxCluster, run);
+            } else {
+                run = 0;
+            }
+        }
+        if (taken[0] && taken[capacity - 1] && (report.clusters > 1)) { // the last run continues into the first one
+            int head = 0;
+            while (taken[head]) {
+                head++;
+            }
+            report.clusters--;
+            report.maxCluster = Math.max(report.maxCluster, head + run);
+        }
+        return report;
+    }
+
+    /**
+     * Getter, returns the number of distinct keys with exactly the same 64-bit hash as an earlier key.
+     *
+     * @return Returns the number of full hash collisions.
+     */
+    public int getFullCollisions() {
+        return this.fullCollisions;
+    }
+
+    /**
+     * Getter, returns the number of keys whose home slot was the home slot of an earlier key.
+     *
+     * @return Returns the number of home slot collisions.
+     */
+    public int getHomeCollisions() {
+        return this.homeCollisions;
+    }
+
+    /**
+     * Getter, returns the average number of probe steps per insert.
+     *
+     * @return Returns the average number of probe steps.
+     */
+    public double getAverageProbes() {
+        return this.averageProbes;
+    }
+
+    /**
+     * Getter, returns the longest probe sequence of an insert.
+     *
+     * @return Returns the maximal number of probe steps.
+     */
+    public int getMaxProbes() {
+        return this.maxProbes;
+    }
+
+    /**
+     * Getter, returns the length of the longest run of consecutive taken slots.
+     *
+     * @return Returns the size of the largest primary cluster.
+     */
+    public int getMaxCluster() {
+        return this.maxCluster;
+    }
+
+    /**
+     * Overriding toString() function to make a custom one
+     *
+     * @return returns a string that summarizes the report
+     */
+    @Override
+    public String toString() {
+        return String.format("%s: %d keys in %d slots - full collisions: %d, home collisions: %d (max %d per slot), "
+                + "probes: avg %.3f max %d, clusters: %d (largest %d)",
+                this.hasherName, this.keys, this.capacity, this.fullCollisions, this.homeCollisions, this.maxKeysPerHome,
+                this.averageProbes, this.maxProbes, this.clusters, this.maxCluster);
+    }
+
+    /**
+     * Prints a report of every built-in strategy over the keys of a file.
+     *
+     * @param args the file of keys (one per line), and optionally the table capacity (default: prime above 2 x keys)
+     *
+     * @throws IOException if the file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java HashReport <keys file> [capacity]");
+            return;
+        }
+
+        List<String> keys = Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8);
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : DoubleHashTable.nextPrime(Math.max(2 * new LinkedHashSet<String>(keys).size() + 1, 3));
+        if (capacity < 3) {
+            System.out.println("The capacity must be at least 3, got: " + capacity);
+            return;
+        }
+
+        System.out.println(analyze(SpellHasher.CHAR_SUM, keys, capacity));
+        System.out.println(analyze(SpellHasher.MIX, keys, capacity));
+    }
+}
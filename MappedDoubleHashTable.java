@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only double hashing table of spells that runs its lookups straight against a memory-mapped file written by
+ * PackedDoubleHashTable.save or DoubleHashTable.save. Opening only maps the file and checks its header, so it takes the
+ * same time no matter how many spells are stored - pages are brought in by the OS as lookups touch them.
+ *
+ * File layout (all ints are big-endian):
+ *   header - MAGIC, VERSION, capacity, size (4 ints)
+ *   slots - capacity x (int hash, int data offset), offset -1 == empty slot
+ *   data - size x (int name length, int words length, UTF-8 name bytes, UTF-8 words bytes)
+ * Data offsets are relative to the start of the data section. Slots are probed exactly like PackedDoubleHashTable does.
+ */
+public class MappedDoubleHashTable {
+    static final int MAGIC = 0x53504448; // "SPDH"
+    static final int VERSION = 2; // 2 - names are hashed with SpellHasher.MIX
+    static final int HEADER_SIZE = 16;
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    private int dataStart;
+
+    /**
+     * Private constructor, use open.
+     *
+     * @param buffer the mapped file
+     * @param capacity the number of slots
+     * @param size the number of spells
+     */
+    private MappedDoubleHashTable(MappedByteBuffer buffer, int capacity, int size) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.size = size;
+        this.dataStart = HEADER_SIZE + 8 * capacity;
+    }
+
+    /**
+     * Maps a file saved by PackedDoubleHashTable.save or DoubleHashTable.save.
+     *
+     * @param path the file to open
+     *
+     * @return Returns the mapped table.
+     *
+     * @throws IOException if the file can't be mapped or is not a saved table
+     */
+    public static MappedDoubleHashTable open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) { // the mapping stays valid after closing the channel
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a saved spell table: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a saved spell table: " + path);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported spell table version " + buffer.getInt(4) + ": " + path);
+        }
+
+        int capacity = buffer.getInt(8);
+        int size = buffer.getInt(12);
+        if (capacity < 3 || size < 0 || size > capacity || HEADER_SIZE + 8L * capacity + 8L * size > buffer.capacity()) {
+            throw new IOException("Corrupted spell table header: " + path);
+        }
+        return new MappedDoubleHashTable(buffer, capacity, size);
+    }
+
+    /**
+     * Function that returns the 'words' used to cast the spell, given its 'name'.
+     * Safe to call from several threads at once.
+     *
+     * @param name the name of the spell
+     *
+     * @return Returns the 'words' to cast the spell, or null if the spell is not in the table.
+     */
+    public String getCastWords(String name) {
+        int hash = PackedDoubleHashTable.hashName(name);
+        int index = PackedDoubleHashTable.h1(hash, this.capacity);
+        int step = PackedDoubleHashTable.h2(hash, this.capacity);
+        byte[] nameBytes = null; // encoded only once a stored hash matches
+
+        for (int probe = 0; probe < this.capacity; probe++) {
+            int slot = HEADER_SIZE + 8 * index;
+            int offset = this.buffer.getInt(slot + 4);
+
+            if (offset == -1) { // an empty slot ends the probe sequence
+                return null;
+            }
+            if (this.buffer.getInt(slot) == hash) {
+                if (nameBytes == null) {
+                    nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                }
+                int entry = this.dataStart + offset;
+                if (nameEquals(entry, nameBytes)) { // found
+                    byte[] words = new byte[this.buffer.getInt(entry + 4)];
+                    this.buffer.get(entry + 8 + nameBytes.length, words);
+                    return new String(words, StandardCharsets.UTF_8);
+                }
+            }
+            index = (index + step) % this.capacity;
+        }
+        return null;
+    }
+
+    /**
+     * Getter, returns the number of spells in the table.
+     *
+     * @return Returns the number of spells in the table.
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Getter, returns the capacity (number of slots) of the table.
+     *
+     * @return Returns the capacity of the table.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Compares the name of a stored entry with the given name, byte by byte, in place.
+     *
+     * @param entry the absolute position of the entry in the file
+     * @param nameBytes the UTF-8 bytes of the name to compare with
+     *
+     * @return Returns true if the names are equal.
+     */
+    private boolean nameEquals(int entry, byte[] nameBytes) {
+        if (this.buffer.getInt(entry) != nameBytes.length) {
+            return false;
+        }
+        int start = entry + 8;
+        for (int idx = 0; idx < nameBytes.length; idx++) {
+            if (this.buffer.get(start + idx) != nameBytes[idx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
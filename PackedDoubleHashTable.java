@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A double hashing table of spells (name -> words) stored as a struct of primitive arrays instead of SpellSimple objects.
+ * Every slot keeps the cached 32-bit hash of its name next to the index of its entry, and the names and words of all the
+ * entries are packed (UTF-8) one after the other in a single byte arena, addressed by offset and length.
+ * Probing compares the cached hashes and only touches the arena when the hashes match.
+ */
+public class PackedDoubleHashTable {
+    private static final int MAX_ARENA_SIZE = Integer.MAX_VALUE - 8; // largest array size the JVM reliably allocates
+
+    // slots, indexed by the probe sequence
+    private int[] slotHashes; // cached hash of the name stored in the slot
+    private int[] slotEntries; // entry number + 1, 0 == empty slot
+
+    // entries, in insertion order
+    private int[] entryHashes;
+    private int[] entryOffsets; // offset of the name in the arena, the words follow right after it
+    private int[] nameLengths;
+    private int[] wordsLengths;
+
+    private byte[] arena;
+    private int arenaSize;
+
+    private int capacity;
+    private int size;
+    private double maxLoadFactor;
+    private int steps=0;
+
+    /**
+     * Constructor. Starts with an empty table that grows once its load factor passes 0.5.
+     *
+     * @param initialCapacity The initial capacity of the table, rounded up to a prime.
+     */
+    public PackedDoubleHashTable(int initialCapacity) {
+        this(initialCapacity, 0.5);
+    }
+
+    /**
+     * Constructor. Starts with an empty table that grows (to at least double its capacity) once an insert would
+     * push its load factor above maxLoadFactor.
+     *
+     * @param initialCapacity The initial capacity of the table, rounded up to a prime.
+     * @param maxLoadFactor The load factor (size / capacity) that triggers a resize, must be in (0, 1).
+     */
+    public PackedDoubleHashTable(int initialCapacity, double maxLoadFactor) {
+        if (!(maxLoadFactor > 0 && maxLoadFactor < 1)) {
+            throw new IllegalArgumentException("maxLoadFactor must be in (0, 1), got: " + maxLoadFactor);
+        }
+        this.capacity = DoubleHashTable.nextPrime(Math.max(initialCapacity, 3));
+        this.maxLoadFactor = maxLoadFactor;
+        this.slotHashes = new int[this.capacity];
+        this.slotEntries = new int[this.capacity];
+
+        int entries = (int)(this.capacity * maxLoadFactor) + 1;
+        this.entryHashes = new int[entries];
+        this.entryOffsets = new int[entries];
+        this.nameLengths = new int[entries];
+        this.wordsLengths = new int[entries];
+        this.arena = new byte[16 * entries];
+        this.arenaSize = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Inserts new spell struct to the table. The name and words are copied into the arena, the SpellSimple instance isn't kept.
+     *
+     * @param spell spell struct, an instance of SpellSimple class
+     *
+     * @return Returns True if succeeds or False if not (the arena can't hold the spell).
+     */
+    public boolean put(SpellSimple spell) {
+        byte[] name = spell.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] words = spell.getWords().getBytes(StandardCharsets.UTF_8);
+        int hash = hashName(spell.getName());
+
+        if (!ensureArena(name.length + words.length)) {
+            return false;
+        }
+        if (this.size + 1 > this.maxLoadFactor * this.capacity) {
+            resize(DoubleHashTable.nextPrime(2 * this.capacity));
+        }
+        if (this.size == this.entryHashes.length) {
+            growEntries();
+        }
+
+        // copy the strings to the end of the arena
+        int entry = this.size;
+        this.entryHashes[entry] = hash;
+        this.entryOffsets[entry] = this.arenaSize;
+        this.nameLengths[entry] = name.length;
+        this.wordsLengths[entry] = words.length;
+        System.arraycopy(name, 0, this.arena, this.arenaSize, name.length);
+        System.arraycopy(words, 0, this.arena, this.arenaSize + name.length, words.length);
+        this.arenaSize += name.length + words.length;
+
+        this.steps = 0;
+        int index = h1(hash, this.capacity);
+        int step = h2(hash, this.capacity);
+        while (this.slotEntries[index] != 0) { // the load factor keeps free slots, and a prime capacity makes the sequence visit all of them
+            this.steps++;
+            index = (index + step) % this.capacity;
+        }
+        this.slotHashes[index] = hash;
+        this.slotEntries[index] = entry + 1;
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Function that returns the 'words' used to cast the spell, given its 'name'.
+     *
+     * @param name the name of the spell
+     *
+     * @return Returns the 'words' to cast the spell, or null if the spell is not in the table.
+     */
+    public String getCastWords(String name) {
+        int hash = hashName(name);
+        int index = h1(hash, this.capacity);
+        int step = h2(hash, this.capacity);
+        byte[] nameBytes = null; // encoded only once a cached hash matches
+
+        this.steps = 0;
+        while (this.slotEntries[index] != 0) { // an empty slot ends the probe sequence
+            if (this.slotHashes[index] == hash) {
+                int entry = this.slotEntries[index] - 1;
+                if (nameBytes == null) {
+                    nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                }
+                int offset = this.entryOffsets[entry];
+                int nameLength = this.nameLengths[entry];
+                if (Arrays.equals(this.arena, offset, offset + nameLength, nameBytes, 0, nameBytes.length)) { // found
+                    return new String(this.arena, offset + nameLength, this.wordsLengths[entry], StandardCharsets.UTF_8);
+                }
+            }
+            this.steps++;
+            index = (index + step) % this.capacity;
+        }
+        return null;
+    }
+
+    /**
+     * Getter, returns the number of spells in the table.
+     *
+     * @return Returns the number of spells currently in the table.
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Getter, returns the current capacity (number of slots) of the table.
+     *
+     * @return Returns the current capacity of the table.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Getter, returns the number of steps performed in the last 'put' or 'getCastWords' action.
+     *
+     * @return Returns the number of steps performed in the last 'put' or 'getCastWords' action
+     */
+    public int getLastSteps() {
+        return this.steps;
+    }
+
+    /**
+     * Getter, returns the number of arena bytes taken by the names and words of the stored spells.
+     *
+     * @return Returns the number of used arena bytes.
+     */
+    public int getArenaSize() {
+        return this.arenaSize;
+    }
+
+    /**
+     * Saves the table to a file, in the layout that MappedDoubleHashTable reads (see there).
+     * The slots are written as they are, so opening the file needs no rehashing at all.
+     *
+     * @param path the file to write, replaced if it exists
+     *
+     * @throws IOException if writing fails, or the table is too large to be mapped as a single region
+     */
+    public void save(Path path) throws IOException {
+        long dataSize = 8L * this.size + this.arenaSize;
+        long fileSize = MappedDoubleHashTable.HEADER_SIZE + 8L * this.capacity + dataSize;
+
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Table is too large to be mapped: " + fileSize + " bytes");
+        }
+
+        // data offset of each entry - the entries are written in insertion order
+        int[] dataOffsets = new int[this.size];
+        int offset = 0;
+        for (int entry = 0; entry < this.size; entry++) {
+            dataOffsets[entry] = offset;
+            offset += 8 + this.nameLengths[entry] + this.wordsLengths[entry];
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+            buffer.putInt(MappedDoubleHashTable.MAGIC);
+            buffer.putInt(MappedDoubleHashTable.VERSION);
+            buffer.putInt(this.capacity);
+            buffer.putInt(this.size);
+
+            for (int index = 0; index < this.capacity; index++) {
+                if (buffer.remaining() < 8) {
+                    flush(channel, buffer);
+                }
+                if (this.slotEntries[index] == 0) {
+                    buffer.putInt(0);
+                    buffer.putInt(-1); // empty slot
+                } else {
+                    buffer.putInt(this.slotHashes[index]);
+                    buffer.putInt(dataOffsets[this.slotEntries[index] - 1]);
+                }
+            }
+
+            for (int entry = 0; entry < this.size; entry++) {
+                if (buffer.remaining() < 8) {
+                    flush(channel, buffer);
+                }
+                buffer.putInt(this.nameLengths[entry]);
+                buffer.putInt(this.wordsLengths[entry]);
+
+                // name and words are adjacent in the arena, copy them together
+                int from = this.entryOffsets[entry];
+                int remaining = this.nameLengths[entry] + this.wordsLengths[entry];
+                while (remaining > 0) {
+                    if (!buffer.hasRemaining()) {
+                        flush(channel, buffer);
+                    }
+                    int chunk = Math.min(remaining, buffer.remaining());
+                    buffer.put(this.arena, from, chunk);
+                    from += chunk;
+                    remaining -= chunk;
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to the channel and clears it.
+     *
+     * @param channel the channel to write to
+     * @param buffer the buffer to drain
+     *
+     * @throws IOException if writing fails
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Hash function used for both the probe start and the probe step - the h1 half of SpellHasher.MIX.
+     * Saved tables store these hashes, so this must not change without bumping MappedDoubleHashTable.VERSION.
+     *
+     * @param name the name of the spell
+     *
+     * @return Returns the 32-bit hash of the name.
+     */
+    static int hashName(String name) {
+        return SpellHasher.h1(SpellHasher.MIX.hash(name));
+    }
+
+    /**
+     * Returns the first slot of the probe sequence of a hash.
+     *
+     * @param hash the hash of the name
+     * @param slotsCapacity the capacity of the table
+     *
+     * @return Returns the first slot index to probe.
+     */
+    static int h1(int hash, int slotsCapacity) {
+        return Integer.remainderUnsigned(hash, slotsCapacity);
+    }
+
+    /**
+     * Returns the step size of the probe sequence of a hash. Uses the high bits, which h1 hardly depends on.
+     *
+     * @param hash the hash of the name
+     * @param slotsCapacity the (prime) capacity of the table
+     *
+     * @return Returns a step size in [1, slotsCapacity - 1].
+     */
+    static int h2(int hash, int slotsCapacity) {
+        return 1 + Integer.remainderUnsigned(Integer.rotateLeft(hash, 16) * 0x9E3779B1, slotsCapacity - 1);
+    }
+
+    /**
+     * Rebuilds the slot arrays with a new capacity, using the cached hashes (no string is read or re-hashed).
+     *
+     * @param newCapacity the new (prime) capacity
+     */
+    private void resize(int newCapacity) {
+        this.capacity = newCapacity;
+        this.slotHashes = new int[newCapacity];
+        this.slotEntries = new int[newCapacity];
+
+        for (int entry = 0; entry < this.size; entry++) {
+            int hash = this.entryHashes[entry];
+            int index = h1(hash, newCapacity);
+            int step = h2(hash, newCapacity);
+            while (this.slotEntries[index] != 0) {
+                index = (index + step) % newCapacity;
+            }
+            this.slotHashes[index] = hash;
+            this.slotEntries[index] = entry + 1;
+        }
+    }
+
+    /**
+     * Doubles the entry arrays.
+     */
+    private void growEntries() {
+        int newLength = 2 * this.entryHashes.length;
+        this.entryHashes = Arrays.copyOf(this.entryHashes, newLength);
+        this.entryOffsets = Arrays.copyOf(this.entryOffsets, newLength);
+        this.nameLengths = Arrays.copyOf(this.nameLengths, newLength);
+        this.wordsLengths = Arrays.copyOf(this.wordsLengths, newLength);
+    }
+
+    /**
+     * Makes sure the arena has room for more bytes, growing it if needed.
+     *
+     * @param bytes the number of bytes about to be appended
+     *
+     * @return Returns False if the arena would pass the maximal array size.
+     */
+    private boolean ensureArena(int bytes) {
+        long required = (long)this.arenaSize + bytes;
+
+        if (required > MAX_ARENA_SIZE) {
+            return false;
+        }
+        if (required > this.arena.length) {
+            this.arena = Arrays.copyOf(this.arena, (int)Math.min(Math.max(2L * this.arena.length, required), MAX_ARENA_SIZE));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,652 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * AVL Tree of the spells of a single category, with the same order and operations as AVLTree, whose nodes live in
+ * parallel primitive arrays instead of objects: node i is left[i], right[i], height[i], subtreeSize[i], power[i],
+ * prefix[i] and spells[i]. A tree is a handful of arrays however many spells it holds, so there are no per-node
+ * headers and nothing per node for the GC to trace but the spells themselves, and the comparisons of a search read
+ * the power levels and name prefixes straight from the arrays without touching the spells.
+ * Removed nodes go to a free list (linked through left[]) and are reused by the next inserts; the arrays double when full.
+ */
+public class PooledAVLTree implements SpellIndex {
+
+    private static final int NIL = -1; // the null node
+    private static final int MAX_HEIGHT = 64; // an AVL tree of 2^31 nodes is less than 46 levels high
+
+    private int[] left;
+    private int[] right;
+    private byte[] height; // a leaf is 0
+    private int[] subtreeSize;
+    private int[] power; // power level of each node's spell, compared without dereferencing the spell
+    private long[] prefix; // AVLTree.namePrefix of each node's spell name
+    private Spell[] spells;
+
+    private int root;
+    private int size;
+    private int next; // the first node that was never used
+    private int free; // the head of the free list, NIL if empty
+    private String category;
+    private int[] path; // the nodes visited by the current insert or remove
+
+    /**
+     * Constructor. Creates an empty tree for a category.
+     *
+     * @param category the category that the tree represents
+     */
+    public PooledAVLTree(String category) {
+        this(category, 16);
+    }
+
+    /**
+     * Constructor. Creates an empty tree for a category, with room for a number of spells before the arrays grow.
+     *
+     * @param category the category that the tree represents
+     * @param capacity the number of spells expected
+     */
+    public PooledAVLTree(String category, int capacity) {
+        this.category = category;
+        this.root = NIL;
+        this.size = 0;
+        this.next = 0;
+        this.free = NIL;
+        this.path = new int[MAX_HEIGHT];
+        allocateArrays(Math.max(capacity, 1));
+    }
+
+    /**
+     * Getter, returns the height of the tree
+     *
+     * @return returns the height of the tree, -1 if it's empty
+     */
+    public int getTreeHeight() {
+        return heightOf(this.root);
+    }
+
+    /**
+     * Getter, returns the size of the tree (number of spells)
+     *
+     * @return returns the number of spells in the tree.
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Getter, returns the number of nodes the arrays have room for.
+     *
+     * @return returns the capacity of the node pool
+     */
+    public int getCapacity() {
+        return this.spells.length;
+    }
+
+    /**
+     * Getter, returns the category that the tree represents as a string.
+     *
+     * @return returns the category that the tree represents
+     */
+    public String getCategory() {
+        return this.category;
+    }
+
+    /**
+     * Searches for a spell based on the name and the power level - O(log n)
+     *
+     * @param spellName the name of the spell to locate
+     * @param powerLevel the power level of the spell to locate
+     *
+     * @return returns the spell of the requested spell name and power level if exists, else returns null
+     */
+    public Spell search(String spellName, int powerLevel) {
+        long namePrefix = AVLTree.namePrefix(spellName);
+        int node = this.root;
+
+        for (int depth = 0; (node != NIL) && (depth < MAX_HEIGHT); depth++) {
+            int cmp = compare(powerLevel, spellName, namePrefix, node);
+            if (cmp < 0) {
+                node = this.left[node];
+            } else if (cmp > 0) {
+                node = this.right[node];
+            } else {
+                return this.spells[node];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts new spell to the tree, the same way AVLTree.insert does.
+     *
+     * @param spell Spell class instance
+     *
+     * @return returns true if the spell was inserted, false if a spell with the same power level and name already exists
+     */
+    public boolean insert(Spell spell) {
+        int[] path = this.path;
+        int depth = 0;
+        int powerLevel = spell.getPowerLevel();
+        String name = spell.getName();
+        long namePrefix = AVLTree.namePrefix(name);
+        int cmp = 0;
+        int node = this.root;
+
+        while (node != NIL) {
+            path[depth++] = node;
+            cmp = compare(powerLevel, name, namePrefix, node);
+            if (cmp < 0) {
+                node = this.left[node];
+            } else if (cmp > 0) {
+                node = this.right[node];
+            } else {
+                return false; // won't insert duplicates
+            }
+        }
+
+        int newNode = allocate(spell, namePrefix);
+        this.size++;
+        if (depth == 0) {
+            this.root = newNode;
+            return true;
+        }
+        for (int i = 0; i < depth; i++) { // every node on the path gains a spell in its subtree
+            this.subtreeSize[path[i]]++;
+        }
+        if (cmp < 0) {
+            this.left[path[depth - 1]] = newNode;
+        } else {
+            this.right[path[depth - 1]] = newNode;
+        }
+
+        for (int i = depth - 1; i >= 0; i--) {
+            node = path[i];
+            int leftHeight = heightOf(this.left[node]);
+            int rightHeight = heightOf(this.right[node]);
+            int nodeBalance = rightHeight - leftHeight;
+            int subtreeRoot;
+
+            if (nodeBalance < -1) {
+                if (balanceOf(this.left[node]) > 0) { // LR
+                    this.left[node] = rotateLeft(this.left[node]);
+                }
+                subtreeRoot = rotateRight(node); // LL
+            } else if (nodeBalance > 1) {
+                if (balanceOf(this.right[node]) < 0) { // RL
+                    this.right[node] = rotateRight(this.right[node]);
+                }
+                subtreeRoot = rotateLeft(node); // RR
+            } else {
+                int newHeight = Math.max(leftHeight, rightHeight) + 1;
+                if (newHeight == this.height[node]) { // height didn't change, the ancestors are still balanced
+                    return true;
+                }
+                this.height[node] = (byte)newHeight;
+                continue;
+            }
+
+            // after an insert, a rotation brings the subtree back to its height from before the insert
+            replaceChild(path, i, node, subtreeRoot);
+            return true;
+        }
+        return true;
+    }
+
+    /**
+     * Removes a spell from the tree, the same way AVLTree.remove does. The freed node goes to the free list.
+     *
+     * @param spellName the name of the spell to remove
+     * @param powerLevel the power level of the spell to remove
+     *
+     * @return returns the removed spell, or null if there's no such spell
+     */
+    public Spell remove(String spellName, int powerLevel) {
+        int[] path = this.path;
+        int depth = 0;
+        long namePrefix = AVLTree.namePrefix(spellName);
+        int node = this.root;
+
+        while (node != NIL) {
+            int cmp = compare(powerLevel, spellName, namePrefix, node);
+            if (cmp == 0) {
+                break;
+            }
+            path[depth++] = node;
+            node = cmp < 0 ? this.left[node] : this.right[node];
+        }
+        if (node == NIL) {
+            return null;
+        }
+
+        Spell removed = this.spells[node];
+        int target = node;
+        path[depth++] = node;
+        if ((this.left[node] != NIL) && (this.right[node] != NIL)) { // two children - the successor takes its place
+            for (int successor = this.right[node]; successor != NIL; successor = this.left[successor]) {
+                path[depth++] = successor;
+            }
+        }
+
+        int unlinked = path[--depth]; // has at most one child
+        int child = (this.left[unlinked] != NIL) ? this.left[unlinked] : this.right[unlinked];
+        if (unlinked != target) { // the successor's spell moves up into the target's node
+            this.spells[target] = this.spells[unlinked];
+            this.power[target] = this.power[unlinked];
+            this.prefix[target] = this.prefix[unlinked];
+        }
+        release(unlinked);
+        this.size--;
+        if (depth == 0) {
+            this.root = child;
+            return removed;
+        }
+        if (this.left[path[depth - 1]] == unlinked) {
+            this.left[path[depth - 1]] = child;
+        } else {
+            this.right[path[depth - 1]] = child;
+        }
+        for (int i = 0; i < depth; i++) { // every node on the path loses a spell in its subtree
+            this.subtreeSize[path[i]]--;
+        }
+
+        for (int i = depth - 1; i >= 0; i--) {
+            node = path[i];
+            int leftHeight = heightOf(this.left[node]);
+            int rightHeight = heightOf(this.right[node]);
+            int nodeBalance = rightHeight - leftHeight;
+            int subtreeRoot;
+
+            if (nodeBalance < -1) {
+                if (balanceOf(this.left[node]) > 0) { // LR
+                    this.left[node] = rotateLeft(this.left[node]);
+                }
+                subtreeRoot = rotateRight(node); // LL
+            } else if (nodeBalance > 1) {
+                if (balanceOf(this.right[node]) < 0) { // RL
+                    this.right[node] = rotateRight(this.right[node]);
+                }
+                subtreeRoot = rotateLeft(node); // RR
+            } else {
+                int newHeight = Math.max(leftHeight, rightHeight) + 1;
+                if (newHeight == this.height[node]) { // height didn't change, the ancestors are still balanced
+                    return removed;
+                }
+                this.height[node] = (byte)newHeight;
+                continue;
+            }
+
+            // the rotated subtree may be shorter than before the remove, so the ancestors are checked as well
+            replaceChild(path, i, node, subtreeRoot);
+        }
+        return removed;
+    }
+
+    /**
+     * Inserts many spells at once, like AVLTree.addAll: into an empty tree, or when the batch is large compared to the
+     * tree, the spells are sorted, merged with the tree's and the tree is rebuilt perfectly balanced in O(n + m);
+     * a small batch is inserted one by one.
+     *
+     * @param spells the spells to insert, all of the tree's category
+     *
+     * @return returns the number of spells that were inserted
+     */
+    public int addAll(Collection<Spell> spells) {
+        Spell[] batch = spells.toArray(new Spell[0]);
+        int batchSize = AVLTree.sortBatch(batch);
+
+        if (batchSize == 0) {
+            return 0;
+        }
+
+        if (AVLTree.insertsAreCheaper(this.size, batchSize)) {
+            return AVLTree.insertBatch(this, batch, batchSize);
+        }
+
+        Spell[] merged = new Spell[this.size + batchSize];
+        int count = AVLTree.mergeBatch(rangeIterator(Integer.MIN_VALUE, Integer.MAX_VALUE), batch, batchSize, merged);
+        int inserted = count - this.size;
+        allocateArrays(Math.max(count, this.spells.length)); // rebuilt from scratch, nodes 0..count-1 in order
+        this.next = count;
+        this.free = NIL;
+        this.size = count;
+        this.root = build(merged, 0, count - 1);
+        return inserted;
+    }
+
+    /**
+     * Returns the rank of a power level - the number of spells with a lower power level. O(log n).
+     *
+     * @param powerLevel the power level to rank
+     *
+     * @return Returns the number of spells whose power level is lower than powerLevel.
+     */
+    public int rank(int powerLevel) {
+        int result = 0;
+        int node = this.root;
+
+        while (node != NIL) {
+            if (this.power[node] < powerLevel) { // node and its left subtree are all lower
+                result += sizeOf(this.left[node]) + 1;
+                node = this.right[node];
+            } else {
+                node = this.left[node];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the spell with the given rank - the i-th lowest power level, counting from 0. O(log n).
+     *
+     * @param i the rank of the spell, in [0, getSize())
+     *
+     * @return Returns the spell with exactly i spells below it, or null if i is out of range.
+     */
+    public Spell select(int i) {
+        int node = this.root;
+
+        if (i < 0 || i >= this.size) {
+            return null;
+        }
+
+        while (node != NIL) {
+            int leftSize = sizeOf(this.left[node]);
+            if (i < leftSize) {
+                node = this.left[node];
+            } else if (i == leftSize) {
+                return this.spells[node];
+            } else {
+                i -= leftSize + 1; // skip node and its left subtree
+                node = this.right[node];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a lazy iterator over the spells of the tree, from the highest power level to the lowest.
+     * The tree must not be modified while iterating.
+     *
+     * @return Returns an iterator over the spells in descending power level order.
+     */
+    public Iterator<Spell> descendingIterator() {
+        return new DescendingIterator();
+    }
+
+    /**
+     * Returns a lazy iterator over the spells whose power level is in [lo, hi], from the lowest power level to the
+     * highest. The tree must not be modified while iterating.
+     *
+     * @param lo the lowest power level to return (inclusive)
+     * @param hi the highest power level to return (inclusive)
+     *
+     * @return Returns an iterator over the spells in the range in ascending power level order.
+     */
+    public Iterator<Spell> rangeIterator(int lo, int hi) {
+        return new RangeIterator(lo, hi);
+    }
+
+    /**
+     * Helper function. Compares a (powerLevel, name) key with the key of a node, like AVLTree.compare - the power
+     * level and the name prefix come from the arrays, the name is only read when the prefixes are equal.
+     */
+    private int compare(int powerLevel, String name, long namePrefix, int node) {
+        int nodePowerLevel = this.power[node];
+
+        if (powerLevel != nodePowerLevel) {
+            return powerLevel < nodePowerLevel ? -1 : 1;
+        }
+        if (namePrefix != this.prefix[node]) {
+            return Long.compareUnsigned(namePrefix, this.prefix[node]);
+        }
+        return name.compareTo(this.spells[node].getName());
+    }
+
+    /**
+     * Helper function. Takes a node from the free list (or the unused part of the arrays, growing them if needed)
+     * and makes it a leaf holding a spell.
+     *
+     * @param spell the spell of the node
+     * @param namePrefix the name prefix of the spell
+     *
+     * @return returns the new node
+     */
+    private int allocate(Spell spell, long namePrefix) {
+        int node;
+
+        if (this.free != NIL) {
+            node = this.free;
+            this.free = this.left[node];
+        } else {
+            if (this.next == this.spells.length) {
+                growArrays(2 * this.spells.length);
+            }
+            node = this.next++;
+        }
+        this.left[node] = NIL;
+        this.right[node] = NIL;
+        this.height[node] = 0;
+        this.subtreeSize[node] = 1;
+        this.power[node] = spell.getPowerLevel();
+        this.prefix[node] = namePrefix;
+        this.spells[node] = spell;
+        return node;
+    }
+
+    /**
+     * Helper function. Puts a node on the free list, dropping its spell so the GC can collect it.
+     *
+     * @param node the node to free
+     */
+    private void release(int node) {
+        this.spells[node] = null;
+        this.left[node] = this.free;
+        this.free = node;
+    }
+
+    /**
+     * Helper function. Replaces all the arrays with empty ones of a capacity.
+     */
+    private void allocateArrays(int capacity) {
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.height = new byte[capacity];
+        this.subtreeSize = new int[capacity];
+        this.power = new int[capacity];
+        this.prefix = new long[capacity];
+        this.spells = new Spell[capacity];
+    }
+
+    /**
+     * Helper function. Grows all the arrays to a capacity, keeping the nodes.
+     */
+    private void growArrays(int capacity) {
+        this.left = Arrays.copyOf(this.left, capacity);
+        this.right = Arrays.copyOf(this.right, capacity);
+        this.height = Arrays.copyOf(this.height, capacity);
+        this.subtreeSize = Arrays.copyOf(this.subtreeSize, capacity);
+        this.power = Arrays.copyOf(this.power, capacity);
+        this.prefix = Arrays.copyOf(this.prefix, capacity);
+        this.spells = Arrays.copyOf(this.spells, capacity);
+    }
+
+    /**
+     * Helper function. Builds a perfectly balanced subtree from sorted spells, into the nodes from..to (in order).
+     *
+     * @return returns the root of the built subtree, NIL if it's empty
+     */
+    private int build(Spell[] sorted, int from, int to) {
+        if (from > to) {
+            return NIL;
+        }
+
+        int middle = (from + to) >>> 1;
+        this.left[middle] = build(sorted, from, middle - 1);
+        this.right[middle] = build(sorted, middle + 1, to);
+        this.height[middle] = (byte)(Math.max(heightOf(this.left[middle]), heightOf(this.right[middle])) + 1);
+        this.subtreeSize[middle] = to - from + 1;
+        this.power[middle] = sorted[middle].getPowerLevel();
+        this.prefix[middle] = AVLTree.namePrefix(sorted[middle].getName());
+        this.spells[middle] = sorted[middle];
+        return middle;
+    }
+
+    /**
+     * Helper function. Links the new root of a rotated subtree in place of the old one.
+     *
+     * @param path the path from the root
+     * @param i the position of the old subtree root on the path
+     * @param node the old subtree root
+     * @param subtreeRoot the new subtree root
+     */
+    private void replaceChild(int[] path, int i, int node, int subtreeRoot) {
+        if (i == 0) {
+            this.root = subtreeRoot;
+        } else if (this.left[path[i - 1]] == node) {
+            this.left[path[i - 1]] = subtreeRoot;
+        } else {
+            this.right[path[i - 1]] = subtreeRoot;
+        }
+    }
+
+    /**
+     * Helper-getter function, gets the height of a node, -1 for NIL
+     */
+    private int heightOf(int node) {
+        return node == NIL ? -1 : this.height[node];
+    }
+
+    /**
+     * Helper-getter function, gets the number of spells in the subtree of a node, 0 for NIL
+     */
+    private int sizeOf(int node) {
+        return node == NIL ? 0 : this.subtreeSize[node];
+    }
+
+    /**
+     * Helper function, gets the height difference between the right child and the left child of a node, 0 for NIL
+     */
+    private int balanceOf(int node) {
+        return node == NIL ? 0 : heightOf(this.right[node]) - heightOf(this.left[node]);
+    }
+
+    /**
+     * Helper function. Right rotates on a node k2, updating the heights and subtree sizes.
+     *
+     * @return returns the new root of the subtree
+     */
+    private int rotateRight(int k2) {
+        int k1 = this.left[k2];
+
+        this.left[k2] = this.right[k1];
+        this.right[k1] = k2;
+        update(k2);
+        update(k1);
+        return k1;
+    }
+
+    /**
+     * Helper function. Left rotates on a node k2, updating the heights and subtree sizes.
+     *
+     * @return returns the new root of the subtree
+     */
+    private int rotateLeft(int k2) {
+        int k1 = this.right[k2];
+
+        this.right[k2] = this.left[k1];
+        this.left[k1] = k2;
+        update(k2);
+        update(k1);
+        return k1;
+    }
+
+    /**
+     * Helper function, recomputes the height and subtree size of a node from its children
+     */
+    private void update(int node) {
+        this.height[node] = (byte)(Math.max(heightOf(this.left[node]), heightOf(this.right[node])) + 1);
+        this.subtreeSize[node] = sizeOf(this.left[node]) + sizeOf(this.right[node]) + 1;
+    }
+
+    /**
+     * Reverse in-order traversal with an explicit stack of node indexes.
+     */
+    private class DescendingIterator implements Iterator<Spell> {
+        private int[] stack;
+        private int top;
+
+        private DescendingIterator() {
+            this.stack = new int[getTreeHeight() + 1];
+            this.top = 0;
+            pushRightPath(root);
+        }
+
+        /**
+         * Pushes a node and its right descendants - the path to the max of its subtree.
+         */
+        private void pushRightPath(int node) {
+            while (node != NIL) {
+                this.stack[this.top++] = node;
+                node = right[node];
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.top > 0;
+        }
+
+        @Override
+        public Spell next() {
+            if (this.top == 0) {
+                throw new NoSuchElementException();
+            }
+            int node = this.stack[--this.top];
+            pushRightPath(left[node]);
+            return spells[node];
+        }
+    }
+
+    /**
+     * Bounded in-order traversal with an explicit stack of node indexes, ending at the first spell above hi.
+     */
+    private class RangeIterator implements Iterator<Spell> {
+        private int[] stack;
+        private int top;
+        private int hi;
+
+        private RangeIterator(int lo, int hi) {
+            this.stack = new int[getTreeHeight() + 1];
+            this.top = 0;
+            this.hi = hi;
+
+            int node = root;
+            while (node != NIL) {
+                if (power[node] >= lo) {
+                    this.stack[this.top++] = node;
+                    node = left[node];
+                } else {
+                    node = right[node];
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (this.top > 0) && (power[this.stack[this.top - 1]] <= this.hi);
+        }
+
+        @Override
+        public Spell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int node = this.stack[--this.top];
+            for (int next = right[node]; next != NIL; next = left[next]) {
+                this.stack[this.top++] = next;
+            }
+            return spells[node];
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Probe length statistics of a hash table - a histogram of the number of steps per operation, kept separately for
+ * inserts, lookup hits and lookup misses. Lengths of OVERFLOW steps or more share the last bucket; the exact maximum
+ * is kept on the side.
+ */
+public class ProbeStats {
+    public static final int INSERT = 0;
+    public static final int HIT = 1;
+    public static final int MISS = 2;
+
+    static final int OVERFLOW = 64;
+    private static final String[] NAMES = {"insert", "hit", "miss"};
+
+    private long[][] histograms;
+    private int[] max;
+
+    /**
+     * Constructor, starts with empty histograms.
+     */
+    public ProbeStats() {
+        this.histograms = new long[3][OVERFLOW + 1];
+        this.max = new int[3];
+    }
+
+    /**
+     * Records an operation.
+     *
+     * @param kind INSERT, HIT or MISS
+     * @param steps the number of steps the operation performed
+     */
+    public void record(int kind, int steps) {
+        this.histograms[kind][Math.min(steps, OVERFLOW)]++;
+        if (steps > this.max[kind]) {
+            this.max[kind] = steps;
+        }
+    }
+
+    /**
+     * Getter, returns a copy of the histogram of a kind of operation - entry i counts the operations that took i steps,
+     * the last entry counts the operations that took OVERFLOW steps or more.
+     *
+     * @param kind INSERT, HIT or MISS
+     *
+     * @return Returns the histogram.
+     */
+    public long[] getHistogram(int kind) {
+        return this.histograms[kind].clone();
+    }
+
+    /**
+     * Getter, returns the number of recorded operations of a kind.
+     *
+     * @param kind INSERT, HIT or MISS
+     *
+     * @return Returns the number of recorded operations.
+     */
+    public long getCount(int kind) {
+        long count = 0;
+        for (long bucket : this.histograms[kind]) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    /**
+     * Getter, returns the longest probe sequence recorded for a kind of operation.
+     *
+     * @param kind INSERT, HIT or MISS
+     *
+     * @return Returns the maximal number of steps.
+     */
+    public int getMax(int kind) {
+        return this.max[kind];
+    }
+
+    /**
+     * Returns the average number of steps of a kind of operation (overflowing operations count as OVERFLOW steps).
+     *
+     * @param kind INSERT, HIT or MISS
+     *
+     * @return Returns the average number of steps, 0 if nothing was recorded.
+     */
+    public double getMean(int kind) {
+        long count = 0;
+        long total = 0;
+        for (int steps = 0; steps <= OVERFLOW; steps++) {
+            count += this.histograms[kind][steps];
+            total += steps * this.histograms[kind][steps];
+        }
+        return count == 0 ? 0 : (double)total / count;
+    }
+
+    /**
+     * Clears all the histograms.
+     */
+    public void reset() {
+        this.histograms = new long[3][OVERFLOW + 1];
+        this.max = new int[3];
+    }
+
+    /**
+     * Overriding toString() function to make a custom one
+     *
+     * @return returns a string that summarizes the statistics
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (int kind = INSERT; kind <= MISS; kind++) {
+            if (kind > INSERT) {
+                result.append(", ");
+            }
+            result.append(String.format("%s: %d ops, avg %.2f, max %d", NAMES[kind], getCount(kind), getMean(kind), getMax(kind)));
+        }
+        return result.toString();
+    }
+}
@@ -46,6 +46,15 @@ public class Spell {
         return this.powerLevel;
     }
 
+    /**
+     * Getter, returns the words used to cast the spell
+     * 
+     * @return returns the words used to cast the spell
+     */
+    public String getWords() {
+        return this.words;
+    }
+
     /**
      * Overriding toString() function to make a custom one
      * 
@@ -0,0 +1,83 @@
+/**
+ * Hash strategy for the spell tables. A single pass over the key produces two 32-bit hashes packed in a long:
+ * the high half (h1) picks the home slot and the low half (h2) picks the probe step, so a table never has to scan
+ * the key twice, and the value can be cached per stored key.
+ */
+public interface SpellHasher {
+
+    /**
+     * The course's original hash functions - weighted sums of the chars (31 * sum for h1, 13 * sum for h2).
+     * Every anagram collides, kept for compatibility and for comparison.
+     */
+    SpellHasher CHAR_SUM = new SpellHasher() {
+        @Override
+        public long hash(String key) {
+            int sum = 0;
+            for (int idx = 0; idx < key.length(); idx++) {
+                sum = sum + (int)key.charAt(idx); // int casting transforms char to ASCII
+            }
+            return ((long)(31 * sum) << 32) | ((13 * sum) & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public String toString() {
+            return "CHAR_SUM";
+        }
+    };
+
+    /**
+     * The default strategy - 64-bit FNV-1a over the chars (order sensitive, so anagrams don't collide), finished with
+     * the MurmurHash3 fmix64 avalanche so every bit of both halves depends on the whole key.
+     */
+    SpellHasher MIX = new SpellHasher() {
+        @Override
+        public long hash(String key) {
+            long hash = 0xCBF29CE484222325L; // FNV-1a offset basis
+            for (int idx = 0; idx < key.length(); idx++) {
+                hash = (hash ^ key.charAt(idx)) * 0x100000001B3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            hash *= 0xC4CEB9FE1A85EC53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "MIX";
+        }
+    };
+
+    /**
+     * Hashes a key in a single pass.
+     *
+     * @param key the key to hash (a spell name or category)
+     *
+     * @return Returns h1 in the high 32 bits and h2 in the low 32 bits.
+     */
+    long hash(String key);
+
+    /**
+     * Extracts h1 (the home slot hash) of a hash.
+     *
+     * @param hash a value returned by hash
+     *
+     * @return Returns h1.
+     */
+    static int h1(long hash) {
+        return (int)(hash >>> 32);
+    }
+
+    /**
+     * Extracts h2 (the probe step hash) of a hash.
+     *
+     * @param hash a value returned by hash
+     *
+     * @return Returns h2.
+     */
+    static int h2(long hash) {
+        return (int)hash;
+    }
+}
@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Ordered index of the spells of a single category - the operations HashAVLSpellTable needs from a category's tree.
+ * Spells are ordered by power level and then by name (AVLTree.compareSpells); a (power level, name) pair is unique.
+ * Implemented by AVLTree, PooledAVLTree and BPlusTree.
+ */
+public interface SpellIndex {
+
+    /**
+     * The engines a HashAVLSpellTable can keep its categories in.
+     */
+    enum Engine {
+        AVL, // AVLTree - one node object per spell, the only engine that supports persistent snapshots
+        POOLED_AVL, // PooledAVLTree - nodes in primitive arrays, no per-spell node objects
+        B_PLUS_TREE, // BPlusTree - wide nodes and linked leaves, for large categories
+        AUTO; // AVL for small categories, moved to a B+ tree once a category passes AUTO_THRESHOLD spells
+
+        static final int AUTO_THRESHOLD = 4096;
+
+        /**
+         * Creates an empty index of this engine (AUTO starts as AVL).
+         *
+         * @param category the category of the index
+         *
+         * @return Returns the new index.
+         */
+        SpellIndex create(String category) {
+            switch (this) {
+                case POOLED_AVL: return new PooledAVLTree(category);
+                case B_PLUS_TREE: return new BPlusTree(category);
+                default: return new AVLTree(category);
+            }
+        }
+    }
+
+    /**
+     * Getter, returns the category that the index represents.
+     *
+     * @return Returns the category of the index.
+     */
+    String getCategory();
+
+    /**
+     * Getter, returns the number of spells in the index.
+     *
+     * @return Returns the number of spells.
+     */
+    int getSize();
+
+    /**
+     * Inserts a spell.
+     *
+     * @param spell the spell to insert, of the index's category
+     *
+     * @return Returns true if the spell was inserted, false if a spell with the same power level and name already exists.
+     */
+    boolean insert(Spell spell);
+
+    /**
+     * Inserts many spells at once.
+     *
+     * @param spells the spells to insert, of the index's category
+     *
+     * @return Returns the number of spells that were inserted.
+     */
+    int addAll(Collection<Spell> spells);
+
+    /**
+     * Searches for a spell by its name and power level.
+     *
+     * @param spellName the name of the spell
+     * @param powerLevel the power level of the spell
+     *
+     * @return Returns the spell, or null if there's no such spell.
+     */
+    Spell search(String spellName, int powerLevel);
+
+    /**
+     * Removes a spell by its name and power level.
+     *
+     * @param spellName the name of the spell
+     * @param powerLevel the power level of the spell
+     *
+     * @return Returns the removed spell, or null if there's no such spell.
+     */
+    Spell remove(String spellName, int powerLevel);
+
+    /**
+     * Returns the k spells with the highest power levels - the first k of descendingIterator, O(log n + k) for the
+     * trees.
+     *
+     * @param k the number of top spells to return
+     *
+     * @return Returns a list of the top-k spells, in descending order.
+     */
+    default List<Spell> getTopK(int k) {
+        List<Spell> result = new ArrayList<Spell>(Math.max(0, Math.min(k, getSize())));
+        Iterator<Spell> spells = descendingIterator();
+
+        for (int i = 0; (i < k) && spells.hasNext(); i++) {
+            result.add(spells.next());
+        }
+        return result;
+    }
+
+    /**
+     * Returns a lazy iterator over all the spells, in descending order. The index must not be modified while iterating.
+     *
+     * @return Returns an iterator over the spells, from the highest power level to the lowest.
+     */
+    Iterator<Spell> descendingIterator();
+
+    /**
+     * Returns a lazy iterator over the spells whose power level is in [lo, hi], in ascending order.
+     * The index must not be modified while iterating.
+     *
+     * @param lo the lowest power level to return (inclusive)
+     * @param hi the highest power level to return (inclusive)
+     *
+     * @return Returns an iterator over the spells in the range.
+     */
+    Iterator<Spell> rangeIterator(int lo, int hi);
+
+    /**
+     * Returns a lazy, sequential stream of the spells whose power level is in [lo, hi], in ascending order.
+     * Backed by rangeIterator, so the range is never materialized and a short-circuiting operation stops the traversal.
+     *
+     * @param lo the lowest power level to return (inclusive)
+     * @param hi the highest power level to return (inclusive)
+     *
+     * @return Returns a stream of the spells in the range.
+     */
+    default Stream<Spell> rangeQuery(int lo, int hi) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rangeIterator(lo, hi), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns the number of spells with a power level lower than powerLevel.
+     *
+     * @param powerLevel the power level to rank
+     *
+     * @return Returns the rank of the power level.
+     */
+    int rank(int powerLevel);
+
+    /**
+     * Returns the spell with the i-th lowest power level, counting from 0.
+     *
+     * @param i the rank of the spell
+     *
+     * @return Returns the spell, or null if i is out of range.
+     */
+    Spell select(int i);
+
+    /**
+     * Returns the number of spells whose power level is in [lo, hi] - two ranks, O(log n) for the trees no matter how
+     * many spells are in range.
+     *
+     * @param lo the lowest power level to count (inclusive)
+     * @param hi the highest power level to count (inclusive)
+     *
+     * @return Returns the number of spells in the range.
+     */
+    default int countInRange(int lo, int hi) {
+        if (lo > hi) {
+            return 0;
+        }
+        if (hi == Integer.MAX_VALUE) {
+            return getSize() - rank(lo);
+        }
+        return rank(hi + 1) - rank(lo);
+    }
+}
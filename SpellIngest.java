@@ -0,0 +1,895 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Parallel bulk loader of spell catalogs into a HashAVLSpellTable, instead of a line-by-line addSpell on one thread.
+ *
+ * The pipeline:
+ *   reader - the calling thread reads the file in chunks that end at a line break, into a small pool of buffers
+ *   parsers - parse the chunks' lines straight from the bytes: the power level is parsed without a String, and each
+ *             parser reuses one String per category, so only the name and the words become new Strings
+ *   workers - the spells are partitioned by the hash of their category, so every category belongs to a single worker;
+ *             a worker collects its categories' spells and builds each tree at the end with a bulk build - the
+ *             workers share nothing, no locking is needed
+ *   table - adopts the workers' trees (a category the table already has gets the spells with addAll)
+ * Progress (bytes, lines, spells, throughput) is reported to a listener at a fixed interval while it runs.
+ * The table is only modified at the end, after every line was parsed. If a (category, power level, name) appears
+ * more than once in the file, which of its spells is kept is unspecified.
+ *
+ * Formats, one spell per line (UTF-8, \n or \r\n line breaks, empty lines are skipped):
+ *   CSV - name,category,power level,words; a field may be "quoted" (with "" for a quote) but may not span lines;
+ *         a first line whose power level isn't a number is a header and is skipped
+ *   NDJSON - an object with the string fields "name", "category" and "words" and the integer field "powerLevel";
+ *            other fields are ignored as long as they're strings, numbers, booleans or null
+ * A line that can't be parsed is counted as malformed and skipped.
+ */
+public class SpellIngest {
+
+    /**
+     * The formats of a catalog.
+     */
+    public enum Format {
+        CSV,
+        NDJSON
+    }
+
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+    private static final int BATCH_SIZE = 1024; // spells handed to a worker at once
+    private static final int QUEUE_CAPACITY = 64; // batches waiting per worker
+    private static final List<Spell> END = new ArrayList<Spell>(); // tells a worker there are no more batches
+
+    private int parsers;
+    private int workers;
+    private int chunkSize;
+
+    /**
+     * Constructor, with as many parsers and workers as there are processors.
+     */
+    public SpellIngest() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param parsers the number of parser threads
+     * @param workers the number of worker threads, that build the trees
+     * @param chunkSize the size in bytes of the chunks the file is read in, a chunk is grown to fit a longer line
+     */
+    public SpellIngest(int parsers, int workers, int chunkSize) {
+        if (parsers < 1 || workers < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("The parsers, workers and chunk size must be positive, got "
+                    + parsers + ", " + workers + ", " + chunkSize);
+        }
+        this.parsers = parsers;
+        this.workers = workers;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Loads a catalog into a table, without progress reports.
+     *
+     * @param path the catalog file
+     * @param format the format of the catalog
+     * @param table the table to add the spells to, it must not be used by other threads meanwhile
+     *
+     * @return Returns the final progress - the number of lines, spells and malformed lines, and the throughput.
+     *
+     * @throws IOException if reading the file fails
+     */
+    public Progress ingest(Path path, Format format, HashAVLSpellTable table) throws IOException {
+        return ingest(path, format, table, null, 0);
+    }
+
+    /**
+     * Loads a catalog into a table.
+     *
+     * @param path the catalog file
+     * @param format the format of the catalog
+     * @param table the table to add the spells to, it must not be used by other threads meanwhile
+     * @param listener gets the progress every reportIntervalMillis from another thread, and once at the end; or null
+     * @param reportIntervalMillis the time between progress reports
+     *
+     * @return Returns the final progress - the number of lines, spells and malformed lines, and the throughput.
+     *
+     * @throws IOException if reading the file fails
+     */
+    public Progress ingest(Path path, Format format, HashAVLSpellTable table, Consumer<Progress> listener, long reportIntervalMillis) throws IOException {
+        ExecutorService parserPool = Executors.newFixedThreadPool(this.parsers);
+        ExecutorService workerPool = Executors.newFixedThreadPool(this.workers);
+        ScheduledExecutorService reporter = null;
+        Run run;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            run = new Run(format, table, this.workers, channel.size());
+            if (listener != null && reportIntervalMillis > 0) {
+                Run reported = run;
+                reporter = Executors.newSingleThreadScheduledExecutor();
+                reporter.scheduleAtFixedRate(() -> listener.accept(reported.progress()), reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+
+            List<Future<List<SpellIndex>>> futures = new ArrayList<Future<List<SpellIndex>>>();
+            for (BlockingQueue<List<Spell>> queue : run.queues) {
+                Run working = run;
+                futures.add(workerPool.submit(() -> work(working, queue)));
+            }
+
+            read(channel, run, parserPool);
+            parserPool.shutdown();
+            parserPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            for (BlockingQueue<List<Spell>> queue : run.queues) {
+                run.put(queue, END);
+            }
+            List<SpellIndex> trees = new ArrayList<SpellIndex>();
+            for (Future<List<SpellIndex>> future : futures) {
+                trees.addAll(future.get());
+            }
+            if (run.failure.get() != null) {
+                throw run.failure.get();
+            }
+
+            for (SpellIndex tree : trees) { // the only step that touches the table
+                if (!table.adoptTree(tree)) {
+                    List<Spell> spells = new ArrayList<Spell>(tree.getSize());
+                    tree.rangeIterator(Integer.MIN_VALUE, Integer.MAX_VALUE).forEachRemaining(spells::add);
+                    table.addAll(spells);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + path, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Loading " + path + " failed", e.getCause());
+        } finally {
+            parserPool.shutdownNow(); // stops whatever is left after a failure
+            workerPool.shutdownNow();
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+
+        Progress progress = run.progress();
+        if (listener != null) {
+            listener.accept(progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Helper function. The reader - reads the file into chunks that end at a line break and hands them to the parsers.
+     * There are two buffers per parser, so the reader waits for a free buffer when the parsers fall behind.
+     *
+     * @param channel the catalog file
+     * @param run the state of the ingest
+     * @param parserPool the parser threads
+     */
+    private void read(FileChannel channel, Run run, ExecutorService parserPool) throws IOException, InterruptedException {
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(2 * this.parsers);
+        for (int i = 0; i < 2 * this.parsers; i++) {
+            buffers.add(new byte[this.chunkSize]);
+        }
+
+        byte[] chunk = buffers.take();
+        int length = 0; // bytes in chunk - the start of a line left over from the previous chunk, then the new bytes
+        boolean first = true;
+        boolean eof = false;
+
+        while (!eof && (run.failure.get() == null)) {
+            if (length == chunk.length) { // a line longer than the chunk
+                chunk = Arrays.copyOf(chunk, 2 * chunk.length);
+            }
+            ByteBuffer target = ByteBuffer.wrap(chunk, length, chunk.length - length);
+            while (target.hasRemaining()) {
+                int read = channel.read(target);
+                if (read < 0) {
+                    eof = true;
+                    break;
+                }
+                run.bytes.addAndGet(read);
+            }
+            length = target.position();
+
+            int end = eof ? length : lastLineBreak(chunk, length) + 1;
+            if (end == 0) {
+                continue; // no line break yet, the chunk grows
+            }
+
+            byte[] next = null;
+            if (!eof) {
+                next = buffers.take();
+                if (next.length <= length - end) { // the grown chunk's tail doesn't fit, a buffer of its size replaces it
+                    next = new byte[chunk.length];
+                }
+                System.arraycopy(chunk, end, next, 0, length - end); // the start of the next chunk's first line
+            }
+
+            byte[] lines = chunk;
+            int linesLength = end;
+            boolean header = first;
+            parserPool.execute(() -> {
+                try {
+                    run.parser.get().parse(lines, linesLength, header);
+                } catch (Throwable e) {
+                    run.fail(e);
+                } finally {
+                    buffers.offer(lines);
+                }
+            });
+
+            first = false;
+            if (next != null) {
+                length -= end;
+                chunk = next;
+            }
+        }
+    }
+
+    /**
+     * Helper function. Returns the position of the last line break of a chunk.
+     *
+     * @param chunk the chunk
+     * @param length the number of bytes in the chunk
+     *
+     * @return Returns the index of the last '\n', or -1 if there's none.
+     */
+    private static int lastLineBreak(byte[] chunk, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (chunk[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function. A worker - collects the spells of its categories, then builds their trees. Once the ingest
+     * failed the worker stops without waiting for END, which Run.put may have given up delivering.
+     *
+     * @param run the state of the ingest
+     * @param queue the worker's batches
+     *
+     * @return Returns the worker's trees, one per category, not in the table yet - none if the ingest failed.
+     */
+    private static List<SpellIndex> work(Run run, BlockingQueue<List<Spell>> queue) throws InterruptedException {
+        try {
+            Map<String, List<Spell>> categories = new HashMap<String, List<Spell>>();
+            List<Spell> batch;
+            while ((batch = queue.poll(10, TimeUnit.MILLISECONDS)) != END) {
+                if (batch == null) { // nothing yet
+                    if (run.failure.get() != null) {
+                        return new ArrayList<SpellIndex>();
+                    }
+                    continue;
+                }
+                for (Spell spell : batch) {
+                    categories.computeIfAbsent(spell.getCategory(), category -> new ArrayList<Spell>()).add(spell);
+                }
+            }
+
+            List<SpellIndex> trees = new ArrayList<SpellIndex>(categories.size());
+            for (Map.Entry<String, List<Spell>> category : categories.entrySet()) {
+                SpellIndex tree = run.table.newTree(category.getKey(), category.getValue().size());
+                tree.addAll(category.getValue());
+                trees.add(tree);
+            }
+            return trees;
+        } catch (RuntimeException | Error e) {
+            run.fail(e); // so the parsers don't wait for this worker's queue
+            throw e;
+        }
+    }
+
+    /**
+     * The progress of an ingest - a snapshot of its counters.
+     */
+    public static final class Progress {
+        private long totalBytes;
+        private long bytes;
+        private long lines;
+        private long spells;
+        private long malformed;
+        private long elapsedNanos;
+
+        /**
+         * Constructor.
+         */
+        private Progress(long totalBytes, long bytes, long lines, long spells, long malformed, long elapsedNanos) {
+            this.totalBytes = totalBytes;
+            this.bytes = bytes;
+            this.lines = lines;
+            this.spells = spells;
+            this.malformed = malformed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Getter, returns the size of the file.
+         *
+         * @return Returns the size of the file in bytes.
+         */
+        public long getTotalBytes() {
+            return this.totalBytes;
+        }
+
+        /**
+         * Getter, returns the number of bytes read so far.
+         *
+         * @return Returns the number of bytes read.
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * Getter, returns the number of (non empty) lines parsed so far.
+         *
+         * @return Returns the number of lines parsed.
+         */
+        public long getLines() {
+            return this.lines;
+        }
+
+        /**
+         * Getter, returns the number of spells parsed so far.
+         *
+         * @return Returns the number of spells parsed.
+         */
+        public long getSpells() {
+            return this.spells;
+        }
+
+        /**
+         * Getter, returns the number of lines skipped because they couldn't be parsed.
+         *
+         * @return Returns the number of malformed lines.
+         */
+        public long getMalformed() {
+            return this.malformed;
+        }
+
+        /**
+         * Getter, returns the time since the ingest started.
+         *
+         * @return Returns the elapsed time in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        /**
+         * Returns the number of spells parsed per second so far.
+         *
+         * @return Returns the spell throughput.
+         */
+        public double getSpellsPerSecond() {
+            return this.elapsedNanos == 0 ? 0 : this.spells * 1e9 / this.elapsedNanos;
+        }
+
+        /**
+         * Returns the number of megabytes read per second so far.
+         *
+         * @return Returns the read throughput.
+         */
+        public double getMegabytesPerSecond() {
+            return this.elapsedNanos == 0 ? 0 : this.bytes * 1e9 / this.elapsedNanos / (1 << 20);
+        }
+
+        /**
+         * Overriding toString() function to make a custom one
+         *
+         * @return returns a string that summarizes the progress
+         */
+        @Override
+        public String toString() {
+            return String.format("ingest: %.1f%% of %.1f MB, %d lines, %d spells (%d malformed), %.0f spells/s, %.1f MB/s",
+                    this.totalBytes == 0 ? 100.0 : 100.0 * this.bytes / this.totalBytes, this.totalBytes / (double)(1 << 20),
+                    this.lines, this.spells, this.malformed, getSpellsPerSecond(), getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * The state of one ingest, shared by its threads.
+     */
+    private static class Run {
+        private Format format;
+        private HashAVLSpellTable table;
+        private List<BlockingQueue<List<Spell>>> queues; // one per worker
+        private long totalBytes;
+        private long start;
+        private AtomicLong bytes;
+        private AtomicLong lines;
+        private AtomicLong spells;
+        private AtomicLong malformed;
+        private AtomicReference<IOException> failure; // the first failure of any thread
+        private ThreadLocal<Parser> parser; // one per parser thread, so its category Strings are reused across chunks
+
+        private Run(Format format, HashAVLSpellTable table, int workers, long totalBytes) {
+            this.format = format;
+            this.table = table;
+            this.queues = new ArrayList<BlockingQueue<List<Spell>>>(workers);
+            for (int w = 0; w < workers; w++) {
+                this.queues.add(new ArrayBlockingQueue<List<Spell>>(QUEUE_CAPACITY));
+            }
+            this.totalBytes = totalBytes;
+            this.start = System.nanoTime();
+            this.bytes = new AtomicLong();
+            this.lines = new AtomicLong();
+            this.spells = new AtomicLong();
+            this.malformed = new AtomicLong();
+            this.failure = new AtomicReference<IOException>();
+            this.parser = ThreadLocal.withInitial(() -> new Parser(this));
+        }
+
+        private Progress progress() {
+            return new Progress(this.totalBytes, this.bytes.get(), this.lines.get(), this.spells.get(), this.malformed.get(), System.nanoTime() - this.start);
+        }
+
+        private void fail(Throwable e) {
+            this.failure.compareAndSet(null, e instanceof IOException ? (IOException)e : new IOException("Loading the catalog failed", e));
+        }
+
+        /**
+         * Hands a batch to a worker, waiting while its queue is full - gives up if the ingest failed, the workers then
+         * stop on their own.
+         */
+        private void put(BlockingQueue<List<Spell>> queue, List<Spell> batch) throws InterruptedException {
+            while (!queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+                if (this.failure.get() != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown by the parsing helpers on a malformed line, caught by parseLine. Shared and without a stack trace - a
+     * malformed line costs no allocation.
+     */
+    private static class MalformedLineException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private static final MalformedLineException INSTANCE = new MalformedLineException();
+
+        private MalformedLineException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A parser thread's state - its batches to the workers and its category cache.
+     */
+    private static class Parser {
+        private static final int CACHE_SIZE = 1024; // categories remembered, a power of two
+        private static final byte[] NAME = "name".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] CATEGORY = "category".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] POWER_LEVEL = "powerLevel".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] WORDS = "words".getBytes(StandardCharsets.UTF_8);
+
+        private Run run;
+        private List<List<Spell>> batches; // one per worker
+        private byte[][] cachedBytes; // the UTF-8 bytes of a cached category
+        private String[] cachedCategories; // the cached category, in the same slot
+        private int position; // the cursor of the JSON parser
+
+        private Parser(Run run) {
+            this.run = run;
+            this.batches = new ArrayList<List<Spell>>(run.queues.size());
+            for (int w = 0; w < run.queues.size(); w++) {
+                this.batches.add(new ArrayList<Spell>(BATCH_SIZE));
+            }
+            this.cachedBytes = new byte[CACHE_SIZE][];
+            this.cachedCategories = new String[CACHE_SIZE];
+        }
+
+        /**
+         * Parses the lines of a chunk and hands the spells to the workers of their categories.
+         *
+         * @param chunk the chunk, whole lines
+         * @param length the number of bytes in the chunk
+         * @param header true for the first chunk of the file, whose first line may be a header
+         */
+        private void parse(byte[] chunk, int length, boolean header) throws InterruptedException {
+            long lines = 0;
+            long spells = 0;
+            long malformed = 0;
+
+            for (int from = 0; from < length;) {
+                int to = from;
+                while (to < length && chunk[to] != '\n') {
+                    to++;
+                }
+                int next = to + 1;
+                if (to > from && chunk[to - 1] == '\r') {
+                    to--;
+                }
+
+                if (to > from) {
+                    lines++;
+                    Spell spell = parseLine(chunk, from, to);
+                    if (spell != null) {
+                        spells++;
+                        add(spell);
+                    } else if (!header || this.run.format != Format.CSV) {
+                        malformed++;
+                    }
+                    header = false;
+                }
+                from = next;
+            }
+
+            for (int w = 0; w < this.batches.size(); w++) { // nothing is left behind in this thread
+                if (!this.batches.get(w).isEmpty()) {
+                    this.run.put(this.run.queues.get(w), this.batches.get(w));
+                    this.batches.set(w, new ArrayList<Spell>(BATCH_SIZE));
+                }
+            }
+            this.run.lines.addAndGet(lines);
+            this.run.spells.addAndGet(spells);
+            this.run.malformed.addAndGet(malformed);
+        }
+
+        /**
+         * Helper function. Adds a spell to the batch of its category's worker.
+         */
+        private void add(Spell spell) throws InterruptedException {
+            int hash = spell.getCategory().hashCode();
+            int w = ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % this.batches.size();
+            List<Spell> batch = this.batches.get(w);
+
+            batch.add(spell);
+            if (batch.size() == BATCH_SIZE) {
+                this.run.put(this.run.queues.get(w), batch);
+                this.batches.set(w, new ArrayList<Spell>(BATCH_SIZE));
+            }
+        }
+
+        /**
+         * Helper function. Parses a line.
+         *
+         * @return Returns the spell of the line, or null if it's malformed.
+         */
+        private Spell parseLine(byte[] line, int from, int to) {
+            try {
+                return this.run.format == Format.CSV ? parseCsv(line, from, to) : parseJson(line, from, to);
+            } catch (MalformedLineException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Helper function. Parses a CSV line - name,category,power level,words.
+         */
+        private Spell parseCsv(byte[] line, int from, int to) {
+            String name = null;
+            String category = null;
+            int powerLevel = 0;
+            String words = null;
+            int position = from;
+
+            for (int field = 0; field < 4; field++) {
+                int start;
+                int end;
+                boolean escaped = false; // has "" inside quotes
+
+                if (position < to && line[position] == '"') {
+                    start = position + 1;
+                    end = start;
+                    while (true) {
+                        if (end >= to) {
+                            throw MalformedLineException.INSTANCE; // unterminated quotes
+                        }
+                        if (line[end] == '"') {
+                            if (end + 1 < to && line[end + 1] == '"') {
+                                escaped = true;
+                                end += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        end++;
+                    }
+                    position = end + 1;
+                } else {
+                    start = position;
+                    end = position;
+                    while (end < to && line[end] != ',') {
+                        end++;
+                    }
+                    position = end;
+                }
+
+                if (field < 3) { // a comma must follow
+                    if (position >= to || line[position] != ',') {
+                        throw MalformedLineException.INSTANCE;
+                    }
+                    position++;
+                } else if (position != to) {
+                    throw MalformedLineException.INSTANCE;
+                }
+
+                switch (field) {
+                    case 0: name = escaped ? unescapeCsv(line, start, end) : new String(line, start, end - start, StandardCharsets.UTF_8); break;
+                    case 1: category = escaped ? unescapeCsv(line, start, end) : category(line, start, end); break;
+                    case 2: powerLevel = parseInt(line, start, end); break;
+                    default: words = escaped ? unescapeCsv(line, start, end) : new String(line, start, end - start, StandardCharsets.UTF_8); break;
+                }
+            }
+            return new Spell(name, category, powerLevel, words);
+        }
+
+        /**
+         * Helper function. Decodes a quoted CSV field with "" in it.
+         */
+        private static String unescapeCsv(byte[] line, int from, int to) {
+            byte[] bytes = new byte[to - from];
+            int length = 0;
+
+            for (int i = from; i < to; i++) {
+                bytes[length++] = line[i];
+                if (line[i] == '"') {
+                    i++; // skips the second quote
+                }
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Helper function. Parses an NDJSON line - an object with name, category, powerLevel and words.
+         */
+        private Spell parseJson(byte[] line, int from, int to) {
+            String name = null;
+            String category = null;
+            long powerLevel = Long.MIN_VALUE;
+            String words = null;
+
+            this.position = from;
+            expect(line, to, '{');
+            if (peek(line, to) != '}') {
+                while (true) {
+                    expect(line, to, '"');
+                    int keyStart = this.position;
+                    int keyEnd = skipString(line, to);
+                    expect(line, to, ':');
+
+                    int c = peek(line, to);
+                    if (c == '"') {
+                        this.position++;
+                        int start = this.position;
+                        int end = skipString(line, to);
+                        boolean escaped = hasEscape(line, start, end);
+                        if (isKey(line, keyStart, keyEnd, NAME)) {
+                            name = escaped ? unescapeJson(line, start, end) : new String(line, start, end - start, StandardCharsets.UTF_8);
+                        } else if (isKey(line, keyStart, keyEnd, CATEGORY)) {
+                            category = escaped ? unescapeJson(line, start, end) : category(line, start, end);
+                        } else if (isKey(line, keyStart, keyEnd, WORDS)) {
+                            words = escaped ? unescapeJson(line, start, end) : new String(line, start, end - start, StandardCharsets.UTF_8);
+                        } else if (isKey(line, keyStart, keyEnd, POWER_LEVEL)) {
+                            throw MalformedLineException.INSTANCE;
+                        }
+                    } else if (c == '-' || (c >= '0' && c <= '9')) {
+                        int start = this.position;
+                        while (this.position < to && isNumberByte(line[this.position])) {
+                            this.position++;
+                        }
+                        if (isKey(line, keyStart, keyEnd, POWER_LEVEL)) {
+                            powerLevel = parseInt(line, start, this.position);
+                        } else if (isKey(line, keyStart, keyEnd, NAME) || isKey(line, keyStart, keyEnd, CATEGORY) || isKey(line, keyStart, keyEnd, WORDS)) {
+                            throw MalformedLineException.INSTANCE;
+                        }
+                    } else if (c == 't' || c == 'f' || c == 'n') { // true, false or null
+                        if (isKey(line, keyStart, keyEnd, NAME) || isKey(line, keyStart, keyEnd, CATEGORY)
+                                || isKey(line, keyStart, keyEnd, WORDS) || isKey(line, keyStart, keyEnd, POWER_LEVEL)) {
+                            throw MalformedLineException.INSTANCE;
+                        }
+                        skipLiteral(line, to);
+                    } else {
+                        throw MalformedLineException.INSTANCE; // nested objects and arrays aren't supported
+                    }
+
+                    if (peek(line, to) == ',') {
+                        this.position++;
+                        continue;
+                    }
+                    break;
+                }
+            }
+            expect(line, to, '}');
+            if (peek(line, to) != -1) {
+                throw MalformedLineException.INSTANCE; // something after the object
+            }
+            if (name == null || category == null || words == null || powerLevel == Long.MIN_VALUE) {
+                throw MalformedLineException.INSTANCE;
+            }
+            return new Spell(name, category, (int)powerLevel, words);
+        }
+
+        /**
+         * Helper function. Skips whitespace and returns the next byte of a JSON line, without consuming it.
+         *
+         * @return Returns the next byte, or -1 at the end of the line.
+         */
+        private int peek(byte[] line, int to) {
+            while (this.position < to && (line[this.position] == ' ' || line[this.position] == '\t')) {
+                this.position++;
+            }
+            return this.position < to ? line[this.position] & 0xFF : -1;
+        }
+
+        /**
+         * Helper function. Consumes the next byte of a JSON line, which must be c.
+         */
+        private void expect(byte[] line, int to, char c) {
+            if (peek(line, to) != c) {
+                throw MalformedLineException.INSTANCE;
+            }
+            this.position++;
+        }
+
+        /**
+         * Helper function. Skips a JSON string whose opening quote was consumed.
+         *
+         * @return Returns the end of the string's contents, the position of its closing quote.
+         */
+        private int skipString(byte[] line, int to) {
+            for (int i = this.position; i < to; i++) {
+                if (line[i] == '\\') {
+                    i++;
+                } else if (line[i] == '"') {
+                    this.position = i + 1;
+                    return i;
+                }
+            }
+            throw MalformedLineException.INSTANCE;
+        }
+
+        /**
+         * Helper function. Skips true, false or null.
+         */
+        private void skipLiteral(byte[] line, int to) {
+            for (byte[] literal : new byte[][] {{'t', 'r', 'u', 'e'}, {'f', 'a', 'l', 's', 'e'}, {'n', 'u', 'l', 'l'}}) {
+                if (isKey(line, this.position, Math.min(this.position + literal.length, to), literal)) {
+                    this.position += literal.length;
+                    return;
+                }
+            }
+            throw MalformedLineException.INSTANCE;
+        }
+
+        /**
+         * Helper function. Decodes a JSON string with escapes in it.
+         */
+        private static String unescapeJson(byte[] line, int from, int to) {
+            StringBuilder builder = new StringBuilder(to - from);
+            int run = from; // start of the bytes since the last escape
+
+            for (int i = from; i < to; i++) {
+                if (line[i] != '\\') {
+                    continue;
+                }
+                builder.append(new String(line, run, i - run, StandardCharsets.UTF_8));
+                i++;
+                switch (line[i]) {
+                    case '"': builder.append('"'); break;
+                    case '\\': builder.append('\\'); break;
+                    case '/': builder.append('/'); break;
+                    case 'b': builder.append('\b'); break;
+                    case 'f': builder.append('\f'); break;
+                    case 'n': builder.append('\n'); break;
+                    case 'r': builder.append('\r'); break;
+                    case 't': builder.append('\t'); break;
+                    case 'u':
+                        if (i + 4 >= to) {
+                            throw MalformedLineException.INSTANCE;
+                        }
+                        int code = 0;
+                        for (int j = i + 1; j <= i + 4; j++) {
+                            int digit = Character.digit(line[j], 16);
+                            if (digit < 0) {
+                                throw MalformedLineException.INSTANCE;
+                            }
+                            code = 16 * code + digit;
+                        }
+                        builder.append((char)code); // a surrogate pair comes as two escapes
+                        i += 4;
+                        break;
+                    default:
+                        throw MalformedLineException.INSTANCE;
+                }
+                run = i + 1;
+            }
+            builder.append(new String(line, run, to - run, StandardCharsets.UTF_8));
+            return builder.toString();
+        }
+
+        /**
+         * Helper function. Returns the String of a category, the same String for every occurrence of a category that's
+         * still in the cache.
+         */
+        private String category(byte[] line, int from, int to) {
+            int hash = 1;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + line[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+            byte[] cached = this.cachedBytes[slot];
+            if (cached != null && Arrays.equals(cached, 0, cached.length, line, from, to)) {
+                return this.cachedCategories[slot];
+            }
+            String category = new String(line, from, to - from, StandardCharsets.UTF_8);
+            this.cachedBytes[slot] = Arrays.copyOfRange(line, from, to);
+            this.cachedCategories[slot] = category;
+            return category;
+        }
+
+        /**
+         * Helper function. Returns true if a byte range equals a key.
+         */
+        private static boolean isKey(byte[] line, int from, int to, byte[] key) {
+            return Arrays.equals(line, from, to, key, 0, key.length);
+        }
+
+        /**
+         * Helper function. Returns true if a byte range has a JSON escape.
+         */
+        private static boolean hasEscape(byte[] line, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (line[i] == '\\') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Helper function. Returns true if a byte may be part of a JSON number.
+         */
+        private static boolean isNumberByte(byte b) {
+            return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+        }
+
+        /**
+         * Helper function. Parses an int from ASCII digits, without making a String.
+         */
+        private static int parseInt(byte[] line, int from, int to) {
+            boolean negative = from < to && line[from] == '-';
+            int i = negative || (from < to && line[from] == '+') ? from + 1 : from;
+            long value = 0;
+
+            if (i == to || to - i > 10) {
+                throw MalformedLineException.INSTANCE;
+            }
+            for (; i < to; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw MalformedLineException.INSTANCE;
+                }
+                value = 10 * value + digit;
+            }
+            value = negative ? -value : value;
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw MalformedLineException.INSTANCE;
+            }
+            return (int)value;
+        }
+    }
+}
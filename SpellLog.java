@@ -0,0 +1,590 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the mutations of a HashAVLSpellTable, with group commit: appending a record only
+ * copies it into an in-memory batch, and a flusher thread writes the batch and forces it to disk with a single fsync
+ * once it's commitBytes large or its oldest record is commitIntervalMillis old. Writers that need durability wait for
+ * their record's sequence number with awaitCommit, so concurrent writers share an fsync instead of paying one each,
+ * and a crash loses at most the last commit window.
+ *
+ * The file starts with a header (big-endian): int MAGIC and the long generation of the log. Every truncate starts the
+ * next generation, and a snapshot records the generation whose records it holds, so opening the log on top of that
+ * snapshot knows whether to replay it - the records aren't idempotent (replaying the add of a spell whose power level
+ * was updated afterwards brings it back at the old level), so a log must be replayed entirely or not at all.
+ *
+ * Record layout (big-endian): int payload length, int CRC32 of the payload, then the payload - a type byte and the
+ * fields of the mutation (strings as an int UTF-8 length and the bytes):
+ *   ADD - category, name, int power level, words
+ *   REMOVE - category, name, int power level
+ *   UPDATE - category, name, int power level, int new power level
+ * On open, the records are replayed into the table up to the first incomplete or corrupted one (a write torn by a
+ * crash), and the log is cut there so new records follow the last valid one.
+ */
+public class SpellLog implements Closeable {
+    static final int MAGIC = 0x5350574C; // "SPWL"
+    static final int HEADER_SIZE = 12; // MAGIC and the generation
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte UPDATE = 3;
+
+    private static final int RECORD_HEADER = 8; // payload length and CRC32
+    private static final int MAX_RECORD = 1 << 30;
+
+    private FileChannel channel;
+    private long commitIntervalNanos;
+    private int commitBytes;
+    private int replayed; // records replayed on open
+    private long generation; // the generation of the records in the file
+
+    private ReentrantLock lock;
+    private Condition work; // signals the flusher - a batch is due, or the log is closing
+    private Condition committedCondition; // signals the writers - a batch was committed, or the flusher failed
+    private ByteBuffer batch; // appended records that are not written yet
+    private ByteBuffer spare; // the flusher's buffer, swapped with batch
+    private long batchStart; // System.nanoTime() of the oldest record of the batch
+    private long appended; // sequence number of the last appended record
+    private long committed; // sequence number of the last record forced to disk
+    private long syncRequested; // sequence number a sync() is waiting for
+    private long commits; // number of fsyncs
+    private IOException failure; // the flusher's failure, the log is unusable after it and the flusher has stopped
+    private boolean closed; // close was called - only close sets it, the flusher stops on its own after a failure
+    private Thread flusher;
+
+    /**
+     * Private constructor, see open.
+     */
+    private SpellLog(FileChannel channel, long generation, int replayed, long commitIntervalMillis, int commitBytes) {
+        this.channel = channel;
+        this.generation = generation;
+        this.replayed = replayed;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis);
+        this.commitBytes = commitBytes;
+        this.lock = new ReentrantLock();
+        this.work = this.lock.newCondition();
+        this.committedCondition = this.lock.newCondition();
+        this.batch = ByteBuffer.allocate(commitBytes + 1024);
+        this.spare = ByteBuffer.allocate(commitBytes + 1024);
+        this.flusher = new Thread(this::flushLoop, "SpellLog flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Opens a log - replays its records into a table, cuts off a torn tail and starts the flusher. The log file is
+     * created if it doesn't exist. A log whose generation is already in the table (a checkpoint crashed after saving
+     * the snapshot, before truncating the log) isn't replayed but emptied, as the next generation.
+     *
+     * @param path the log file
+     * @param table the table to replay the records into
+     * @param checkpointedGeneration the generation of the log whose records are all in the table, 0 if none is
+     * @param commitIntervalMillis the longest time a record waits before its batch is committed
+     * @param commitBytes the batch size that is committed at once, without waiting for the interval
+     *
+     * @return Returns the open log, positioned after its last valid record.
+     *
+     * @throws IOException if the log can't be read or opened
+     */
+    public static SpellLog open(Path path, HashAVLSpellTable table, long checkpointedGeneration, long commitIntervalMillis,
+            int commitBytes) throws IOException {
+        if (commitIntervalMillis < 0 || commitBytes < 1) {
+            throw new IllegalArgumentException("The commit interval must not be negative and the commit size must be positive, got "
+                    + commitIntervalMillis + " ms, " + commitBytes + " bytes");
+        }
+
+        long generation = checkpointedGeneration + 1; // the generation of a new log
+        long valid = 0; // length of the valid prefix of the log, 0 if the log starts over
+        int replayed = 0;
+        if (Files.exists(path) && Files.size(path) >= HEADER_SIZE) { // a shorter log was torn while its header was written
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+                long size = Files.size(path);
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a spell log: " + path);
+                }
+                long logGeneration = in.readLong();
+                if (logGeneration > checkpointedGeneration) { // the table doesn't have these records yet
+                    generation = logGeneration;
+                    valid = HEADER_SIZE;
+                }
+                CRC32 crc = new CRC32();
+                while (valid > 0 && size - valid >= RECORD_HEADER) {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 1 || length > size - valid - RECORD_HEADER) {
+                        break; // torn or corrupted
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int)crc.getValue() != checksum || !apply(ByteBuffer.wrap(payload), table)) {
+                        break;
+                    }
+                    valid += RECORD_HEADER + length;
+                    replayed++;
+                }
+            }
+        }
+
+        boolean created = !Files.exists(path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (valid == 0) {
+                writeHeader(channel, generation);
+            } else if (channel.size() > valid) {
+                channel.truncate(valid);
+                channel.force(false);
+            }
+            channel.position(channel.size());
+            if (created) { // the new file's directory entry must survive a crash too
+                forceDirectory(path);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new SpellLog(channel, generation, replayed, commitIntervalMillis, commitBytes);
+    }
+
+    /**
+     * Helper function. Empties a log file and writes the header of a generation, forced to disk.
+     */
+    private static void writeHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        channel.truncate(0); // before the header, so a crash never leaves old records under a new generation
+        header.putInt(MAGIC);
+        header.putLong(generation);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Helper function. Applies a record to a table.
+     *
+     * @param payload the payload of the record
+     * @param table the table to apply it to
+     *
+     * @return Returns true if the record was well formed, false if it isn't a record.
+     */
+    private static boolean apply(ByteBuffer payload, HashAVLSpellTable table) {
+        byte type;
+        String category;
+        String name;
+        int powerLevel;
+        String words = null;
+        int newPowerLevel = 0;
+
+        try { // decoded whole before anything is applied
+            type = payload.get();
+            category = getString(payload);
+            name = getString(payload);
+            powerLevel = payload.getInt();
+            if (type == ADD) {
+                words = getString(payload);
+            } else if (type == UPDATE) {
+                newPowerLevel = payload.getInt();
+            } else if (type != REMOVE) {
+                return false;
+            }
+        } catch (RuntimeException e) { // BufferUnderflowException, or a bad string length
+            return false;
+        }
+        if (payload.hasRemaining()) {
+            return false;
+        }
+
+        switch (type) {
+            case ADD: table.addSpell(new Spell(name, category, powerLevel, words)); break;
+            case REMOVE: table.removeSpell(category, name, powerLevel); break;
+            default: table.updatePowerLevel(category, name, powerLevel, newPowerLevel); break;
+        }
+        return true;
+    }
+
+    /**
+     * Appends the record of an addSpell.
+     *
+     * @param spell the added spell
+     *
+     * @return Returns the sequence number of the record, to pass to awaitCommit.
+     *
+     * @throws IOException if the log failed or is closed
+     */
+    public long appendAdd(Spell spell) throws IOException {
+        return append(ADD, spell.getCategory(), spell.getName(), spell.getPowerLevel(), 0, spell.getWords());
+    }
+
+    /**
+     * Appends the record of a removeSpell.
+     *
+     * @param category the category of the removed spell
+     * @param spellName the name of the removed spell
+     * @param powerLevel the power level of the removed spell
+     *
+     * @return Returns the sequence number of the record, to pass to awaitCommit.
+     *
+     * @throws IOException if the log failed or is closed
+     */
+    public long appendRemove(String category, String spellName, int powerLevel) throws IOException {
+        return append(REMOVE, category, spellName, powerLevel, 0, null);
+    }
+
+    /**
+     * Appends the record of an updatePowerLevel.
+     *
+     * @param category the category of the spell
+     * @param spellName the name of the spell
+     * @param powerLevel the power level of the spell before the update
+     * @param newPowerLevel the power level of the spell after the update
+     *
+     * @return Returns the sequence number of the record, to pass to awaitCommit.
+     *
+     * @throws IOException if the log failed or is closed
+     */
+    public long appendUpdate(String category, String spellName, int powerLevel, int newPowerLevel) throws IOException {
+        return append(UPDATE, category, spellName, powerLevel, newPowerLevel, null);
+    }
+
+    /**
+     * Helper function. Encodes a record into the batch and wakes the flusher if the batch became due.
+     *
+     * @return Returns the sequence number of the record.
+     */
+    private long append(byte type, String category, String spellName, int powerLevel, int newPowerLevel, String words) throws IOException {
+        byte[] categoryBytes = category.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = spellName.getBytes(StandardCharsets.UTF_8);
+        byte[] wordsBytes = type == ADD ? words.getBytes(StandardCharsets.UTF_8) : null;
+        int length = 1 + 4 + categoryBytes.length + 4 + nameBytes.length + 4
+                + (type == ADD ? 4 + wordsBytes.length : 0) + (type == UPDATE ? 4 : 0);
+
+        if (length > MAX_RECORD) {
+            throw new IllegalArgumentException("The record is too large: " + length + " bytes");
+        }
+
+        this.lock.lock();
+        try {
+            checkOpen();
+            if (this.batch.remaining() < RECORD_HEADER + length) { // a record larger than the batch buffer
+                ByteBuffer larger = ByteBuffer.allocate(this.batch.position() + RECORD_HEADER + length);
+                this.batch.flip();
+                larger.put(this.batch);
+                this.batch = larger;
+            }
+            int start = this.batch.position();
+            this.batch.putInt(length);
+            this.batch.putInt(0); // the CRC, filled in below
+            this.batch.put(type);
+            putString(this.batch, categoryBytes);
+            putString(this.batch, nameBytes);
+            this.batch.putInt(powerLevel);
+            if (type == ADD) {
+                putString(this.batch, wordsBytes);
+            } else if (type == UPDATE) {
+                this.batch.putInt(newPowerLevel);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(this.batch.array(), start + RECORD_HEADER, length);
+            this.batch.putInt(start + 4, (int)crc.getValue());
+
+            if (start == 0) {
+                this.batchStart = System.nanoTime();
+                this.work.signal(); // the flusher waits without a timeout while the batch is empty
+            } else if (this.batch.position() >= this.commitBytes) {
+                this.work.signal();
+            }
+            return ++this.appended;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a record is forced to disk - at most the commit interval, plus the time of an fsync.
+     *
+     * @param sequence the sequence number of the record, as returned by an append
+     *
+     * @throws IOException if the log failed before committing the record
+     */
+    public void awaitCommit(long sequence) throws IOException {
+        this.lock.lock();
+        try {
+            while (this.committed < sequence) {
+                if (this.failure != null) {
+                    throw new IOException("The spell log failed", this.failure);
+                }
+                this.committedCondition.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Commits every appended record now, without waiting for the commit interval, and waits for it.
+     *
+     * @throws IOException if the log failed
+     */
+    public void sync() throws IOException {
+        long sequence;
+
+        this.lock.lock();
+        try {
+            sequence = this.appended;
+            if (this.committed >= sequence) {
+                return;
+            }
+            this.syncRequested = Math.max(this.syncRequested, sequence);
+            this.work.signal();
+        } finally {
+            this.lock.unlock();
+        }
+        awaitCommit(sequence);
+    }
+
+    /**
+     * Commits every appended record and empties the log, starting the next generation - called once its records are
+     * all in a snapshot saved with the current generation (see getGeneration). No record may be appended concurrently.
+     *
+     * @throws IOException if the log failed
+     */
+    public void truncate() throws IOException {
+        sync();
+        this.lock.lock();
+        try {
+            checkOpen();
+            writeHeader(this.channel, this.generation + 1);
+            this.generation++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Commits every appended record, stops the flusher and closes the file. Closing again, or after the flusher
+     * failed, still waits for the flusher, closes the file and reports the failure.
+     *
+     * @throws IOException if the log failed
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.work.signal();
+        } finally {
+            this.lock.unlock();
+        }
+        boolean interrupted = false;
+        while (true) { // the channel can't be closed under a running flusher
+            try {
+                this.flusher.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        this.channel.close();
+        if (this.failure != null) {
+            throw new IOException("The spell log failed", this.failure);
+        }
+    }
+
+    /**
+     * Getter, returns the number of records replayed when the log was opened.
+     *
+     * @return Returns the number of replayed records.
+     */
+    public int getReplayed() {
+        return this.replayed;
+    }
+
+    /**
+     * Getter, returns the generation of the log - a snapshot saved with it holds every record of the log so far.
+     *
+     * @return Returns the generation of the log.
+     */
+    public long getGeneration() {
+        this.lock.lock();
+        try {
+            return this.generation;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Getter, returns the number of records appended since the log was opened.
+     *
+     * @return Returns the number of appended records.
+     */
+    public long getAppended() {
+        this.lock.lock();
+        try {
+            return this.appended;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Getter, returns the number of batches committed (fsyncs) since the log was opened - with concurrent writers,
+     * far fewer than the appended records.
+     *
+     * @return Returns the number of commits.
+     */
+    public long getCommits() {
+        this.lock.lock();
+        try {
+            return this.commits;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Helper function. The flusher thread - waits until the batch is due, swaps it with the spare buffer, then writes
+     * and forces it outside the lock so writers keep appending to the other buffer meanwhile.
+     */
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer writing;
+            long sequence;
+
+            this.lock.lock();
+            try {
+                while (!this.closed && !due()) {
+                    if (this.batch.position() == 0) {
+                        this.work.awaitUninterruptibly();
+                    } else {
+                        try {
+                            this.work.awaitNanos(this.commitIntervalNanos - (System.nanoTime() - this.batchStart));
+                        } catch (InterruptedException e) {
+                            // the flusher is only stopped by close
+                        }
+                    }
+                }
+                if (this.batch.position() == 0) { // closed, and nothing left
+                    return;
+                }
+                writing = this.batch;
+                this.batch = this.spare;
+                this.spare = null;
+                sequence = this.appended;
+            } finally {
+                this.lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    this.channel.write(writing);
+                }
+                this.channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            writing.clear();
+
+            this.lock.lock();
+            try {
+                this.spare = writing;
+                if (error != null) { // checkOpen rejects appends from now on, close still has to be called
+                    this.failure = error;
+                    this.committedCondition.signalAll();
+                    return;
+                }
+                this.committed = sequence;
+                this.commits++;
+                this.committedCondition.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forces the directory of a file to disk, so a file that was just created or moved there survives a crash. Some
+     * platforms can't open a directory (Windows) - they make the entry durable on their own, so that's ignored.
+     *
+     * @param path the file whose directory is forced
+     *
+     * @throws IOException if forcing the directory fails
+     */
+    static void forceDirectory(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        FileChannel channel;
+
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) { // the directory can't be opened on this platform
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Helper function. Returns true if the batch should be committed now. Called under the lock.
+     */
+    private boolean due() {
+        int pending = this.batch.position();
+
+        return (pending >= this.commitBytes)
+                || ((pending > 0) && (System.nanoTime() - this.batchStart >= this.commitIntervalNanos))
+                || ((pending > 0) && (this.syncRequested > this.committed));
+    }
+
+    /**
+     * Helper function. Throws if records can't be appended anymore. Called under the lock.
+     */
+    private void checkOpen() throws IOException {
+        if (this.failure != null) {
+            throw new IOException("The spell log failed", this.failure);
+        }
+        if (this.closed) {
+            throw new IOException("The spell log is closed");
+        }
+    }
+
+    /**
+     * Helper function. Writes a length-prefixed string.
+     */
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Helper function. Reads a length-prefixed string.
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
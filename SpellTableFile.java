@@ -0,0 +1,312 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file format of a HashAVLSpellTable (HashAVLSpellTable.save and load). Both directions stream through a
+ * single buffer, so neither side holds more than one category's spells besides the table itself - apart from the
+ * string deduplication, which keeps one entry per distinct string of the whole table (Writer.ids, Reader.strings).
+ * The entries point to the table's own strings, so that costs a map or list entry per string, not a copy.
+ *
+ * File layout (all ints are big-endian):
+ *   header - MAGIC, VERSION, number of categories, number of spells (4 ints), then the long log generation - the
+ *            generation of the SpellLog whose records are all in the table (0 if none is), version 1 files have none
+ *   categories - for each category: string category, int count, then count x (string name, int power level, string words),
+ *                the spells in ascending (power level, name) order
+ *   trailer - MAGIC again, so a truncated file is detected
+ * Strings are deduplicated as they're written: the first occurrence is an int -(UTF-8 length) - 1 followed by the
+ * UTF-8 bytes and gets the next string id (0, 1, 2...); every later occurrence is just its id (an int >= 0).
+ * Since the spells come sorted, each tree is rebuilt with a linear-time bulk build instead of n inserts.
+ */
+final class SpellTableFile {
+    static final int MAGIC = 0x53504154; // "SPAT"
+    static final int VERSION = 2; // 2 - the header has the log generation
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Private constructor, only static methods.
+     */
+    private SpellTableFile() {
+    }
+
+    /**
+     * Writes a table to a file, that no log generation is in.
+     *
+     * @param table the table to save
+     * @param path the file to write, replaced if it exists, and forced to disk before this returns
+     *
+     * @throws IOException if writing fails
+     */
+    static void save(HashAVLSpellTable table, Path path) throws IOException {
+        save(table, path, 0);
+    }
+
+    /**
+     * Writes a table to a file.
+     *
+     * @param table the table to save
+     * @param path the file to write, replaced if it exists, and forced to disk before this returns
+     * @param logGeneration the generation of the log whose records are all in the table
+     *
+     * @throws IOException if writing fails
+     */
+    static void save(HashAVLSpellTable table, Path path, long logGeneration) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel);
+            List<String> categories = table.getCategories();
+
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putInt(categories.size());
+            writer.putInt(table.getNumberSpells());
+            writer.putLong(logGeneration);
+            for (String category : categories) {
+                writer.putString(category);
+                writer.putInt(table.getNumberSpells(category));
+                Iterator<Spell> spells = table.rangeQuery(category, Integer.MIN_VALUE, Integer.MAX_VALUE).iterator();
+                while (spells.hasNext()) {
+                    Spell spell = spells.next();
+                    writer.putString(spell.getName());
+                    writer.putInt(spell.getPowerLevel());
+                    writer.putString(spell.getWords());
+                }
+            }
+            writer.putInt(MAGIC);
+            writer.flush();
+            channel.force(true); // a snapshot that's moved in place must be complete on disk first
+        }
+    }
+
+    /**
+     * Reads a table from a file written by save.
+     *
+     * @param path the file to read
+     * @param engine the index engine of the loaded table
+     *
+     * @return Returns the loaded table.
+     *
+     * @throws IOException if reading fails or the file is not a valid saved table
+     */
+    static HashAVLSpellTable load(Path path, SpellIndex.Engine engine) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel, path);
+
+            int version = readVersion(reader, path);
+            int numCategories = reader.getInt();
+            int numSpells = reader.getInt();
+            if (numCategories < 0 || numSpells < 0) {
+                throw new IOException("Corrupted spell table header: " + path);
+            }
+            if (version >= 2) {
+                reader.getLong(); // the log generation, see readLogGeneration
+            }
+
+            HashAVLSpellTable table = new HashAVLSpellTable(numCategories, engine);
+            Spell[] spells = new Spell[0];
+            for (int c = 0; c < numCategories; c++) {
+                String category = reader.getString();
+                int count = reader.getInt();
+                if (count <= 0 || count > numSpells) {
+                    throw new IOException("Corrupted spell table, category " + category + " has " + count + " spells: " + path);
+                }
+                if (spells.length < count) {
+                    spells = new Spell[count];
+                }
+                for (int i = 0; i < count; i++) {
+                    String name = reader.getString();
+                    int powerLevel = reader.getInt();
+                    spells[i] = new Spell(name, category, powerLevel, reader.getString());
+                    if ((i > 0) && (AVLTree.compareSpells(spells[i - 1], spells[i]) >= 0)) {
+                        throw new IOException("Corrupted spell table, category " + category + " is not sorted: " + path);
+                    }
+                }
+                if (!table.loadCategory(category, Arrays.asList(spells).subList(0, count))) {
+                    throw new IOException("Corrupted spell table, category " + category + " appears twice: " + path);
+                }
+                Arrays.fill(spells, 0, count, null);
+            }
+            if (reader.getInt() != MAGIC || table.getNumberSpells() != numSpells) {
+                throw new IOException("Corrupted spell table trailer: " + path);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Reads the log generation of a file written by save - only its header is read.
+     *
+     * @param path the file to read
+     *
+     * @return Returns the generation of the log whose records are all in the saved table, 0 if none is.
+     *
+     * @throws IOException if reading fails or the file is not a saved table
+     */
+    static long readLogGeneration(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel, path);
+
+            int version = readVersion(reader, path);
+            reader.getInt(); // number of categories
+            reader.getInt(); // number of spells
+            return version >= 2 ? reader.getLong() : 0;
+        }
+    }
+
+    /**
+     * Helper function. Reads and checks the magic number and the version at the start of a file.
+     *
+     * @return Returns the version of the file.
+     */
+    private static int readVersion(Reader reader, Path path) throws IOException {
+        if (reader.getInt() != MAGIC) {
+            throw new IOException("Not a saved spell table: " + path);
+        }
+        int version = reader.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported spell table version " + version + ": " + path);
+        }
+        return version;
+    }
+
+    /**
+     * Buffered writer of ints, longs and deduplicated strings.
+     */
+    private static class Writer {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private Map<String, Integer> ids; // the id of every string written so far
+
+        private Writer(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.ids = new HashMap<String, Integer>();
+        }
+
+        private void putInt(int value) throws IOException {
+            if (this.buffer.remaining() < 4) {
+                flush();
+            }
+            this.buffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            if (this.buffer.remaining() < 8) {
+                flush();
+            }
+            this.buffer.putLong(value);
+        }
+
+        private void putString(String value) throws IOException {
+            Integer id = this.ids.putIfAbsent(value, this.ids.size());
+            if (id != null) {
+                putInt(id);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(-bytes.length - 1);
+            int from = 0;
+            while (from < bytes.length) {
+                if (!this.buffer.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(bytes.length - from, this.buffer.remaining());
+                this.buffer.put(bytes, from, chunk);
+                from += chunk;
+            }
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Buffered reader of ints, longs and deduplicated strings - refills its buffer from the channel as it's consumed.
+     */
+    private static class Reader {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private Path path;
+        private List<String> strings; // every string read so far, by id
+
+        private Reader(FileChannel channel, Path path) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.buffer.limit(0);
+            this.path = path;
+            this.strings = new ArrayList<String>();
+        }
+
+        private int getInt() throws IOException {
+            require(4);
+            return this.buffer.getInt();
+        }
+
+        private long getLong() throws IOException {
+            require(8);
+            return this.buffer.getLong();
+        }
+
+        private String getString() throws IOException {
+            int header = getInt();
+            if (header >= 0) {
+                if (header >= this.strings.size()) {
+                    throw new IOException("Corrupted spell table, unknown string " + header + ": " + this.path);
+                }
+                return this.strings.get(header);
+            }
+
+            int length = -(header + 1);
+            String value;
+            if (length <= BUFFER_SIZE) { // decoded straight from the buffer
+                require(length);
+                value = new String(this.buffer.array(), this.buffer.position(), length, StandardCharsets.UTF_8);
+                this.buffer.position(this.buffer.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                int from = 0;
+                while (from < length) {
+                    require(1);
+                    int chunk = Math.min(length - from, this.buffer.remaining());
+                    this.buffer.get(bytes, from, chunk);
+                    from += chunk;
+                }
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            this.strings.add(value);
+            return value;
+        }
+
+        /**
+         * Makes sure the buffer holds at least count unread bytes (count is at most BUFFER_SIZE).
+         */
+        private void require(int count) throws IOException {
+            if (this.buffer.remaining() >= count) {
+                return;
+            }
+            this.buffer.compact();
+            while (this.buffer.position() < count) {
+                if (this.channel.read(this.buffer) < 0) {
+                    throw new EOFException("Truncated spell table: " + this.path);
+                }
+            }
+            this.buffer.flip();
+        }
+    }
+}
@@ -17,15 +17,47 @@ public class Tester {
         
         //DoubleHashTable
         testDoubleHashTable();
+        testDoubleHashTableGrowth();
+        testDoubleHashTableRemove();
+        testDoubleHashTableStats();
+
+        //SpellHasher
+        testSpellHasher();
+
+        //PackedDoubleHashTable
+        testPackedDoubleHashTable();
+
+        //MappedDoubleHashTable
+        testMappedDoubleHashTable();
+
+        //ConcurrentDoubleHashTable
+        testConcurrentDoubleHashTable();
 
         //Spell
         testSpell();
 
         //AVLTree
         testAVLTree();
+        testAVLTreeLarge();
+        testAVLTreeSharedPowerLevels();
+        testAVLTreeBulkLoad();
+        testAVLTreePersistent();
+        testAVLTreeRemove();
+        testPooledAVLTree();
+        testBPlusTree();
 
         //HashAVLSpellTable
         testHashAVLSpellTable();
+        testHashAVLSpellTableManyCategories();
+        testConcurrentHashAVLSpellTable();
+        testHashAVLSpellTableSnapshot();
+        testHashAVLSpellTableTopKCache();
+        testHashAVLSpellTableGlobalTopK();
+        testHashAVLSpellTableRemove();
+        testHashAVLSpellTableEngines();
+        testHashAVLSpellTableSaveLoad();
+        testDurableSpellTable();
+        testSpellIngest();
 
         // Notifying the user that the code have passed all tests.
         if (testPassed) {
@@ -101,6 +133,334 @@ public class Tester {
         test(table.getCastWords("Aloha") == null,"The getCastWords of Aloha should return null, got: '" + table.getCastWords("Aloha")+ "'");
     }
 
+    /**
+     * Checks the auto-growing mode of the DoubleHashTable class.
+     */
+    private static void testDoubleHashTableGrowth() {
+
+        DoubleHashTable table = new DoubleHashTable(7, 0.5);
+
+        test(table.getCapacity() == 7, "The capacity of the growing table should be 7, instead got: '" + table.getCapacity() + "'");
+
+        for (int i = 0; i < 100; i++) {
+            table.put(new SpellSimple("Spell " + i, "Words " + i));
+        }
+
+        // The table grew instead of overflowing
+        test(table.getSize() == 100, "The size of the growing table should be 100, instead got: '" + table.getSize() + "'");
+        test(table.getCapacity() >= 200, "The capacity of the growing table should be at least 200, instead got: '" + table.getCapacity() + "'");
+
+        // Every spell is reachable, whether it was migrated already or not
+        boolean allFound = true;
+        for (int i = 0; i < 100; i++) {
+            allFound = allFound && ("Words " + i).equals(table.getCastWords("Spell " + i));
+        }
+        test(allFound, "All 100 spells should be found in the growing table");
+
+        // Lookups keep migrating, so eventually the rehash completes
+        for (int i = 0; i < 100 && table.isRehashing(); i++) {
+            table.getCastWords("Spell " + i);
+        }
+        test(!table.isRehashing(), "The rehash should have completed");
+        test(table.getMigratedCount() > 0, "Some spells should have been migrated, instead got: '" + table.getMigratedCount() + "'");
+
+        // Get non-existing spell
+        test(table.getCastWords("Aloha") == null,"The getCastWords of Aloha should return null, got: '" + table.getCastWords("Aloha")+ "'");
+
+        // With a low load factor a migration still ends before the next growth starts, so no put finishes it at once
+        DoubleHashTable sparse = new DoubleHashTable(10007, 0.01); // room for 100 spells, then 200, 400...
+        boolean finishedInTime = true;
+        int growths = 0;
+        for (int i = 0; i < 5000; i++) {
+            int capacity = sparse.getCapacity();
+            boolean rehashing = sparse.isRehashing();
+            sparse.put(new SpellSimple("Spell " + i, "Words " + i));
+            if (sparse.getCapacity() != capacity) {
+                growths++;
+                finishedInTime = finishedInTime && !rehashing;
+            }
+        }
+        test(finishedInTime && growths == 6, "Every migration of a table with load factor 0.01 should end before the next growth, "
+                + growths + " growths");
+        test(sparse.getSize() == 5000 && "Words 4999".equals(sparse.getCastWords("Spell 4999")), "The sparse table should have its 5000 spells");
+    }
+
+    /**
+     * Checks removing spells from the DoubleHashTable class.
+     */
+    private static void testDoubleHashTableRemove() {
+
+        DoubleHashTable table = new DoubleHashTable(7);
+
+        table.put(new SpellSimple("Abracadabra", "Avada Kedavra"));
+        table.put(new SpellSimple("Expecto Patronum", "Im gonna stand here like a unicorn"));
+        table.put(new SpellSimple("Wingardium Leviosa", "Get up, stand up"));
+        table.put(new SpellSimple("Shazam", "24K Magic in the air"));
+
+        test(table.remove("Abracadabra") == true, "Removing Abracadabra should return true");
+        test(table.remove("Abracadabra") == false, "Removing Abracadabra twice should return false");
+        test(table.getSize() == 3, "The size of the table should be 3, instead got: '" + table.getSize() + "'");
+
+        // The probe sequences of the remaining spells are still intact
+        test(table.getCastWords("Shazam").equals("24K Magic in the air"),"The getCastWords of Shazam should be '24K Magic in the air' got: '" + table.getCastWords("Shazam")+ "'");
+        test(table.getCastWords("Abracadabra") == null,"The getCastWords of Abracadabra should return null, got: '" + table.getCastWords("Abracadabra")+ "'");
+
+        // A steady stream of inserts and deletes keeps the growing table compact
+        DoubleHashTable growing = new DoubleHashTable(7, 0.5);
+        for (int i = 0; i < 1000; i++) {
+            growing.put(new SpellSimple("Spell " + i, "Words " + i));
+            if (i >= 10) {
+                growing.remove("Spell " + (i - 10));
+            }
+        }
+        test(growing.getSize() == 10, "The size of the growing table should be 10, instead got: '" + growing.getSize() + "'");
+        test(growing.getCapacity() < 100, "The growing table shouldn't grow with a steady size, instead got capacity: '" + growing.getCapacity() + "'");
+        test(growing.getTombstones() <= growing.getCapacity() / 4, "The tombstones should be compacted, instead got: '" + growing.getTombstones() + "'");
+
+        boolean allFound = true;
+        for (int i = 990; i < 1000; i++) {
+            allFound = allFound && ("Words " + i).equals(growing.getCastWords("Spell " + i));
+        }
+        test(allFound, "The last 10 spells should be found in the growing table");
+        test(growing.getCastWords("Spell 989") == null, "Spell 989 should have been removed");
+
+        // Compacting a fixed table keeps its capacity
+        DoubleHashTable compacted = new DoubleHashTable(101);
+        for (int i = 0; i < 60; i++) {
+            compacted.put(new SpellSimple("Spell " + i, "Words " + i));
+        }
+        for (int i = 0; i < 50; i++) {
+            compacted.remove("Spell " + i);
+        }
+        test(compacted.getCapacity() == 101, "Compaction should keep the capacity of a fixed table");
+        test(compacted.getTombstones() < 26, "Compaction should have cleared the tombstones");
+
+        // Removing from a table whose capacity isn't prime - its probe sequences may not cover every slot
+        for (int capacity : new int[] {8, 9, 10, 12, 16}) {
+            DoubleHashTable fixed = new DoubleHashTable(capacity);
+            java.util.Map<String, String> expected = new java.util.HashMap<String, String>();
+            java.util.Random random = new java.util.Random(capacity);
+            boolean consistent = true;
+            for (int i = 0; i < 2000; i++) {
+                String name = "Spell " + random.nextInt(3 * capacity);
+                if (random.nextBoolean()) {
+                    if (!expected.containsKey(name) && fixed.put(new SpellSimple(name, "Words " + name))) {
+                        expected.put(name, "Words " + name);
+                    }
+                } else {
+                    consistent = consistent && (fixed.remove(name) == (expected.remove(name) != null));
+                }
+            }
+            for (java.util.Map.Entry<String, String> spell : expected.entrySet()) {
+                consistent = consistent && spell.getValue().equals(fixed.getCastWords(spell.getKey()));
+            }
+            test(consistent && fixed.getSize() == expected.size(), "The table of capacity " + capacity + " should survive its removals");
+            test(fixed.getCapacity() == capacity, "The table of capacity " + capacity + " should keep its capacity");
+        }
+    }
+
+    /**
+     * Checks the statistics of the DoubleHashTable class.
+     */
+    private static void testDoubleHashTableStats() {
+
+        DoubleHashTable table = new DoubleHashTable(101, SpellHasher.MIX);
+
+        test(table.getStats() == null, "Statistics should be disabled by default");
+
+        table.enableStats();
+        table.getCastWords("Aloha"); // a miss on the empty table
+        for (int i = 0; i < 50; i++) {
+            table.put(new SpellSimple("Spell " + i, "Words " + i));
+        }
+        for (int i = 0; i < 60; i++) {
+            table.getCastWords("Spell " + i); // 10 more misses
+        }
+
+        ProbeStats stats = table.getStats();
+        test(stats.getCount(ProbeStats.INSERT) == 50, "There should be 50 inserts recorded, instead got: '" + stats.getCount(ProbeStats.INSERT) + "'");
+        test(stats.getCount(ProbeStats.HIT) == 50, "There should be 50 hits recorded, instead got: '" + stats.getCount(ProbeStats.HIT) + "'");
+        test(stats.getCount(ProbeStats.MISS) == 11, "There should be 11 misses recorded, instead got: '" + stats.getCount(ProbeStats.MISS) + "'");
+        test(stats.getMax(ProbeStats.HIT) <= stats.getMax(ProbeStats.INSERT), "A hit can't take more steps than the insert of the same spell");
+        test(Math.abs(table.getLoadFactor() - 50.0 / 101) < 1e-9, "The load factor should be 50/101, instead got: '" + table.getLoadFactor() + "'");
+
+        int[] clusters = table.getClusterHistogram();
+        int taken = 0;
+        for (int size = 0; size < clusters.length; size++) {
+            taken += size * clusters[size];
+        }
+        test(taken == 50, "The clusters should cover the 50 taken slots, instead got: '" + taken + "'");
+
+        // During an incremental rehash the clusters cover the spells of both tables
+        DoubleHashTable growing = new DoubleHashTable(101, 0.5);
+        int count = 0;
+        while (!growing.isRehashing()) {
+            growing.put(new SpellSimple("Spell " + count, "Words " + count));
+            count++;
+        }
+        clusters = growing.getClusterHistogram();
+        taken = 0;
+        for (int size = 0; size < clusters.length; size++) {
+            taken += size * clusters[size];
+        }
+        test(taken == count, "The clusters should cover the " + count + " spells while rehashing, instead got: '" + taken + "'");
+    }
+
+    /**
+     * Checks the SpellHasher strategies, through HashReport.
+     */
+    private static void testSpellHasher() {
+
+        java.util.List<String> anagrams = java.util.Arrays.asList("Accio", "Accoi", "Aicco", "Oicca", "Ciaco", "Cocia");
+
+        HashReport charSum = HashReport.analyze(SpellHasher.CHAR_SUM, anagrams, 13);
+        HashReport mix = HashReport.analyze(SpellHasher.MIX, anagrams, 13);
+
+        test(charSum.getFullCollisions() == 5, "All anagrams should collide with CHAR_SUM, instead got: '" + charSum.getFullCollisions() + "'");
+        test(mix.getFullCollisions() == 0, "No anagrams should collide with MIX, instead got: '" + mix.getFullCollisions() + "'");
+
+        boolean threw = false;
+        try {
+            HashReport.analyze(SpellHasher.MIX, java.util.Arrays.asList("Accio"), 2);
+        } catch (IllegalArgumentException e) {
+            threw = true;
+        }
+        test(threw, "A report with a capacity of 2 should be refused");
+
+        // Same hash strategy, same lookups
+        DoubleHashTable table = new DoubleHashTable(13, SpellHasher.MIX);
+        for (String name : anagrams) {
+            table.put(new SpellSimple(name, name + "!"));
+        }
+        test(table.getCastWords("Cocia").equals("Cocia!"), "The getCastWords of Cocia should be 'Cocia!' got: '" + table.getCastWords("Cocia") + "'");
+    }
+
+    /**
+     * Checks the PackedDoubleHashTable class.
+     */
+    private static void testPackedDoubleHashTable() {
+
+        PackedDoubleHashTable table = new PackedDoubleHashTable(7);
+
+        table.put(new SpellSimple("Abracadabra", "Avada Kedavra"));
+        table.put(new SpellSimple("Expecto Patronum", "I’m gonna stand here like a unicorn")); // non-ASCII words
+        for (int i = 0; i < 100; i++) {
+            table.put(new SpellSimple("Spell " + i, "Words " + i));
+        }
+
+        test(table.getSize() == 102, "The size of the packed table should be 102, instead got: '" + table.getSize() + "'");
+        test(table.getCastWords("Abracadabra").equals("Avada Kedavra"), "The getCastWords of Abracadabra should be 'Avada Kedavra' got: '" + table.getCastWords("Abracadabra") + "'");
+        test(table.getCastWords("Expecto Patronum").equals("I’m gonna stand here like a unicorn"), "The getCastWords of Expecto Patronum has failed, got: '" + table.getCastWords("Expecto Patronum") + "'");
+        test(table.getCastWords("Spell 42").equals("Words 42"), "The getCastWords of Spell 42 should be 'Words 42' got: '" + table.getCastWords("Spell 42") + "'");
+
+        // Anagram of an existing name
+        test(table.getCastWords("Spell 24") != null && table.getCastWords("Spell 24").equals("Words 24"), "The getCastWords of Spell 24 should be 'Words 24'");
+
+        // Get non-existing spell
+        test(table.getCastWords("Aloha") == null, "The getCastWords of Aloha should return null, got: '" + table.getCastWords("Aloha") + "'");
+    }
+
+    /**
+     * Checks the MappedDoubleHashTable class, by saving a PackedDoubleHashTable and mapping the file back.
+     */
+    private static void testMappedDoubleHashTable() {
+
+        PackedDoubleHashTable packed = new PackedDoubleHashTable(7);
+        for (int i = 0; i < 100; i++) {
+            packed.put(new SpellSimple("Spell " + i, "Words " + i));
+        }
+        packed.put(new SpellSimple("Expecto Patronum", "I’m gonna stand here like a unicorn"));
+
+        try {
+            java.nio.file.Path path = java.nio.file.Files.createTempFile("spells", ".tbl");
+            try {
+                packed.save(path);
+                MappedDoubleHashTable table = MappedDoubleHashTable.open(path);
+
+                test(table.getSize() == 101, "The size of the mapped table should be 101, instead got: '" + table.getSize() + "'");
+                test(table.getCastWords("Spell 42").equals("Words 42"), "The getCastWords of Spell 42 should be 'Words 42' got: '" + table.getCastWords("Spell 42") + "'");
+                test(table.getCastWords("Expecto Patronum").equals("I’m gonna stand here like a unicorn"), "The getCastWords of Expecto Patronum has failed, got: '" + table.getCastWords("Expecto Patronum") + "'");
+                test(table.getCastWords("Aloha") == null, "The getCastWords of Aloha should return null, got: '" + table.getCastWords("Aloha") + "'");
+            } finally {
+                java.nio.file.Files.delete(path);
+            }
+        } catch (java.io.IOException e) {
+            test(false, "Saving or mapping the table failed: " + e);
+        }
+
+        // A DoubleHashTable is saved in the same layout - with its own hash strategy and capacity, and mid-rehash
+        DoubleHashTable fixed = new DoubleHashTable(101);
+        DoubleHashTable growing = new DoubleHashTable(7, 0.5);
+        for (int i = 0; i < 40; i++) {
+            fixed.put(new SpellSimple("Spell " + i, "Words " + i));
+            growing.put(new SpellSimple("Spell " + i, "Words " + i));
+        }
+        fixed.remove("Spell 7");
+        growing.remove("Spell 7");
+        try {
+            java.nio.file.Path path = java.nio.file.Files.createTempFile("spells", ".tbl");
+            try {
+                for (DoubleHashTable source : new DoubleHashTable[] {fixed, growing}) {
+                    source.save(path);
+                    MappedDoubleHashTable table = MappedDoubleHashTable.open(path);
+                    boolean allFound = table.getSize() == 39 && table.getCastWords("Spell 7") == null;
+                    for (int i = 0; i < 40; i++) {
+                        allFound = allFound && (i == 7 || ("Words " + i).equals(table.getCastWords("Spell " + i)));
+                    }
+                    test(allFound, "The mapped DoubleHashTable should have its 39 spells (rehashing: " + source.isRehashing() + ")");
+                }
+            } finally {
+                java.nio.file.Files.delete(path);
+            }
+        } catch (java.io.IOException e) {
+            test(false, "Saving or mapping the DoubleHashTable failed: " + e);
+        }
+    }
+
+    /**
+     * Checks the ConcurrentDoubleHashTable class, with several writer threads.
+     */
+    private static void testConcurrentDoubleHashTable() {
+
+        ConcurrentDoubleHashTable table = new ConcurrentDoubleHashTable(1000);
+        Thread[] writers = new Thread[4];
+
+        for (int t = 0; t < writers.length; t++) {
+            int first = t * 200;
+            writers[t] = new Thread(() -> {
+                for (int i = first; i < first + 200; i++) {
+                    table.put(new SpellSimple("Spell " + i, "Words " + i));
+                }
+            });
+            writers[t].start();
+        }
+        try {
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        test(table.getSize() == 800, "The size of the concurrent table should be 800, instead got: '" + table.getSize() + "'");
+
+        boolean allFound = true;
+        for (int i = 0; i < 800; i++) {
+            allFound = allFound && ("Words " + i).equals(table.getCastWords("Spell " + i));
+        }
+        test(allFound, "All 800 spells should be found in the concurrent table");
+
+        ConcurrentDoubleHashTable.Lookup lookup = table.lookup("Aloha");
+        test(lookup.getWords() == null && lookup.getSteps() >= 0, "The lookup of Aloha should return null, got: '" + lookup.getWords() + "'");
+
+        // Test Overflow
+        ConcurrentDoubleHashTable small = new ConcurrentDoubleHashTable(3);
+        small.put(new SpellSimple("Abracadabra", "Avada Kedavra"));
+        small.put(new SpellSimple("Shazam", "24K Magic in the air"));
+        test(small.putWithSteps(new SpellSimple("Accio", "Summon objectio")) >= 0, "Got -1, i.e. the table says falsly that it's overflowing");
+        test(small.putWithSteps(new SpellSimple("Alohomora", "Unlocko objectio")) == -1, "Item added to overflowing table, should return -1");
+    }
+
     /**
      * Checks the Spell class.
      */
@@ -166,6 +526,345 @@ public class Tester {
         test(tree.getTreeHeight() == 3,"The height of the tree should be 3 got: '" + tree.getTreeHeight() + "'");
     }
 
+    /**
+     * Checks the AVLTree class with many spells inserted in random order.
+     */
+    private static void testAVLTreeLarge() {
+
+        java.util.Random random = new java.util.Random(42);
+        int[] powers = new int[10000];
+        for (int i = 0; i < powers.length; i++) {
+            powers[i] = i;
+        }
+        for (int i = powers.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = powers[i];
+            powers[i] = powers[j];
+            powers[j] = tmp;
+        }
+
+        Spell[] spells = new Spell[powers.length];
+        for (int i = 0; i < powers.length; i++) {
+            spells[i] = new Spell("Spell " + powers[i], "Fire", powers[i], "Words");
+        }
+
+        AVLTree tree = new AVLTree(spells[0]);
+        for (int i = 1; i < spells.length; i++) {
+            tree.insert(spells[i]);
+        }
+        tree.insert(new Spell("Spell 5", "Fire", 5, "Words")); // duplicate
+
+        test(tree.getSize() == 10000, "The size of the tree should be 10000 got: '" + tree.getSize() + "'");
+        test(tree.getTreeHeight() <= 19, "The height of the tree should be at most 19 (1.44 log n) got: '" + tree.getTreeHeight() + "'");
+
+        test(tree.search(spells[77].getName(), powers[77]) == spells[77], "The search() of " + spells[77].getName() + " should find it");
+
+        java.util.List<Spell> top = tree.getTopK(100);
+        boolean descending = top.size() == 100;
+        for (int i = 0; i < top.size(); i++) {
+            descending = descending && top.get(i).getPowerLevel() == 9999 - i;
+        }
+        test(descending, "getTopK of K = 100 should return power levels 9999 down to 9900");
+
+        java.util.Iterator<Spell> iterator = tree.descendingIterator();
+        int expected = 9999;
+        boolean ordered = true;
+        while (iterator.hasNext()) {
+            ordered = ordered && iterator.next().getPowerLevel() == expected--;
+        }
+        test(ordered && expected == -1, "descendingIterator should return all power levels from 9999 down to 0");
+
+        java.util.List<Spell> range = tree.rangeQuery(4000, 4099).collect(java.util.stream.Collectors.toList());
+        boolean inRange = range.size() == 100;
+        for (int i = 0; i < range.size(); i++) {
+            inRange = inRange && range.get(i).getPowerLevel() == 4000 + i;
+        }
+        test(inRange, "rangeQuery(4000, 4099) should return power levels 4000 up to 4099, got " + range.size() + " spells");
+        test(tree.rangeQuery(10000, 20000).count() == 0, "rangeQuery above the top power level should be empty");
+        test(tree.rangeQuery(-5, 0).count() == 1, "rangeQuery(-5, 0) should return a single spell");
+
+        test(tree.rank(4000) == 4000, "rank(4000) should be 4000 got: '" + tree.rank(4000) + "'");
+        test(tree.rank(20000) == 10000, "rank(20000) should be 10000 got: '" + tree.rank(20000) + "'");
+        test(tree.select(1234).getPowerLevel() == 1234, "select(1234) should have power level 1234 got: '" + tree.select(1234) + "'");
+        test(tree.select(tree.getSize() - 1).getPowerLevel() == 9999, "select(size - 1) should be the strongest spell");
+        test(tree.select(10000) == null, "select(10000) should be null");
+        test(tree.countInRange(4000, 4099) == 100, "countInRange(4000, 4099) should be 100 got: '" + tree.countInRange(4000, 4099) + "'");
+        test(tree.countInRange(-100, Integer.MAX_VALUE) == 10000, "countInRange over everything should be 10000 got: '" + tree.countInRange(-100, Integer.MAX_VALUE) + "'");
+    }
+
+    /**
+     * Checks the AVLTree class with many spells that share power levels.
+     */
+    private static void testAVLTreeSharedPowerLevels() {
+
+        AVLTree tree = new AVLTree(new Spell("Spell 0", "Fire", 0, "Words"));
+        for (int i = 1; i < 3000; i++) {
+            tree.insert(new Spell("Spell " + i, "Fire", i % 3, "Words")); // 1000 spells per power level
+        }
+
+        test(tree.getSize() == 3000, "The size of the tree should be 3000 got: '" + tree.getSize() + "'");
+        test(tree.getTreeHeight() <= 17, "The height of the tree should be at most 17 (1.44 log n) got: '" + tree.getTreeHeight() + "'");
+        test(tree.insert(new Spell("Spell 4", "Fire", 1, "Words")) == false, "Inserting the same name and power level twice should return false");
+        test(tree.insert(new Spell("Spell 4", "Fire", 2, "Words")) == true, "Inserting the same name with another power level should return true");
+
+        // names are compared by value, not by reference
+        test(tree.search(new String("Spell 1234"), 1) != null, "The search() of Spell 1234 with power level 1 should find it");
+        test(tree.search("Spell 1234", 2) == null, "The search() of Spell 1234 with power level 2 should be null");
+
+        java.util.List<Spell> top = tree.getTopK(1002); // 1001 spells of power level 2, then power level 1
+        test(top.get(0).getName().equals("Spell 998") && top.get(1001).getPowerLevel() == 1, "getTopK should return the spells of the same power level in descending name order");
+        test(tree.rangeQuery(1, 1).count() == 1000, "rangeQuery(1, 1) should return all 1000 spells of power level 1");
+        test(tree.countInRange(1, 1) == 1000, "countInRange(1, 1) should be 1000 got: '" + tree.countInRange(1, 1) + "'");
+    }
+
+    /**
+     * Checks bulk loading of the AVLTree class.
+     */
+    private static void testAVLTreeBulkLoad() {
+
+        java.util.List<Spell> spells = new java.util.ArrayList<Spell>();
+        for (int i = 0; i < 4095; i++) {
+            spells.add(new Spell("Spell " + i, "Fire", (i * 7919) % 4095, "Words")); // distinct power levels, out of order
+        }
+
+        AVLTree tree = new AVLTree("Fire");
+        test(tree.addAll(spells) == 4095, "addAll into an empty tree should insert 4095 spells");
+        test(tree.getTreeHeight() == 11, "A bulk loaded tree of 4095 spells should be perfectly balanced (height 11) got: '" + tree.getTreeHeight() + "'");
+        test(tree.select(100).getPowerLevel() == 100, "select(100) of a bulk loaded tree should have power level 100");
+
+        // a large batch is merged (half of it are duplicates), a small one is inserted
+        java.util.List<Spell> more = new java.util.ArrayList<Spell>();
+        for (int i = 0; i < 4000; i++) {
+            more.add(new Spell("Spell " + i, "Fire", i % 2 == 0 ? (i * 7919) % 4095 : 5000 + i, "Words"));
+        }
+        test(tree.addAll(more) == 2000, "addAll should skip the 2000 spells that are already in the tree");
+        test(tree.addAll(java.util.Arrays.asList(new Spell("Late", "Fire", 4500, "Words"))) == 1, "addAll of a single spell should insert it");
+        test(tree.getSize() == 6096, "The size of the tree should be 6096 got: '" + tree.getSize() + "'");
+        test(tree.search("Late", 4500) != null && tree.search("Spell 3999", 8999) != null, "Spells from both batches should be found");
+        test(tree.getTreeHeight() <= 18, "The merged tree should stay balanced got height: '" + tree.getTreeHeight() + "'");
+
+        // same content as adding the spells one by one
+        HashAVLSpellTable bulk = new HashAVLSpellTable(10);
+        HashAVLSpellTable single = new HashAVLSpellTable(10);
+        java.util.List<Spell> mixed = new java.util.ArrayList<Spell>();
+        for (int i = 0; i < 1000; i++) {
+            mixed.add(new Spell("Spell " + i, "Category " + (i % 7), i % 100, "Words"));
+        }
+        bulk.addAll(mixed);
+        for (Spell spell : mixed) {
+            single.addSpell(spell);
+        }
+        test(bulk.getNumberSpells() == single.getNumberSpells(), "addAll and addSpell should add the same number of spells");
+        test(bulk.getTopK("Category 3", 1000).equals(single.getTopK("Category 3", 1000)), "addAll and addSpell should build the same category order");
+    }
+
+    /**
+     * Checks the persistent mode of the AVLTree class - snapshots keep their version while inserts go on.
+     */
+    private static void testAVLTreePersistent() {
+        AVLTree tree = new AVLTree("Fire", true);
+        java.util.Random random = new java.util.Random(7);
+        AVLTree[] snapshots = new AVLTree[5];
+
+        for (int i = 0; i < 5000; i++) {
+            if (i % 1000 == 0) {
+                snapshots[i / 1000] = tree.snapshot();
+            }
+            tree.insert(new Spell("Spell " + i, "Fire", random.nextInt(100000), "Words"));
+        }
+
+        boolean versionsKept = true;
+        for (int v = 0; v < snapshots.length; v++) {
+            versionsKept = versionsKept && snapshots[v].getSize() == v * 1000
+                    && snapshots[v].getTopK(Integer.MAX_VALUE).size() == v * 1000
+                    && snapshots[v].countInRange(Integer.MIN_VALUE, Integer.MAX_VALUE) == v * 1000;
+        }
+        test(versionsKept, "Every snapshot should keep the spells it was taken with");
+        test(tree.getSize() == 5000, "The persistent tree should hold 5000 spells, got: '" + tree.getSize() + "'");
+        test(tree.getTreeHeight() <= 17, "The persistent tree should stay balanced, height: '" + tree.getTreeHeight() + "'");
+
+        AVLTree last = snapshots[4];
+        Spell late = new Spell("Late", "Fire", 500, "Words");
+        tree.insert(late);
+        test(last.search("Late", 500) == null && tree.search("Late", 500) == late, "A spell inserted after the snapshot should not be found in it");
+        java.util.List<Spell> top = tree.getTopK(5001);
+        boolean sorted = true;
+        for (int i = 1; i < top.size(); i++) {
+            sorted = sorted && AVLTree.compareSpells(top.get(i - 1), top.get(i)) > 0;
+        }
+        test(sorted && top.size() == 5001, "The persistent tree should list its 5001 spells in descending order");
+
+        boolean threw = false;
+        try {
+            last.insert(new Spell("Later", "Fire", 1, "Words"));
+        } catch (UnsupportedOperationException e) {
+            threw = true;
+        }
+        test(threw, "Inserting into a snapshot should throw UnsupportedOperationException");
+
+        threw = false;
+        try {
+            new AVLTree("Ice").snapshot();
+        } catch (IllegalStateException e) {
+            threw = true;
+        }
+        test(threw, "Taking a snapshot of a tree that isn't persistent should throw IllegalStateException");
+    }
+
+    /**
+     * Checks AVLTree.remove against a sorted model - order, sizes, ranks and balance, in both modes.
+     */
+    private static void testAVLTreeRemove() {
+        for (boolean persistent : new boolean[] {false, true}) {
+            AVLTree tree = new AVLTree("Fire", persistent);
+            java.util.TreeSet<Spell> model = new java.util.TreeSet<Spell>(AVLTree::compareSpells);
+            java.util.List<Spell> inserted = new java.util.ArrayList<Spell>();
+            java.util.Random random = new java.util.Random(3);
+
+            for (int i = 0; i < 4000; i++) {
+                Spell spell = new Spell("Spell " + i, "Fire", random.nextInt(500), "Words");
+                tree.insert(spell);
+                model.add(spell);
+                inserted.add(spell);
+            }
+            AVLTree before = persistent ? tree.snapshot() : null;
+
+            java.util.Collections.shuffle(inserted, random);
+            boolean removedAll = true;
+            for (int i = 0; i < 3000; i++) {
+                Spell spell = inserted.get(i);
+                removedAll = removedAll && tree.remove(spell.getName(), spell.getPowerLevel()) == spell;
+                model.remove(spell);
+            }
+            test(removedAll, "Every removed spell should be returned by remove");
+            test(tree.remove("Spell 0", 1000) == null, "Removing a spell that doesn't exist should return null");
+
+            java.util.List<Spell> expected = new java.util.ArrayList<Spell>(model.descendingSet());
+            test(tree.getSize() == 1000 && tree.getTopK(1000).equals(expected), "The tree should hold the 1000 spells left, in order");
+            test(tree.getTreeHeight() <= 14, "The tree should stay balanced after removes, height: '" + tree.getTreeHeight() + "'");
+
+            boolean ranksMatch = true;
+            for (int i = 0; i < 1000; i += 37) {
+                Spell spell = expected.get(999 - i);
+                ranksMatch = ranksMatch && tree.select(i) == spell
+                        && tree.rank(spell.getPowerLevel()) == model.headSet(new Spell("", "Fire", spell.getPowerLevel(), "")).size();
+            }
+            test(ranksMatch, "select and rank should match the model after removes");
+
+            for (int i = 3000; i < 4000; i++) {
+                Spell spell = inserted.get(i);
+                tree.remove(spell.getName(), spell.getPowerLevel());
+            }
+            test(tree.getSize() == 0 && tree.getTopK(1).isEmpty(), "Removing every spell should leave an empty tree");
+            tree.insert(new Spell("Again", "Fire", 1, "Words"));
+            test(tree.getSize() == 1 && tree.search("Again", 1) != null, "An emptied tree should take new spells");
+            if (persistent) {
+                test(before.getSize() == 4000 && before.getTopK(4000).size() == 4000, "A snapshot should keep its spells while they're removed from the tree");
+            }
+        }
+    }
+
+    /**
+     * Checks the PooledAVLTree class against AVLTree over random inserts and removes, and the reuse of freed nodes.
+     */
+    private static void testPooledAVLTree() {
+        PooledAVLTree pooled = new PooledAVLTree("Fire");
+        AVLTree tree = new AVLTree("Fire");
+        java.util.Random random = new java.util.Random(5);
+        boolean agree = true;
+
+        for (int i = 0; i < 20000; i++) {
+            int id = random.nextInt(3000);
+            int power = id % 700;
+            if (random.nextInt(3) == 0) {
+                agree = agree && pooled.remove("Spell " + id, power) == tree.remove("Spell " + id, power);
+            } else {
+                Spell spell = new Spell("Spell " + id, "Fire", power, "Words");
+                agree = agree && pooled.insert(spell) == tree.insert(spell);
+            }
+        }
+        test(agree, "PooledAVLTree insert and remove should return what AVLTree's do");
+        test(pooled.getSize() == tree.getSize() && pooled.getTopK(5000).equals(tree.getTopK(5000)),
+                "PooledAVLTree should hold the same spells as AVLTree, in the same order");
+        test(pooled.getTreeHeight() <= 1.45 * (Math.log(pooled.getSize() + 2) / Math.log(2)), "PooledAVLTree should stay balanced, height: '" + pooled.getTreeHeight() + "'");
+
+        boolean queriesAgree = true;
+        for (int p = -1; p <= 700; p += 7) {
+            queriesAgree = queriesAgree && pooled.rank(p) == tree.rank(p) && pooled.countInRange(p, p + 50) == tree.countInRange(p, p + 50)
+                    && pooled.select(p) == tree.select(p) && pooled.search("Spell " + p, p) == tree.search("Spell " + p, p);
+        }
+        java.util.List<Spell> pooledRange = pooled.rangeQuery(100, 200).collect(java.util.stream.Collectors.toList());
+        java.util.List<Spell> treeRange = tree.rangeQuery(100, 200).collect(java.util.stream.Collectors.toList());
+        test(queriesAgree && pooledRange.equals(treeRange), "rank, select, countInRange, search and rangeQuery should match AVLTree");
+
+        // freed nodes are reused before the arrays grow
+        PooledAVLTree small = new PooledAVLTree("Ice", 8);
+        for (int i = 0; i < 8; i++) {
+            small.insert(new Spell("Spell " + i, "Ice", i, "Words"));
+        }
+        for (int i = 0; i < 4; i++) {
+            small.remove("Spell " + i, i);
+        }
+        for (int i = 8; i < 12; i++) {
+            small.insert(new Spell("Spell " + i, "Ice", i, "Words"));
+        }
+        test(small.getCapacity() == 8 && small.getSize() == 8, "The freed nodes should be reused, capacity: '" + small.getCapacity() + "'");
+        test(small.select(0).getPowerLevel() == 4 && small.getTopK(1).get(0).getPowerLevel() == 11, "The tree should hold power levels 4 to 11");
+
+        java.util.List<Spell> bulk = new java.util.ArrayList<Spell>();
+        for (int i = 0; i < 1000; i++) {
+            bulk.add(new Spell("Bulk " + i, "Ice", i * 3, "Words"));
+        }
+        test(small.addAll(bulk) == 1000 && small.getSize() == 1008, "addAll should insert the 1000 new spells");
+        test(small.getTreeHeight() <= 10 && small.search("Bulk 500", 1500) != null && small.search("Spell 9", 9) != null,
+                "addAll should rebuild a balanced tree with the old and new spells");
+    }
+
+    /**
+     * Checks the BPlusTree class against AVLTree over random inserts and removes, with enough spells for several levels.
+     */
+    private static void testBPlusTree() {
+        BPlusTree bTree = new BPlusTree("Fire");
+        AVLTree tree = new AVLTree("Fire");
+        java.util.Random random = new java.util.Random(9);
+        boolean agree = true;
+
+        for (int i = 0; i < 200000; i++) {
+            int id = random.nextInt(60000);
+            int power = id % 5000;
+            if (random.nextInt(4) == 0) {
+                agree = agree && bTree.remove("Spell " + id, power) == tree.remove("Spell " + id, power);
+            } else {
+                Spell spell = new Spell("Spell " + id, "Fire", power, "Words");
+                agree = agree && bTree.insert(spell) == tree.insert(spell);
+            }
+        }
+        test(agree, "BPlusTree insert and remove should return what AVLTree's do");
+        test(bTree.getSize() == tree.getSize() && bTree.getTopK(100000).equals(tree.getTopK(100000)),
+                "BPlusTree should hold the same spells as AVLTree, in the same order");
+        test(bTree.getTreeHeight() >= 2 && bTree.getTreeHeight() <= 3, "BPlusTree should be 2 to 3 levels above the leaves, got: '" + bTree.getTreeHeight() + "'");
+
+        boolean queriesAgree = true;
+        for (int p = -1; p <= 5001; p += 13) {
+            queriesAgree = queriesAgree && bTree.rank(p) == tree.rank(p) && bTree.countInRange(p, p + 300) == tree.countInRange(p, p + 300)
+                    && bTree.select(p * 7) == tree.select(p * 7) && bTree.search("Spell " + (p + 5000), p) == tree.search("Spell " + (p + 5000), p);
+        }
+        java.util.List<Spell> bRange = bTree.rangeQuery(1000, 1200).collect(java.util.stream.Collectors.toList());
+        java.util.List<Spell> treeRange = tree.rangeQuery(1000, 1200).collect(java.util.stream.Collectors.toList());
+        test(queriesAgree && bRange.equals(treeRange), "rank, select, countInRange, search and rangeQuery should match AVLTree");
+
+        java.util.List<Spell> descending = new java.util.ArrayList<Spell>();
+        bTree.descendingIterator().forEachRemaining(descending::add);
+        test(descending.equals(tree.getTopK(100000)), "The descending iterator should walk the linked leaves in order");
+
+        java.util.List<Spell> all = new java.util.ArrayList<Spell>(descending);
+        for (Spell spell : all) {
+            bTree.remove(spell.getName(), spell.getPowerLevel());
+        }
+        test(bTree.getSize() == 0 && bTree.getTopK(1).isEmpty() && !bTree.descendingIterator().hasNext(), "Removing every spell should leave an empty tree");
+        test(bTree.addAll(all) == all.size() && bTree.getTopK(100000).equals(descending), "addAll should bulk load the spells back");
+    }
+
     /**
      * Checks the HashAVLSpellTable class.
      */
@@ -219,6 +918,21 @@ public class Tester {
         test(table.getTopK("lightning",10).toString().equals("[lightning bolt (lightning) - Power Level: 11, to cast say: go lightning bolt, shockwave II (lightning) - Power Level: 10, to cast say: be useful pikachu., thunderstorm (lightning) - Power Level: 9, to cast say: I`m going to shock you, shockwave (lightning) - Power Level: 8, to cast say: go pikachu!]"),
                            "getTopK of K = 10 on the lightning category has failed.");
 
+        // lazy top spells iterator
+        java.util.Iterator<Spell> top = table.topIterator("fire");
+        test(top.next().getName().equals("flamethrower II") && top.next().getName().equals("fireball II"), "topIterator on the fire category has failed.");
+        test(!table.topIterator("void").hasNext(), "topIterator on a category that doesn't exist should be empty.");
+
+        // power level range
+        test(table.rangeQuery("fire", 7, 12).map(Spell::getName).collect(java.util.stream.Collectors.toList()).toString().equals("[flamethrower, fireball, fireball II]"), "rangeQuery(7, 12) on the fire category has failed.");
+        test(table.rangeQuery("void", 0, 100).count() == 0, "rangeQuery on a category that doesn't exist should be empty.");
+
+        // order statistics
+        test(table.countInRange("fire", 7, 12) == 3, "countInRange(7, 12) on the fire category should be 3 got: '" + table.countInRange("fire", 7, 12) + "'");
+        test(table.rank("fire", 10) == 2, "rank(10) on the fire category should be 2 got: '" + table.rank("fire", 10) + "'");
+        test(table.select("fire", 2).getName().equals("fireball"), "select(2) on the fire category should be fireball got: '" + table.select("fire", 2) + "'");
+        test(table.select("void", 0) == null, "select on a category that doesn't exist should be null.");
+
         // top k on a category that doesn't exist
         test(table.getTopK("void",3) == null, "getTopK of K = 3 on the fire category has failed.");
 
@@ -231,4 +945,577 @@ public class Tester {
         // search for a category that doesn't exists
         test(table.searchSpell("void","fireball",  10) == null, "The spell should've been, instead got: '" + table.searchSpell("void","fireball",  10) + "'");
     }
+
+    /**
+     * Checks the HashAVLSpellTable class with many more categories than its initial size.
+     */
+    private static void testHashAVLSpellTableManyCategories() {
+        HashAVLSpellTable table = new HashAVLSpellTable(2);
+
+        for (int i = 0; i < 5000; i++) {
+            table.addSpell(new Spell("Spell " + i, "Category " + (i % 500), i, "Words"));
+        }
+
+        test(table.getNumberSpells() == 5000, "The current number of spells overall should be 5000 got: '" + table.getNumberSpells() + "'");
+
+        boolean allSized = true;
+        for (int c = 0; c < 500; c++) {
+            allSized = allSized && table.getNumberSpells("Category " + c) == 10;
+        }
+        test(allSized, "Each of the 500 categories should hold 10 spells");
+        test(table.getTopK("Category 499", 1).get(0).getPowerLevel() == 4999, "The top spell of Category 499 should have power level 4999");
+        test(table.getNumberSpells("Category 500") == 0, "The number of spells of a category that doesn't exist should be 0");
+    }
+
+    /**
+     * Checks the ConcurrentHashAVLSpellTable class with writers and optimistic readers running at the same time.
+     */
+    private static void testConcurrentHashAVLSpellTable() {
+        ConcurrentHashAVLSpellTable table = new ConcurrentHashAVLSpellTable(2);
+        Thread[] threads = new Thread[8];
+        boolean[] consistent = new boolean[threads.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            if (t < 4) { // writers, each spread over all the categories
+                threads[t] = new Thread(() -> {
+                    for (int i = id; i < 8000; i += 4) {
+                        table.addSpell(new Spell("Spell " + i, "Category " + (i % 8), i, "Words " + i));
+                    }
+                    consistent[id] = true;
+                });
+            } else { // readers, every result they see must be a valid one
+                threads[t] = new Thread(() -> {
+                    boolean ok = true;
+                    for (int round = 0; round < 2000; round++) {
+                        int i = (round * 7 + id) % 8000;
+                        Spell found = table.searchSpell("Category " + (i % 8), "Spell " + i, i);
+                        ok = ok && (found == null || found.getPowerLevel() == i);
+                        java.util.List<Spell> top = table.getTopK("Category " + (i % 8), 5);
+                        for (int j = 1; (top != null) && (j < top.size()); j++) {
+                            ok = ok && top.get(j - 1).getPowerLevel() > top.get(j).getPowerLevel();
+                        }
+                    }
+                    consistent[id] = ok;
+                });
+            }
+            threads[t].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        boolean allConsistent = true;
+        for (boolean ok : consistent) {
+            allConsistent = allConsistent && ok;
+        }
+        test(allConsistent, "The readers should only see valid results while the writers insert");
+        test(table.getNumberSpells() == 8000, "The number of spells overall should be 8000, got: '" + table.getNumberSpells() + "'");
+        test(table.getNumberSpells("Category 3") == 1000, "Category 3 should hold 1000 spells, got: '" + table.getNumberSpells("Category 3") + "'");
+        test(table.searchSpell("Category 5", "Spell 7005", 7005) != null, "Spell 7005 should be found in Category 5");
+        test(table.getTopK("Category 7", 2).get(0).getPowerLevel() == 7999, "The top spell of Category 7 should have power level 7999");
+        test(table.getTopK("Category 8", 2) == null, "The top-k of a category that doesn't exist should be null");
+    }
+
+    /**
+     * Checks HashAVLSpellTable snapshots - a reader queries snapshots without locks while the owner adds spells.
+     */
+    private static void testHashAVLSpellTableSnapshot() {
+        HashAVLSpellTable table = new HashAVLSpellTable(4, true);
+        java.util.concurrent.atomic.AtomicReference<HashAVLSpellTable> latest =
+                new java.util.concurrent.atomic.AtomicReference<HashAVLSpellTable>(table.snapshot());
+        boolean[] consistent = {true};
+
+        Thread reader = new Thread(() -> {
+            for (int round = 0; round < 2000; round++) {
+                HashAVLSpellTable view = latest.get();
+                int count = view.getNumberSpells("Category 1");
+                java.util.List<Spell> top = view.getTopK("Category 1", Integer.MAX_VALUE);
+                int total = 0;
+                for (int c = 0; c < 8; c++) {
+                    total += view.getNumberSpells("Category " + c);
+                }
+                consistent[0] = consistent[0] && (top == null ? count == 0 : top.size() == count)
+                        && view.countInRange("Category 1", Integer.MIN_VALUE, Integer.MAX_VALUE) == count
+                        && total == view.getNumberSpells();
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 4000; i++) {
+            table.addSpell(new Spell("Spell " + i, "Category " + (i % 8), i, "Words"));
+            if (i % 100 == 0) {
+                latest.set(table.snapshot());
+            }
+        }
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        test(consistent[0], "Every snapshot should answer its queries consistently");
+
+        HashAVLSpellTable view = table.snapshot();
+        table.addSpell(new Spell("Late", "Category 1", 9000, "Words"));
+        table.addSpell(new Spell("Later", "Category 9", 9001, "Words"));
+        test(view.getNumberSpells() == 4000 && table.getNumberSpells() == 4002, "The snapshot should keep 4000 spells while the table moves on");
+        test(view.getTopK("Category 1", 1).get(0).getPowerLevel() == 3993, "The top spell of the snapshot should be from before the snapshot");
+        test(view.searchSpell("Category 9", "Later", 9001) == null, "A category added after the snapshot should not be in it");
+        test(table.getTopK("Category 1", 1).get(0).getPowerLevel() == 9000, "The table should see its newest spell");
+
+        boolean threw = false;
+        try {
+            view.addSpell(new Spell("Nope", "Category 1", 1, "Words"));
+        } catch (UnsupportedOperationException e) {
+            threw = true;
+        }
+        test(threw, "Adding a spell to a snapshot should throw UnsupportedOperationException");
+    }
+
+    /**
+     * Checks the top-k cache of HashAVLSpellTable - hits, incremental updates, immutable views and eviction.
+     */
+    private static void testHashAVLSpellTableTopKCache() {
+        HashAVLSpellTable table = new HashAVLSpellTable(4);
+        table.enableTopKCache(5, 10); // room for two categories
+
+        for (int i = 0; i < 300; i++) {
+            table.addSpell(new Spell("Spell " + i, "Category " + (i % 3), i, "Words"));
+        }
+
+        java.util.List<Spell> first = table.getTopK("Category 0", 5);
+        java.util.List<Spell> second = table.getTopK("Category 0", 5);
+        TopKCache cache = table.getTopKCache();
+        test(first == second, "A cache hit with k = N should return the same shared list");
+        test(cache.getHits() == 1 && cache.getMisses() == 1, "Expected 1 hit and 1 miss, got: " + cache);
+        test(first.get(0).getPowerLevel() == 297 && first.size() == 5, "The top spell of Category 0 should be 297");
+        test(table.getTopK("Category 0", 2).size() == 2, "A smaller k should return a prefix of the cached list");
+
+        boolean threw = false;
+        try {
+            first.add(new Spell("Nope", "Category 0", 1, "Words"));
+        } catch (UnsupportedOperationException e) {
+            threw = true;
+        }
+        test(threw, "The cached list should be immutable");
+
+        table.addSpell(new Spell("Low", "Category 0", -1, "Words")); // doesn't beat the 5th spell
+        test(table.getTopK("Category 0", 5) == first, "An insert below the N-th spell should leave the cached list alone");
+        table.addSpell(new Spell("High", "Category 0", 1000, "Words"));
+        java.util.List<Spell> updated = table.getTopK("Category 0", 5);
+        test(updated.get(0).getName().equals("High") && updated.get(4).getPowerLevel() == 288,
+                "An insert into the top-N should update the cached list, got: " + updated);
+        test(first.get(0).getPowerLevel() == 297, "A list handed out before the insert should not change");
+        test(table.getTopK("Category 0", 10).size() == 10, "A k above N should be served from the tree");
+
+        table.getTopK("Category 1", 5);
+        table.getTopK("Category 2", 5); // over budget - Category 0 is the least recently used
+        test(cache.getCategories() == 2 && cache.getEntries() <= 10, "The cache should stay within its budget, got: " + cache);
+        long misses = cache.getMisses();
+        table.getTopK("Category 0", 5);
+        test(cache.getMisses() == misses + 1, "The evicted category should miss");
+
+        table.addAll(java.util.Arrays.asList(new Spell("Bulk", "Category 0", 5000, "Words")));
+        test(table.getTopK("Category 0", 1).get(0).getName().equals("Bulk"), "addAll should invalidate the cached list");
+
+        table.getTopK("Category 1", 5); // Category 1 was read before Category 0
+        table.getTopK("Category 0", 5);
+        table.addSpell(new Spell("Higher", "Category 1", 2000, "Words")); // an update isn't a read
+        table.getTopK("Category 2", 5); // over budget - Category 1 is the least recently read
+        misses = cache.getMisses();
+        table.getTopK("Category 0", 5);
+        test(cache.getMisses() == misses, "An update should not make its category recently used");
+    }
+
+    /**
+     * Checks the cross-category top-k of HashAVLSpellTable against a sort of all the spells, with few categories
+     * (a single heap merge) and with many (the fork-join merge).
+     */
+    private static void testHashAVLSpellTableGlobalTopK() {
+        for (int categoryCount : new int[] {5, 500}) {
+            HashAVLSpellTable table = new HashAVLSpellTable(categoryCount);
+            java.util.List<Spell> all = new java.util.ArrayList<Spell>();
+            java.util.Random random = new java.util.Random(categoryCount);
+
+            for (int i = 0; i < 20000; i++) {
+                Spell spell = new Spell("Spell " + i, "Category " + random.nextInt(categoryCount), random.nextInt(1000000), "Words");
+                table.addSpell(spell);
+                all.add(spell);
+            }
+            all.sort((a, b) -> AVLTree.compareSpells(b, a));
+
+            java.util.List<Spell> global = table.getGlobalTopK(300);
+            test(global.equals(all.subList(0, 300)), "The global top-300 over " + categoryCount + " categories should match a full sort");
+            test(table.getGlobalTopK(30000).size() == 20000, "A global top-k above the number of spells should return them all");
+            test(table.getCategories().size() == categoryCount, "The table should list its " + categoryCount + " categories");
+
+            java.util.Set<String> some = new java.util.HashSet<String>(java.util.Arrays.asList("Category 1", "Category 3", "Missing"));
+            java.util.List<Spell> expected = new java.util.ArrayList<Spell>();
+            for (Spell spell : all) {
+                if (some.contains(spell.getCategory()) && expected.size() < 50) {
+                    expected.add(spell);
+                }
+            }
+            test(table.getTopK(some, 50).equals(expected), "The top-50 of a set of categories should match a full sort");
+            test(table.getTopK(new java.util.HashSet<String>(table.getCategories()), 100).equals(all.subList(0, 100)),
+                    "The top-k of all the categories should be the global top-k");
+        }
+        test(new HashAVLSpellTable(4).getGlobalTopK(10).isEmpty(), "The global top-k of an empty table should be empty");
+    }
+
+    /**
+     * Checks removeSpell and updatePowerLevel of HashAVLSpellTable - bookkeeping, empty categories and the cache.
+     */
+    private static void testHashAVLSpellTableRemove() {
+        HashAVLSpellTable table = new HashAVLSpellTable(2);
+        table.enableTopKCache(3, 100);
+
+        for (int i = 0; i < 1000; i++) { // one spell per category for most, so many trees get emptied
+            table.addSpell(new Spell("Spell " + i, "Category " + (i % 600), i, "Words " + i));
+        }
+        table.getTopK("Category 5", 3);
+
+        Spell removed = table.removeSpell("Category 5", "Spell 605", 605);
+        test(removed != null && removed.getWords().equals("Words 605"), "removeSpell should return the removed spell");
+        test(table.getNumberSpells() == 999 && table.getNumberSpells("Category 5") == 1, "The counts should drop after a remove");
+        test(table.getTopK("Category 5", 3).size() == 1, "The cached top-k should drop the removed spell");
+        test(table.removeSpell("Category 5", "Spell 605", 605) == null, "Removing a spell twice should return null");
+        test(table.removeSpell("Nowhere", "Spell 605", 605) == null, "Removing from a missing category should return null");
+
+        for (int i = 0; i < 600; i += 2) {
+            table.removeSpell("Category " + i, "Spell " + i, i);
+        }
+        boolean allFound = true;
+        for (int c = 1; c < 600; c += 2) {
+            allFound = allFound && table.getNumberSpells("Category " + c) >= 1;
+        }
+        test(allFound, "The categories left should all be found after the emptied ones were removed from the index");
+        test(table.getCategories().size() == 500, "The emptied categories should be removed, got: '" + table.getCategories().size() + "'");
+        test(table.getNumberSpells() == 699, "The number of spells should be 699, got: '" + table.getNumberSpells() + "'");
+
+        Spell updated = table.updatePowerLevel("Category 7", "Spell 7", 7, 5000);
+        test(updated != null && updated.getPowerLevel() == 5000 && updated.getWords().equals("Words 7"), "updatePowerLevel should return the moved spell");
+        test(table.searchSpell("Category 7", "Spell 7", 7) == null && table.searchSpell("Category 7", "Spell 7", 5000) == updated,
+                "The spell should only be found at its new power level");
+        test(table.getTopK("Category 7", 1).get(0) == updated && table.getNumberSpells() == 699, "The update should move the spell to the top, keeping the counts");
+        test(table.getGlobalTopK(1).get(0) == updated, "The updated spell should be the strongest of the table");
+        table.addSpell(new Spell("Spell 7", "Category 7", 6000, "Other words"));
+        test(table.updatePowerLevel("Category 7", "Spell 7", 5000, 6000) == null, "An update onto a taken power level should be refused");
+        test(table.updatePowerLevel("Category 7", "Spell 8", 8, 9) == null, "Updating a spell that doesn't exist should return null");
+    }
+
+    /**
+     * Checks that HashAVLSpellTable answers the same with every index engine, and that AUTO moves a large category
+     * into a B+ tree.
+     */
+    private static void testHashAVLSpellTableEngines() {
+        java.util.List<Spell> spells = new java.util.ArrayList<Spell>();
+        java.util.Random random = new java.util.Random(13);
+        for (int i = 0; i < 12000; i++) { // Category 0 gets half of the spells, past the AUTO threshold
+            spells.add(new Spell("Spell " + i, "Category " + (i % 2 == 0 ? 0 : 1 + random.nextInt(20)), random.nextInt(3000), "Words"));
+        }
+
+        HashAVLSpellTable reference = new HashAVLSpellTable(8, SpellIndex.Engine.AVL);
+        for (Spell spell : spells) {
+            reference.addSpell(spell);
+        }
+
+        for (SpellIndex.Engine engine : SpellIndex.Engine.values()) {
+            HashAVLSpellTable table = new HashAVLSpellTable(8, engine);
+            for (Spell spell : spells) {
+                table.addSpell(spell);
+            }
+            for (int i = 0; i < 2000; i++) {
+                Spell spell = spells.get(i);
+                table.removeSpell(spell.getCategory(), spell.getName(), spell.getPowerLevel());
+                reference.removeSpell(spell.getCategory(), spell.getName(), spell.getPowerLevel());
+                reference.addSpell(spell);
+            }
+            for (int i = 0; i < 2000; i++) {
+                table.addSpell(spells.get(i));
+            }
+
+            boolean same = table.getNumberSpells() == reference.getNumberSpells()
+                    && table.getGlobalTopK(500).equals(reference.getGlobalTopK(500));
+            for (int c = 0; c <= 20; c++) {
+                String category = "Category " + c;
+                same = same && table.getTopK(category, 50).equals(reference.getTopK(category, 50))
+                        && table.countInRange(category, 1000, 2000) == reference.countInRange(category, 1000, 2000)
+                        && table.rank(category, 1500) == reference.rank(category, 1500)
+                        && table.select(category, 100) == reference.select(category, 100);
+            }
+            Spell probe = spells.get(5000);
+            same = same && table.searchSpell(probe.getCategory(), probe.getName(), probe.getPowerLevel()) == probe;
+            test(same, "The " + engine + " engine should answer like the AVL one");
+        }
+
+        HashAVLSpellTable auto = new HashAVLSpellTable(8, SpellIndex.Engine.AUTO);
+        auto.addAll(spells);
+        test(auto.getNumberSpells("Category 0") == reference.getNumberSpells("Category 0")
+                && auto.getTopK("Category 0", 10).equals(reference.getTopK("Category 0", 10)), "AUTO should keep a large category's spells when moving it");
+
+        boolean threw = false;
+        try {
+            new HashAVLSpellTable(8, SpellHasher.MIX, true, SpellIndex.Engine.B_PLUS_TREE);
+        } catch (IllegalArgumentException e) {
+            threw = true;
+        }
+        test(threw, "A persistent table with a non AVL engine should be refused");
+    }
+
+    /**
+     * Checks HashAVLSpellTable.save and load - a round trip with every engine, and refusing broken files.
+     */
+    private static void testHashAVLSpellTableSaveLoad() {
+        HashAVLSpellTable table = new HashAVLSpellTable(8);
+        java.util.Random random = new java.util.Random(17);
+        for (int i = 0; i < 10000; i++) { // Category 0 gets half of the spells, past the AUTO threshold
+            table.addSpell(new Spell("Spell " + (i % 3000), "Category " + (i % 2 == 0 ? 0 : 1 + random.nextInt(30)), random.nextInt(5000), "Words " + (i % 7)));
+        }
+        StringBuilder longWords = new StringBuilder();
+        while (longWords.length() < 100000) { // longer than the load buffer
+            longWords.append("Expecto Patronum ");
+        }
+        table.addSpell(new Spell("Expecto Patronum", "Charm", 9000, longWords.toString()));
+        table.addSpell(new Spell("Lumos", "Charm", 10, "I’m gonna stand here like a unicorn"));
+
+        try {
+            java.nio.file.Path path = java.nio.file.Files.createTempFile("spells", ".spat");
+            try {
+                table.save(path);
+                for (SpellIndex.Engine engine : SpellIndex.Engine.values()) {
+                    HashAVLSpellTable loaded = HashAVLSpellTable.load(path, engine);
+                    boolean same = loaded.getEngine() == engine && loaded.getNumberSpells() == table.getNumberSpells()
+                            && new java.util.HashSet<String>(loaded.getCategories()).equals(new java.util.HashSet<String>(table.getCategories()));
+                    for (String category : table.getCategories()) {
+                        same = same && loaded.getNumberSpells(category) == table.getNumberSpells(category)
+                                && loaded.rangeQuery(category, Integer.MIN_VALUE, Integer.MAX_VALUE).map(Spell::toString).collect(java.util.stream.Collectors.toList())
+                                        .equals(table.rangeQuery(category, Integer.MIN_VALUE, Integer.MAX_VALUE).map(Spell::toString).collect(java.util.stream.Collectors.toList()));
+                    }
+                    test(same, "The table loaded with the " + engine + " engine should have the saved spells");
+                    Spell lumos = loaded.searchSpell("Charm", "Lumos", 10);
+                    test(lumos != null && lumos.getWords().equals("I’m gonna stand here like a unicorn"), "Loading should keep non ASCII words, got: '" + lumos + "'");
+                    Spell patronum = loaded.searchSpell("Charm", "Expecto Patronum", 9000);
+                    test(patronum != null && patronum.getWords().equals(longWords.toString()), "Loading should keep words longer than the buffer");
+                }
+
+                byte[] bytes = java.nio.file.Files.readAllBytes(path);
+                test(bytes.length < 300000, "Repeated strings should be stored once, the file has " + bytes.length + " bytes");
+
+                // a version 1 file is the same without the log generation
+                byte[] version1 = new byte[bytes.length - 8];
+                System.arraycopy(bytes, 0, version1, 0, 16);
+                System.arraycopy(bytes, 24, version1, 16, bytes.length - 24);
+                version1[7] = 1;
+                java.nio.file.Files.write(path, version1);
+                test(HashAVLSpellTable.load(path).getNumberSpells() == table.getNumberSpells() && SpellTableFile.readLogGeneration(path) == 0,
+                        "A version 1 file should load, with log generation 0");
+
+                java.nio.file.Files.write(path, java.util.Arrays.copyOf(bytes, bytes.length / 2));
+                boolean threw = false;
+                try {
+                    HashAVLSpellTable.load(path);
+                } catch (java.io.IOException e) {
+                    threw = true;
+                }
+                test(threw, "Loading a truncated file should throw an IOException");
+
+                java.nio.file.Files.write(path, "Not a spell table".getBytes());
+                threw = false;
+                try {
+                    HashAVLSpellTable.load(path);
+                } catch (java.io.IOException e) {
+                    threw = true;
+                }
+                test(threw, "Loading a file that isn't a saved table should throw an IOException");
+            } finally {
+                java.nio.file.Files.delete(path);
+            }
+        } catch (java.io.IOException e) {
+            test(false, "Saving or loading the table failed: " + e);
+        }
+    }
+
+    /**
+     * Checks DurableSpellTable and SpellLog - group commit of concurrent writers, recovery of a table that wasn't
+     * closed, checkpoints, a crash in the middle of a checkpoint and a torn log tail.
+     */
+    private static void testDurableSpellTable() {
+        try {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("durable");
+            java.nio.file.Path snapshot = directory.resolve("spells.spat");
+            java.nio.file.Path log = directory.resolve("spells.log");
+            java.nio.file.Path crashSnapshot = directory.resolve("crash.spat");
+            java.nio.file.Path crashLog = directory.resolve("crash.log");
+            java.nio.file.Path midSnapshot = directory.resolve("mid.spat");
+            java.nio.file.Path midLog = directory.resolve("mid.log");
+            try {
+                DurableSpellTable table = DurableSpellTable.open(snapshot, log, 2, 1 << 16, true);
+                Thread[] writers = new Thread[4];
+                java.util.concurrent.atomic.AtomicBoolean failed = new java.util.concurrent.atomic.AtomicBoolean();
+                for (int t = 0; t < writers.length; t++) {
+                    int writer = t;
+                    writers[t] = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < 250; i++) {
+                                table.addSpell(new Spell("Spell " + writer + "-" + i, "Category " + (i % 5), i, "Words " + i));
+                            }
+                        } catch (java.io.IOException e) {
+                            failed.set(true);
+                        }
+                    });
+                    writers[t].start();
+                }
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+                test(!failed.get() && table.getNumberSpells() == 1000, "The concurrent writers should add 1000 spells, got: '" + table.getNumberSpells() + "'");
+                test(table.getLog().getAppended() == 1000, "The log should have 1000 records, got: '" + table.getLog().getAppended() + "'");
+                test(table.getLog().getCommits() < 1000, "Concurrent writers should share commits, got " + table.getLog().getCommits() + " commits for 1000 records");
+
+                test(table.removeSpell("Category 0", "Spell 0-0", 0) != null, "Removing Spell 0-0 should succeed");
+                test(table.removeSpell("Category 0", "Spell 0-0", 0) == null, "Removing Spell 0-0 twice should return null");
+                test(table.updatePowerLevel("Category 1", "Spell 1-1", 1, 5000) != null, "Updating Spell 1-1 should succeed");
+
+                // a crash: the files as they are while the table is still open
+                java.nio.file.Files.copy(log, crashLog);
+                DurableSpellTable recovered = DurableSpellTable.open(crashSnapshot, crashLog);
+                test(recovered.getNumberSpells() == 999 && recovered.getLog().getReplayed() == 1002, "The recovered table should have 999 spells from 1002 records, got: '"
+                        + recovered.getNumberSpells() + "' from '" + recovered.getLog().getReplayed() + "'");
+                test(recovered.searchSpell("Category 0", "Spell 0-0", 0) == null && recovered.searchSpell("Category 1", "Spell 1-1", 5000) != null
+                        && recovered.searchSpell("Category 3", "Spell 2-3", 3).getWords().equals("Words 3"), "The recovered table should have the logged mutations");
+                recovered.close();
+
+                table.checkpoint();
+                test(java.nio.file.Files.size(log) == SpellLog.HEADER_SIZE && table.getLog().getGeneration() == 2,
+                        "A checkpoint should empty the log and start generation 2, it has " + java.nio.file.Files.size(log) + " bytes, generation " + table.getLog().getGeneration());
+                table.addSpell(new Spell("Lumos", "Charm", 10, "I’m gonna stand here like a unicorn"));
+                table.close();
+
+                java.nio.file.Files.write(log, new byte[] {0, 0, 0, 40, 1, 2, 3}, java.nio.file.StandardOpenOption.APPEND); // a torn record
+                DurableSpellTable reopened = DurableSpellTable.open(snapshot, log);
+                test(reopened.getNumberSpells() == 1000 && reopened.getLog().getReplayed() == 1, "The reopened table should have 1000 spells and replay 1 record, got: '"
+                        + reopened.getNumberSpells() + "' and '" + reopened.getLog().getReplayed() + "'");
+                test(reopened.getTopK("Category 1", 1).get(0).getName().equals("Spell 1-1"), "The reopened table should have the updated power level");
+                reopened.addSpell(new Spell("Nox", "Charm", 11, "Nox"));
+                reopened.close();
+                DurableSpellTable again = DurableSpellTable.open(snapshot, log);
+                test(again.getNumberSpells("Charm") == 2, "A record appended after a torn tail should be replayed, got: '" + again.getNumberSpells("Charm") + "' charms");
+                again.close();
+
+                boolean threw = false;
+                try {
+                    again.addSpell(new Spell("Aloha", "Charm", 12, "Aloha"));
+                } catch (java.io.IOException e) {
+                    threw = true;
+                }
+                test(threw, "Adding to a closed table should throw an IOException");
+
+                // a mutation the log rejects must not reach the table
+                threw = false;
+                try {
+                    again.removeSpell("Charm", "Lumos", 10);
+                } catch (java.io.IOException e) {
+                    threw = true;
+                }
+                test(threw && again.searchSpell("Charm", "Lumos", 10) != null, "Removing from a closed table should throw and keep the spell");
+                threw = false;
+                try {
+                    again.updatePowerLevel("Charm", "Nox", 11, 12);
+                } catch (java.io.IOException e) {
+                    threw = true;
+                }
+                test(threw && again.searchSpell("Charm", "Nox", 11) != null && again.searchSpell("Charm", "Nox", 12) == null,
+                        "Updating a spell of a closed table should throw and keep its power level");
+
+                // a crash after the checkpoint moved its snapshot in place, before it emptied the log
+                DurableSpellTable mid = DurableSpellTable.open(midSnapshot, midLog);
+                mid.addSpell(new Spell("Y", "Charm", 5, "Y"));
+                mid.updatePowerLevel("Charm", "Y", 5, 6);
+                java.nio.file.Files.copy(midLog, crashLog, java.nio.file.StandardCopyOption.REPLACE_EXISTING); // the log the crash leaves
+                mid.checkpoint();
+                mid.close();
+                java.nio.file.Files.copy(crashLog, midLog, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                DurableSpellTable restarted = DurableSpellTable.open(midSnapshot, midLog);
+                test(restarted.getNumberSpells() == 1 && restarted.searchSpell("Charm", "Y", 6) != null && restarted.getLog().getReplayed() == 0,
+                        "A log the snapshot already holds shouldn't be replayed, got: '" + restarted.getNumberSpells() + "' spells from '"
+                        + restarted.getLog().getReplayed() + "' records");
+                restarted.addSpell(new Spell("Z", "Charm", 7, "Z"));
+                restarted.close();
+                DurableSpellTable later = DurableSpellTable.open(midSnapshot, midLog);
+                test(later.getNumberSpells() == 2 && later.getLog().getReplayed() == 1 && later.getLog().getGeneration() == 2,
+                        "A record appended after the skipped log should be replayed, got: '" + later.getNumberSpells() + "' spells");
+                later.close();
+            } finally {
+                for (java.nio.file.Path path : new java.nio.file.Path[] {snapshot, log, crashSnapshot, crashLog, midSnapshot, midLog}) {
+                    java.nio.file.Files.deleteIfExists(path);
+                }
+                java.nio.file.Files.delete(directory);
+            }
+        } catch (java.io.IOException | InterruptedException e) {
+            test(false, "The durable table failed: " + e);
+        }
+    }
+
+    /**
+     * Checks SpellIngest - CSV and NDJSON catalogs loaded in parallel should give the same table as addSpell, with tiny
+     * chunks so lines span chunks.
+     */
+    private static void testSpellIngest() {
+        java.util.List<Spell> spells = new java.util.ArrayList<Spell>();
+        java.util.Random random = new java.util.Random(23);
+        for (int i = 0; i < 5000; i++) {
+            spells.add(new Spell("Spell " + i, "Category " + random.nextInt(40), random.nextInt(2000), "Words " + i));
+        }
+        spells.add(new Spell("Expecto, \"Patronum\"", "Charm", 9000, "I’m gonna stand here like a unicorn"));
+
+        StringBuilder csv = new StringBuilder("name,category,power level,words\r\n");
+        StringBuilder ndjson = new StringBuilder();
+        for (Spell spell : spells) {
+            String name = spell.getName().contains(",") ? "\"" + spell.getName().replace("\"", "\"\"") + "\"" : spell.getName();
+            csv.append(name).append(',').append(spell.getCategory()).append(',').append(spell.getPowerLevel()).append(',').append(spell.getWords()).append("\r\n");
+            ndjson.append("{\"name\": \"").append(spell.getName().replace("\"", "\\\"")).append("\", \"category\": \"").append(spell.getCategory())
+                    .append("\", \"powerLevel\": ").append(spell.getPowerLevel()).append(", \"rare\": true, \"words\": \"").append(spell.getWords()).append("\"}\n");
+        }
+        csv.append("Broken,Charm,not a number,Words\n\nLumos,Charm,10,Lumos"); // a malformed line, an empty line, no final line break
+        ndjson.append("{\"name\": \"Broken\"}\n{\"name\": \"Lumos\", \"category\": \"Char\\u006d\", \"powerLevel\": 10, \"words\": \"Lumos\"}");
+        spells.add(new Spell("Lumos", "Charm", 10, "Lumos"));
+
+        HashAVLSpellTable reference = new HashAVLSpellTable(64);
+        for (Spell spell : spells) {
+            reference.addSpell(spell);
+        }
+
+        try {
+            java.nio.file.Path path = java.nio.file.Files.createTempFile("spells", ".catalog");
+            try {
+                for (SpellIngest.Format format : SpellIngest.Format.values()) {
+                    java.nio.file.Files.write(path, (format == SpellIngest.Format.CSV ? csv : ndjson).toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                    HashAVLSpellTable table = new HashAVLSpellTable(4);
+                    table.addSpell(new Spell("Nox", "Charm", 11, "Nox")); // a category the table already has
+                    java.util.List<SpellIngest.Progress> reports = new java.util.concurrent.CopyOnWriteArrayList<SpellIngest.Progress>();
+                    SpellIngest.Progress progress = new SpellIngest(3, 2, 64).ingest(path, format, table, reports::add, 1);
+
+                    test(progress.getSpells() == spells.size() && progress.getMalformed() == 1, "The " + format + " ingest should parse "
+                            + spells.size() + " spells and 1 malformed line, got: '" + progress + "'");
+                    test(progress.getBytes() == java.nio.file.Files.size(path) && !reports.isEmpty(), "The " + format + " ingest should read the whole file and report its progress");
+                    boolean same = table.getNumberSpells() == reference.getNumberSpells() + 1 && table.searchSpell("Charm", "Nox", 11) != null
+                            && table.getNumberSpells("Charm") == reference.getNumberSpells("Charm") + 1;
+                    for (String category : reference.getCategories()) {
+                        same = same && (category.equals("Charm") || table.getTopK(category, 10).toString().equals(reference.getTopK(category, 10).toString())
+                                && table.getNumberSpells(category) == reference.getNumberSpells(category));
+                    }
+                    Spell patronum = table.searchSpell("Charm", "Expecto, \"Patronum\"", 9000);
+                    test(same && patronum != null && patronum.getWords().equals("I’m gonna stand here like a unicorn"), "The " + format + " ingest should load the same spells as addSpell");
+                }
+            } finally {
+                java.nio.file.Files.delete(path);
+            }
+        } catch (java.io.IOException e) {
+            test(false, "The ingest failed: " + e);
+        }
+    }
 }
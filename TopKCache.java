@@ -0,0 +1,211 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of the top-N spells of the hot categories of a HashAVLSpellTable, so a getTopK with k up to N doesn't walk
+ * the tree and copy the result every time. The cached lists are immutable and shared by every caller.
+ * Kept up to date incrementally: an insert only touches a category's entry if the new spell beats its N-th spell
+ * (a new list is made then, the lists handed out before never change).
+ * The total number of cached spells is bounded by a budget; the least recently read categories are evicted first -
+ * only getTopK counts as a use, so the updates of a write-heavy category don't keep it cached.
+ */
+public class TopKCache {
+    private int n;
+    private int maxEntries;
+    private int entries; // number of spells cached over all the categories
+    private LinkedHashMap<String, List<Spell>> tops; // in insertion order, getTopK moves a hit to the end - the least recently read category first
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor, starts empty.
+     *
+     * @param n the number of top spells kept per category, the largest k the cache serves
+     * @param maxEntries the budget - the most spells the cache holds over all the categories, at least n
+     */
+    public TopKCache(int n, int maxEntries) {
+        if (n < 1 || maxEntries < n) {
+            throw new IllegalArgumentException("n must be positive and maxEntries at least n, got n = " + n + ", maxEntries = " + maxEntries);
+        }
+        this.n = n;
+        this.maxEntries = maxEntries;
+        this.entries = 0;
+        this.tops = new LinkedHashMap<String, List<Spell>>();
+    }
+
+    /**
+     * Getter, returns the number of top spells kept per category.
+     *
+     * @return Returns N, the largest k the cache serves.
+     */
+    public int getN() {
+        return this.n;
+    }
+
+    /**
+     * Returns the top-k spells of a category, from the cache if the category is cached, else from its tree (and the
+     * category's top-N is cached). Costs O(1) on a hit.
+     *
+     * @param tree the index of the category
+     * @param k the number of top spells to return, at most N
+     *
+     * @return Returns an immutable list of the top-k spells of the category, in descending power level order.
+     */
+    List<Spell> getTopK(SpellIndex tree, int k) {
+        List<Spell> top = this.tops.get(tree.getCategory());
+
+        if (top != null) {
+            this.hits++;
+            this.tops.remove(tree.getCategory()); // now the most recently read
+            this.tops.put(tree.getCategory(), top);
+        } else {
+            this.misses++;
+            top = immutable(tree.getTopK(this.n).toArray(new Spell[0]));
+            this.tops.put(tree.getCategory(), top);
+            this.entries += top.size();
+            evict();
+        }
+        if (k >= top.size()) {
+            return top; // the shared list itself
+        }
+        return top.subList(0, Math.max(k, 0));
+    }
+
+    /**
+     * Updates the cache after a spell was inserted into its category's tree. Only touches the category's entry if the
+     * spell made it to the top-N.
+     *
+     * @param spell the spell that was inserted
+     */
+    void onInsert(Spell spell) {
+        List<Spell> top = this.tops.get(spell.getCategory());
+
+        if (top == null) {
+            return;
+        }
+        if ((top.size() == this.n) && (AVLTree.compareSpells(spell, top.get(this.n - 1)) < 0)) { // doesn't beat the N-th spell
+            return;
+        }
+
+        int position = 0;
+        while ((position < top.size()) && (AVLTree.compareSpells(top.get(position), spell) > 0)) {
+            position++;
+        }
+        Spell[] updated = new Spell[Math.min(top.size() + 1, this.n)]; // a new array, the lists handed out stay as they were
+        for (int i = 0; i < updated.length; i++) {
+            updated[i] = i < position ? top.get(i) : (i == position ? spell : top.get(i - 1));
+        }
+        this.tops.put(spell.getCategory(), immutable(updated));
+        this.entries += updated.length - top.size();
+        evict();
+    }
+
+    /**
+     * Updates the cache after a spell was removed from its category's tree. Only drops the category's entry if the
+     * spell was in its top-N.
+     *
+     * @param spell the spell that was removed
+     */
+    void onRemove(Spell spell) {
+        List<Spell> top = this.tops.get(spell.getCategory());
+
+        if ((top != null) && !top.isEmpty() && (AVLTree.compareSpells(spell, top.get(top.size() - 1)) >= 0)) {
+            invalidate(spell.getCategory());
+        }
+    }
+
+    /**
+     * Drops the entry of a category - it's loaded again from the tree on its next getTopK.
+     *
+     * @param category the category whose spells changed
+     */
+    void invalidate(String category) {
+        List<Spell> top = this.tops.remove(category);
+
+        if (top != null) {
+            this.entries -= top.size();
+        }
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public void clear() {
+        this.tops.clear();
+        this.entries = 0;
+    }
+
+    /**
+     * Getter, returns the number of getTopK calls served from the cache.
+     *
+     * @return Returns the number of hits.
+     */
+    public long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Getter, returns the number of getTopK calls that had to walk the tree.
+     *
+     * @return Returns the number of misses.
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Getter, returns the number of spells currently cached over all the categories.
+     *
+     * @return Returns the number of cached spells, at most the budget.
+     */
+    public int getEntries() {
+        return this.entries;
+    }
+
+    /**
+     * Getter, returns the number of categories currently cached.
+     *
+     * @return Returns the number of cached categories.
+     */
+    public int getCategories() {
+        return this.tops.size();
+    }
+
+    /**
+     * Helper function. Evicts the least recently read categories until the cache is within its budget.
+     */
+    private void evict() {
+        Iterator<List<Spell>> eldest = this.tops.values().iterator();
+
+        while (this.entries > this.maxEntries) {
+            this.entries -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Helper function. Wraps the top spells of a category in an immutable list. The array must not be modified afterwards.
+     *
+     * @param top the top spells of a category, in descending order
+     *
+     * @return Returns an immutable list backed by the array.
+     */
+    private static List<Spell> immutable(Spell[] top) {
+        return Collections.unmodifiableList(Arrays.asList(top));
+    }
+
+    /**
+     * Overriding toString() function to make a custom one
+     *
+     * @return returns a string that summarizes the cache
+     */
+    @Override
+    public String toString() {
+        long total = this.hits + this.misses;
+        return String.format("top-%d cache: %d categories, %d/%d spells, %d hits, %d misses (%.1f%% hit rate)", this.n,
+                this.tops.size(), this.entries, this.maxEntries, this.hits, this.misses, total == 0 ? 0 : 100.0 * this.hits / total);
+    }
+}